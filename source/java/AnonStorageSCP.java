@@ -7,47 +7,149 @@
 
 package org.rsna.ctp.stdstages.dicom;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import org.apache.log4j.Logger;
+import org.dcm4che.data.Command;
+import org.dcm4che.data.Dataset;
+import org.dcm4che.data.DcmObjectFactory;
 import org.dcm4che.data.FileMetaInfo;
-import org.rsna.ctp.stdstages.dicom.AnonStorageSCP;
-import org.rsna.ctp.stdstages.dicom.SimpleDicomStorageSCP;
+import org.dcm4che.dict.Status;
+import org.dcm4che.dict.Tags;
+import org.dcm4che.net.ActiveAssociation;
+import org.dcm4che.net.Dimse;
+import org.rsna.anonymizer.AnonymizerSnapshot;
+import org.rsna.anonymizer.DICOMStreamAnonymizer;
+import org.rsna.ctp.stdstages.anonymizer.AnonymizerStatus;
+import org.rsna.ctp.stdstages.anonymizer.IntegerTable;
 import org.rsna.util.FileUtil;
 
+/**
+ * A SimpleDicomStorageSCP that can anonymize objects while they are being
+ * received. The C-STORE requests are handled by an override of doCStore,
+ * the protected method that the SimpleDicomStorageSCP's server calls for
+ * each request. When no anonymizer is set, the request is passed to the
+ * SimpleDicomStorageSCP, which stores the object as it was received.
+ */
 public class AnonStorageSCP extends SimpleDicomStorageSCP {
 	
     final static Logger logger = Logger.getLogger(AnonStorageSCP.class);
 
+    static final DcmObjectFactory oFact = DcmObjectFactory.getInstance();
+
+    final File storageDirectory;
+    IntegerTable integerTable = null;
+    AnonymizedObjectListener anonymizedObjectListener = null;
+
+    /**
+     * The interface for receiving objects that were anonymized as they were received.
+     */
+    public interface AnonymizedObjectListener {
+		/**
+		 * Called after an object has been received and anonymized.
+		 * @param status the status of the anonymization; if the status is OK,
+		 * status.getFile() is the anonymized object.
+		 * @param phiDataset the dataset as received, without the pixel data
+		 * @param anonDataset the anonymized dataset, without the pixel data
+		 * @param isImage true if the object contained a pixel data element
+		 * @param callingAET the AE Title of the sender
+		 */
+		public void anonymizedObjectReceived(AnonymizerStatus status,
+											 Dataset phiDataset,
+											 Dataset anonDataset,
+											 boolean isImage,
+											 String callingAET);
+	}
+
     public AnonStorageSCP(File directory, int port) {
 		super(directory, port);
+		storageDirectory = directory;
 	}
 	
-    //Store the object in the directory.
-    void storeToDir(InputStream in,
-    						FileMetaInfo fmi,
-    						String name, String callingAET) throws IOException {
-								
-		File savedFile = new File(directory, name);
-		OutputStream out = null;
-        try {
-			out = new BufferedOutputStream(new FileOutputStream(savedFile));
-            fmi.write(out);
-            copy(in, out, -1);
-        }
-        catch (Exception ex) {
-			logger.warn("Unable to store a received file.",ex);
-			FileUtil.close(out);
-			savedFile.delete();
-			savedFile = null;
+	/**
+	 * Anonymize objects while they are being received, so that only
+	 * the anonymized objects are written to disk. Anonymized objects
+	 * are reported to the listener instead of to the FileListeners.
+	 * The script and lookup table are taken from the current
+	 * AnonymizerSnapshot when each object is received.
+	 * @param integerTable the integer table
+	 * @param listener the listener for anonymized objects, or null
+	 * to store the objects as they are received.
+	 */
+	public synchronized void setAnonymizer(IntegerTable integerTable,
+										   AnonymizedObjectListener listener) {
+		this.integerTable = integerTable;
+		this.anonymizedObjectListener = listener;
+	}
+	
+	/**
+	 * Handle a C-STORE request. If an anonymizer has been set, the object
+	 * is anonymized from the request's data stream, and only the anonymized
+	 * object is written to the directory; otherwise, the request is handled
+	 * by the SimpleDicomStorageSCP.
+	 */
+	protected void doCStore(ActiveAssociation assoc, Dimse rq, Command rspCmd) throws IOException {
+		IntegerTable integerTable;
+		AnonymizedObjectListener listener;
+		synchronized (this) {
+			integerTable = this.integerTable;
+			listener = anonymizedObjectListener;
+		}
+		if (listener == null) {
+			super.doCStore(assoc, rq, rspCmd);
+			return;
 		}
-        finally { 
-			FileUtil.close(out);
+		InputStream in = rq.getDataAsStream();
+		int status = Status.ProcessingFailure;
+		try {
+			Command rqCmd = rq.getCommand();
+			String sopInstanceUID = rqCmd.getAffectedSOPInstanceUID();
+			String callingAET = assoc.getAssociation().getCallingAET();
+			FileMetaInfo fmi = oFact.newFileMetaInfo(rqCmd.getAffectedSOPClassUID(),
+													 sopInstanceUID,
+													 rq.getTransferSyntaxUID());
+			File savedFile = new File(storageDirectory, sopInstanceUID + ".dcm");
+			if (storeAnonymized(in, fmi, savedFile, callingAET, integerTable, listener)) {
+				status = Status.Success;
+			}
 		}
-        if (savedFile != null) sendFileEvent(savedFile, callingAET);
-    }
-}	
\ No newline at end of file
+		catch (Exception ex) { logger.warn("Unable to store a received file.", ex); }
+		finally {
+			//Read whatever the anonymizer left, so the association stays in step.
+			drain(in);
+			FileUtil.close(in);
+		}
+		rspCmd.putUS(Tags.Status, status);
+	}
+
+	//Anonymize the object from the stream, store the result in a file,
+	//and notify the listener. Return true if the object was anonymized
+	//or the script skipped it; false if it was quarantined.
+	private boolean storeAnonymized(InputStream in,
+									FileMetaInfo fmi,
+									File savedFile,
+									String callingAET,
+									IntegerTable integerTable,
+									AnonymizedObjectListener listener) {
+		AnonymizerSnapshot snapshot = AnonymizerSnapshot.getInstance();
+		DICOMStreamAnonymizer anonymizer = new DICOMStreamAnonymizer(snapshot.compiledScript, snapshot.lkup, integerTable);
+		AnonymizerStatus status = anonymizer.anonymize(in, fmi, savedFile);
+		if (!status.isOK()) logger.warn("Unable to anonymize a received file: "+status.getMessage());
+		listener.anonymizedObjectReceived(status,
+										  anonymizer.getPHIDataset(),
+										  anonymizer.getAnonymizedDataset(),
+										  anonymizer.isImage(),
+										  callingAET);
+		return status.isOK() || status.isSKIP();
+	}
+
+	//Read the rest of a stream.
+	private static void drain(InputStream in) {
+		try {
+			byte[] buffer = new byte[8192];
+			while (in.read(buffer) != -1) ;
+		}
+		catch (Exception ignore) { }
+	}
+}
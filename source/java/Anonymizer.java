@@ -177,6 +177,7 @@ public class Anonymizer extends JFrame {
 		pack();
 		positionFrame();
 		setVisible(true);
+		IndexBackup.getInstance().startScheduler();
 		logger.info("Initialization complete");
     }
     
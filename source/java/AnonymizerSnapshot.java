@@ -0,0 +1,132 @@
+/*---------------------------------------------------------------
+*  Copyright 2020 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.anonymizer;
+
+import java.io.File;
+import java.util.Properties;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.stdstages.anonymizer.LookupTable;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DAScript;
+
+/**
+ * An immutable snapshot of the DICOM anonymizer script and the lookup table,
+ * shared by all the threads that anonymize objects. Getting the current
+ * snapshot is a read of a volatile field, so the per-object cost does not
+ * depend on the size of the script or the lookup table, and no locks or
+ * file system calls are made on the anonymization path.
+ * <p>
+ * A daemon thread checks the files once a second through DAScript and
+ * LookupTable, which reload a file when it has changed (after waiting
+ * briefly, so a file that is being written is not read). When either one
+ * is reloaded, a new snapshot is built and replaces the current one, so an
+ * object is always anonymized with a consistent script and lookup table.
+ * The properties of a snapshot are copies, and they must not be modified.
+ */
+public class AnonymizerSnapshot {
+
+	static final Logger logger = Logger.getLogger(AnonymizerSnapshot.class);
+
+	static final long checkInterval = 1000;
+
+	static volatile AnonymizerSnapshot snapshot = null;
+	static Thread watcher = null;
+
+	final DAScript script;
+	final LookupTable lookupTable;
+	final int version;
+
+	/** The properties of the anonymizer script. */
+	public final Properties cmds;
+
+	/** The properties of the lookup table. */
+	public final Properties lkup;
+
+	/** The compiled anonymizer script. */
+	public final CompiledScript compiledScript;
+
+	/** The value of the SITEID parameter of the script. */
+	public final String siteID;
+
+	/**
+	 * Get the current snapshot, building the first one if necessary.
+	 * @return the current snapshot.
+	 */
+	public static AnonymizerSnapshot getInstance() {
+		AnonymizerSnapshot s = snapshot;
+		return (s != null) ? s : update();
+	}
+
+	/**
+	 * Build a new snapshot if the script or the lookup table has been
+	 * reloaded since the current snapshot was built.
+	 * @return the current snapshot.
+	 */
+	public static synchronized AnonymizerSnapshot update() {
+		Configuration config = Configuration.getInstance();
+		DAScript script = DAScript.getInstance(new File(config.dicomScriptFile));
+		LookupTable lookupTable = LookupTable.getInstance(new File(config.lookupTableFile));
+		AnonymizerSnapshot s = snapshot;
+		if ((s == null) || (s.script != script) || (s.lookupTable != lookupTable)) {
+			s = new AnonymizerSnapshot(script, lookupTable, (s != null) ? s.version + 1 : 1);
+			snapshot = s;
+			if (s.version > 1) logger.info("Anonymizer configuration reloaded (version " + s.version + ")");
+		}
+		if (watcher == null) {
+			watcher = new Watcher();
+			watcher.start();
+		}
+		return s;
+	}
+
+	//The private constructor.
+	private AnonymizerSnapshot(DAScript script, LookupTable lookupTable, int version) {
+		this.script = script;
+		this.lookupTable = lookupTable;
+		this.version = version;
+		cmds = copy(script.toProperties());
+		lkup = copy(lookupTable.getProperties());
+		compiledScript = new CompiledScript(cmds);
+		siteID = cmds.getProperty("param.SITEID");
+	}
+
+	/**
+	 * Get the version of this snapshot. The first snapshot is version 1,
+	 * and the version is incremented each time the configuration is reloaded.
+	 * @return the version.
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	private static Properties copy(Properties props) {
+		Properties copy = new Properties();
+		if (props != null) {
+			synchronized (props) { copy.putAll(props); }
+		}
+		return copy;
+	}
+
+	//The thread that checks for changes to the files.
+	static class Watcher extends Thread {
+		public Watcher() {
+			super("AnonymizerSnapshotWatcher");
+			setDaemon(true);
+		}
+		public void run() {
+			while (true) {
+				try {
+					Thread.sleep(checkInterval);
+					update();
+				}
+				catch (Exception ex) {
+					logger.warn("Unable to check the anonymizer configuration", ex);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,506 @@
+/*---------------------------------------------------------------
+*  Copyright 2020 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.anonymizer;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Properties;
+import java.util.TreeMap;
+import org.apache.log4j.Logger;
+import org.dcm4che.data.Dataset;
+import org.dcm4che.data.DcmElement;
+import org.dcm4che.dict.DictionaryFactory;
+import org.dcm4che.dict.TagDictionary;
+import org.dcm4che.dict.Tags;
+import org.dcm4che.dict.VRs;
+import org.rsna.ctp.objects.DicomObject;
+import org.rsna.ctp.objects.PrivateTagIndex;
+import org.rsna.ctp.stdstages.anonymizer.IntegerTable;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMAnonymizer;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMAnonymizerContext;
+
+/**
+ * A DICOM anonymizer script compiled into a table of element actions sorted
+ * by tag. For every object, the CTP DICOMAnonymizer parses the keys of all the
+ * elements of the script to build its table of element scripts, looks up the
+ * script of each element of the dataset in that table, and interprets the
+ * script. A CompiledScript does the parsing once: each element script of the
+ * standard elements is compiled into an action (keep, remove, put a constant
+ * value, or call the script's functions), and the actions are placed in an
+ * array sorted by tag, which is walked in one merge pass against the elements
+ * of the dataset. Only the scripts that call functions are interpreted for
+ * each object, by the DICOMAnonymizer's public makeReplacement method; in the
+ * standard script, they are a few dozen of several thousand.
+ * <p>
+ * The few elements that can be inserted (those whose scripts start with
+ * @always(), and the DeIdentificationMethodCodeSequence) are listed
+ * separately with their VRs, so the insertion pass visits only those.
+ * <p>
+ * Private elements are left to the context, which resolves their tags
+ * against the private creators of each object as before, and their scripts
+ * are interpreted. The rules for removing and keeping elements are those
+ * of the DICOMAnonymizer's element processing. Only the public API of
+ * the CTP library is used.
+ * <p>
+ * A CompiledScript is immutable and may be shared by any number of threads.
+ */
+public class CompiledScript {
+
+	static final Logger logger = Logger.getLogger(CompiledScript.class);
+
+	static final TagDictionary tagDictionary = DictionaryFactory.getInstance().getDefaultTagDictionary();
+
+	//The value used for @blank(n), as in the DICOMAnonymizer.
+	static final String blanks = "                                                       ";
+
+	//The meanings of the codes of the DeIdentificationMethodCodeSequence.
+	static final Properties codeMeanings = getCodeMeanings();
+
+	final Properties cmds;
+	final Properties privateCmds;
+	final int[] tags;
+	final String[] scripts;
+	final Action[] actions;
+	final int[] insertTags;
+	final String[] insertScripts;
+	final int[] insertVRs;
+	final int[] keepGroups;
+	final boolean rpg, rue, rol, rc, kspe;
+
+	/**
+	 * Compile a script.
+	 * @param cmds the properties of the anonymizer script. They must not
+	 * be modified while the CompiledScript is in use.
+	 */
+	public CompiledScript(Properties cmds) {
+		this.cmds = cmds;
+		privateCmds = new Properties();
+		TreeMap<Integer,String> table = new TreeMap<Integer,String>(new TagOrder());
+		LinkedList<Integer> groups = new LinkedList<Integer>();
+		Enumeration<Object> keys = cmds.keys();
+		while (keys.hasMoreElements()) {
+			String key = (String)keys.nextElement();
+			String script = cmds.getProperty(key);
+			if (key.startsWith("set.[")) {
+				int tag = getStandardTag(key);
+				if (tag != 0) table.put(tag, script);
+				else privateCmds.setProperty(key, script);
+			}
+			else if (key.startsWith("keep.group")) {
+				try { groups.add(Integer.parseInt(key.substring("keep.group".length()).trim(), 16)); }
+				catch (Exception ex) { groups.add(0); }
+			}
+		}
+		tags = new int[table.size()];
+		scripts = new String[table.size()];
+		actions = new Action[table.size()];
+		LinkedList<Integer> inserts = new LinkedList<Integer>();
+		int i = 0;
+		for (Integer tag : table.keySet()) {
+			tags[i] = tag;
+			scripts[i] = table.get(tag);
+			actions[i] = Action.compile(tag, scripts[i]);
+			if (isInsertion(tag, scripts[i].trim())) inserts.add(i);
+			i++;
+		}
+		insertTags = new int[inserts.size()];
+		insertScripts = new String[inserts.size()];
+		insertVRs = new int[inserts.size()];
+		i = 0;
+		for (Integer k : inserts) {
+			insertTags[i] = tags[k];
+			insertScripts[i] = scripts[k].trim();
+			insertVRs[i] = getVR(tags[k]);
+			i++;
+		}
+		keepGroups = new int[groups.size()];
+		i = 0;
+		for (Integer group : groups) keepGroups[i++] = group;
+		Arrays.sort(keepGroups);
+		rpg = (cmds.getProperty("remove.privategroups") != null);
+		rue = (cmds.getProperty("remove.unspecifiedelements") != null);
+		rol = (cmds.getProperty("remove.overlays") != null);
+		rc = (cmds.getProperty("remove.curves") != null);
+		kspe = (cmds.getProperty("keep.safeprivateelements") != null);
+	}
+
+	/**
+	 * Get the number of element scripts in the compiled table.
+	 * @return the number of standard elements in the script.
+	 */
+	public int size() {
+		return tags.length;
+	}
+
+	/**
+	 * Get the number of element scripts that are interpreted for each object.
+	 * @return the number of standard elements whose scripts call functions.
+	 */
+	public int getCallCount() {
+		int n = 0;
+		for (Action action : actions) {
+			if (action.type == Action.CALL) n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Get the script for a standard element.
+	 * @param tag the tag of the element
+	 * @return the script, or null if the element is not in the compiled table.
+	 */
+	public String getScriptFor(int tag) {
+		int lo = 0;
+		int hi = tags.length - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = Integer.compareUnsigned(tags[mid], tag);
+			if (c < 0) lo = mid + 1;
+			else if (c > 0) hi = mid - 1;
+			else return scripts[mid];
+		}
+		return null;
+	}
+
+	/**
+	 * Get a context for anonymizing a dataset with this script. Only the private
+	 * elements of the script are parsed; the standard elements are found in the
+	 * compiled table.
+	 * @param lkup the properties of the lookup table
+	 * @param intTable the integer table
+	 * @param inDS the dataset to be anonymized
+	 * @param outDS the dataset to receive the anonymized elements
+	 * @return the context.
+	 */
+	public DICOMAnonymizerContext getContext(Properties lkup, IntegerTable intTable, Dataset inDS, Dataset outDS) {
+		return new Context(lkup, intTable, inDS, outDS);
+	}
+
+	/**
+	 * Anonymize the elements of the input dataset of a context in the output
+	 * dataset, which must start as a copy of the input dataset. This is
+	 * equivalent to the processElements method of the DICOMAnonymizer: the
+	 * elements are removed or kept by the same rules, and the same values
+	 * are put, but the actions of the standard elements are taken from the
+	 * compiled table, which is walked in tag order with the dataset.
+	 * @param context a context obtained from this CompiledScript
+	 * @return a comma-separated list of the elements whose values could not
+	 * be put, or the empty string if there were none.
+	 * @throws Exception if a script calls for the object to be skipped or
+	 * quarantined.
+	 */
+	public String processElements(DICOMAnonymizerContext context) throws Exception {
+		PrivateTagIndex privateTagIndex = PrivateTagIndex.getInstance();
+		Dataset ds = context.outDS;
+		String exceptions = "";
+		int k = 0;
+		for (Iterator<?> it = context.inDS.iterator(); it.hasNext(); ) {
+			DcmElement el = (DcmElement)it.next();
+			int tag = el.tag();
+			int vr = el.vr();
+			int group = (tag >> 16) & 0xFFFF;
+			boolean isOverlay = ((group & 0xFF00) == 0x6000);
+			boolean isCurve = ((group & 0xFF00) == 0x5000);
+			boolean isPrivateGroup = ((group & 1) != 0);
+			boolean isPrivateCreator = isPrivateGroup && ((tag & 0xFF00) == 0);
+			boolean isSafePrivate = false;
+			if (isPrivateGroup && !isPrivateCreator) {
+				isSafePrivate = privateTagIndex.getCode(context.getCreator(tag), tag).equals("K");
+			}
+
+			//Find the action; the dataset and the table are both in tag order
+			while ((k < tags.length) && (Integer.compareUnsigned(tags[k], tag) < 0)) k++;
+			Action action = null;
+			if ((k < tags.length) && (tags[k] == tag)) action = actions[k];
+			else {
+				String script = ((Context)context).getContextScriptFor(tag);
+				if (script != null) action = Action.interpreted(tag, script);
+			}
+
+			boolean keep = context.containsKeepGroup(group)
+							|| (isPrivateCreator && context.kspe)
+							|| (isSafePrivate && context.kspe)
+							|| (tag == Tags.SOPClassUID)
+							|| (tag == Tags.SOPInstanceUID)
+							|| (tag == Tags.StudyInstanceUID)
+							|| (group == 0x0002)
+							|| (group == 0x0028)
+							|| (group == 0x7FE0)
+							|| (isOverlay && !context.rol && (!isPrivateGroup || !context.rpg))
+							|| (isCurve && !context.rc && (!isPrivateGroup || !context.rpg));
+
+			if (context.rpg && isPrivateGroup && (action == null) && !keep) remove(ds, tag);
+			else if (context.rue && (action == null) && !keep) remove(ds, tag);
+			else if (context.rol && isOverlay) remove(ds, tag);
+			else if (action != null) {
+				try { action.apply(context, vr); }
+				catch (PutException ex) {
+					String tagString = Tags.toString(tag);
+					logger.warn(tagString + " exception:\n" + ex.getCause().toString()
+								+ "\nscript=" + action.script);
+					if (!exceptions.equals("")) exceptions += ",";
+					exceptions += tagString;
+				}
+			}
+		}
+		return exceptions;
+	}
+
+	//Remove an element from a dataset, as the DICOMAnonymizer does.
+	static void remove(Dataset ds, int tag) {
+		try { ds.remove(tag); }
+		catch (Exception ex) { logger.debug("Unable to remove " + tag + " from dataset."); }
+	}
+
+	/**
+	 * Insert the elements that the script creates when they are missing from
+	 * the output dataset of a context. This is equivalent to the insertElements
+	 * method of the DICOMAnonymizer, but it visits only the elements that can
+	 * be inserted.
+	 * @param context a context obtained from this CompiledScript
+	 * @throws Exception if an element cannot be inserted.
+	 */
+	public void insertElements(DICOMAnonymizerContext context) throws Exception {
+		Dataset ds = context.outDS;
+		for (int i=0; i<insertTags.length; i++) {
+			insertElement(context, ds, insertTags[i], insertScripts[i], insertVRs[i]);
+		}
+		//The private elements resolved by the context
+		for (Integer tag : context.scriptTable.keySet()) {
+			insertElement(context, ds, tag, context.scriptTable.get(tag).trim(), getVR(tag));
+		}
+	}
+
+	//Insert an element if it is missing, in the same way as the DICOMAnonymizer.
+	private void insertElement(DICOMAnonymizerContext context, Dataset ds, int tag, String script, int vr) throws Exception {
+		if (ds.contains(tag)) return;
+		if (script.startsWith("@always()") && (vr != VRs.SQ)) {
+			String value = DICOMAnonymizer.makeReplacement(script, context, tag);
+			if (value.equals("@keep()") || value.equals("@remove()")) return;
+			if (value.startsWith("@blank(") || value.equals("@empty()")) value = "";
+			try { context.putXX(tag, vr, value); }
+			catch (Exception ex) { logger.warn("Unable to create " + Tags.toString(tag) + ": " + script); }
+		}
+		else if (script.startsWith("@always()@require()") && (vr == VRs.SQ)) {
+			context.putXX(tag, vr, "");
+		}
+		else if (script.startsWith("@always()@call") && (vr == VRs.SQ)) {
+			DICOMAnonymizer.makeReplacement(script, context, tag);
+		}
+		else if (tag == Tags.DeIdentificationMethodCodeSeq) {
+			updateDeIdentificationMethodCodeSeq(script, context);
+		}
+	}
+
+	//Update the DeIdentificationMethodCodeSequence of the output dataset with
+	//the codes of a script, in the same way as the DICOMAnonymizer. The value
+	//of the script is a list of codes separated by slashes; the code "reset"
+	//removes the items already in the sequence.
+	static void updateDeIdentificationMethodCodeSeq(String script, DICOMAnonymizerContext context) throws Exception {
+		Dataset ds = context.outDS;
+		int tag = Tags.DeIdentificationMethodCodeSeq;
+		if (script.trim().equals("")) return;
+		if (script.equals("@remove()")) {
+			if (ds.contains(tag)) ds.remove(tag);
+			return;
+		}
+		if (script.equals("@keep()")) return;
+		String value = DICOMAnonymizer.makeReplacement(script, context, tag);
+		value = (value != null) ? value.trim() : "";
+		try {
+			DcmElement seq = ds.contains(tag) ? ds.get(tag) : ds.putSQ(tag);
+			for (String code : value.split("/")) {
+				code = code.trim();
+				if (code.toLowerCase().equals("reset")) {
+					ds.remove(tag);
+					seq = ds.putSQ(tag);
+				}
+				else {
+					String scheme = "DCM";
+					String meaning = codeMeanings.getProperty(code);
+					if (meaning == null) {
+						meaning = "UNKNOWN";
+						scheme = "UNKNOWN";
+					}
+					Dataset item = seq.addNewItem();
+					item.putSH(Tags.CodingSchemeDesignator, scheme);
+					item.putSH(Tags.CodeValue, code);
+					item.putLO(Tags.CodeMeaning, meaning);
+				}
+			}
+		}
+		catch (Exception ex) { logger.warn("Unable to update DeIdentificationMethodCodeSeq", ex); }
+	}
+
+	//Determine whether an element script can cause an insertion.
+	private static boolean isInsertion(int tag, String script) {
+		return script.startsWith("@always()") || (tag == Tags.DeIdentificationMethodCodeSeq);
+	}
+
+	//Get the tag of a set.[gggg,eeee] key for a standard element,
+	//or zero if the key is for a private element or has another form.
+	private static int getStandardTag(String key) {
+		int k = key.indexOf("]");
+		if (k != 14) return 0;
+		int tag = DicomObject.getElementTag(key.substring(5, k));
+		return ((tag & 0x10000) == 0) ? tag : 0;
+	}
+
+	//Get the VR of an element from the dictionary, using SH for unknown elements.
+	private static int getVR(int tag) {
+		try { return VRs.valueOf(tagDictionary.lookup(tag).vr); }
+		catch (Exception ex) { return VRs.valueOf("SH"); }
+	}
+
+	//The code meanings of the DICOM de-identification methods (PS3.16, CID 7050).
+	private static Properties getCodeMeanings() {
+		Properties props = new Properties();
+		props.setProperty("113100", "Basic Application Confidentiality Profile");
+		props.setProperty("113101", "Clean Pixel Data Option");
+		props.setProperty("113102", "Clean Recognizable Visual Features Option");
+		props.setProperty("113103", "Clean Graphics Option");
+		props.setProperty("113104", "Clean Structured Content Option");
+		props.setProperty("113105", "Clean Descriptors Option");
+		props.setProperty("113106", "Retain Longitudinal Temporal Information Full Dates Option");
+		props.setProperty("113107", "Retain Longitudinal Temporal Information Modified Dates Option");
+		props.setProperty("113108", "Retain Patient Characteristics Option");
+		props.setProperty("113109", "Retain Device Identity Option");
+		props.setProperty("113110", "Retain UIDs");
+		props.setProperty("113111", "Retain Safe Private Option");
+		props.setProperty("113112", "Retain Institution Identity Option");
+		return props;
+	}
+
+	//The order of the elements in a dataset. Tags are unsigned, so the
+	//tags of groups 8000 and above follow the others.
+	static class TagOrder implements Comparator<Integer> {
+		public int compare(Integer a, Integer b) {
+			return Integer.compareUnsigned(a, b);
+		}
+	}
+
+	//The compiled action of an element script. Scripts whose values do not
+	//depend on the object are resolved when the script is compiled; the
+	//others are interpreted by the DICOMAnonymizer for each object, and
+	//their values are then handled in the same way.
+	static class Action {
+		static final int KEEP = 0;
+		static final int REMOVE = 1;
+		static final int PUT = 2;
+		static final int CALL = 3;
+		static final int DEIDENT = 4;
+
+		final int tag;
+		final String script;
+		final int type;
+		final String value;
+
+		Action(int tag, String script, int type, String value) {
+			this.tag = tag;
+			this.script = script;
+			this.type = type;
+			this.value = value;
+		}
+
+		//Compile an element script.
+		static Action compile(int tag, String script) {
+			if (tag == Tags.DeIdentificationMethodCodeSeq) return new Action(tag, script, DEIDENT, null);
+			String s = script;
+			if (s.startsWith("@always()")) s = s.substring("@always()".length());
+			if (isConstant(s)) return resolve(tag, script, s);
+			return new Action(tag, script, CALL, null);
+		}
+
+		//Get an action for a script that is interpreted for each object.
+		static Action interpreted(int tag, String script) {
+			if (tag == Tags.DeIdentificationMethodCodeSeq) return new Action(tag, script, DEIDENT, null);
+			return new Action(tag, script, CALL, null);
+		}
+
+		//Determine whether the DICOMAnonymizer returns a script unchanged:
+		//it contains no function calls or escapes, or it is one of the
+		//directives that are interpreted after the replacement is made.
+		static boolean isConstant(String s) {
+			if ((s.indexOf('@') == -1) && (s.indexOf('\\') == -1)) return true;
+			s = s.trim();
+			return s.equals("@keep()") || s.equals("@remove()") || s.equals("@empty()")
+						|| (s.startsWith("@blank(") && (s.indexOf(')') == s.length() - 1)
+								&& (s.indexOf('@', 1) == -1) && (s.indexOf('\\') == -1));
+		}
+
+		//Get the action for the value of a script, in the way that
+		//the DICOMAnonymizer handles the replacement of an element.
+		static Action resolve(int tag, String script, String value) {
+			value = (value != null) ? value.trim() : "";
+			if (value.contains("@remove()")) return new Action(tag, script, REMOVE, null);
+			if (value.equals("@keep()")) return new Action(tag, script, KEEP, null);
+			if (value.startsWith("@blank(")) {
+				String arg = value.substring("@blank(".length());
+				int k = arg.indexOf(")");
+				int n = 0;
+				if (k != -1) n = Integer.parseInt("0" + arg.substring(0, k).replaceAll("\\D", ""));
+				if (n > blanks.length()) n = blanks.length();
+				return new Action(tag, script, PUT, blanks.substring(0, n));
+			}
+			if (value.equals("@empty()")) value = "";
+			return new Action(tag, script, PUT, value);
+		}
+
+		//Apply the action to the output dataset of a context.
+		void apply(DICOMAnonymizerContext context, int vr) throws Exception {
+			Action action = this;
+			if (type == DEIDENT) {
+				updateDeIdentificationMethodCodeSeq(script, context);
+				return;
+			}
+			if (type == CALL) action = resolve(tag, script, DICOMAnonymizer.makeReplacement(script, context, tag));
+			if (action.type == REMOVE) remove(context.outDS, tag);
+			else if (action.type == PUT) {
+				try { context.putXX(tag, vr, action.value); }
+				catch (Exception ex) { throw new PutException(ex); }
+			}
+		}
+	}
+
+	//An exception thrown when an element value cannot be put.
+	static class PutException extends Exception {
+		PutException(Exception cause) {
+			super(cause);
+		}
+	}
+
+	//A context whose table of element scripts holds only the private
+	//elements; the scripts of the standard elements are found in the
+	//compiled table.
+	class Context extends DICOMAnonymizerContext {
+		public Context(Properties lkup, IntegerTable intTable, Dataset inDS, Dataset outDS) {
+			super(privateCmds, lkup, intTable, inDS, outDS);
+			cmds = CompiledScript.this.cmds;
+			keepGroups = CompiledScript.this.keepGroups;
+			rpg = CompiledScript.this.rpg;
+			rue = CompiledScript.this.rue;
+			rol = CompiledScript.this.rol;
+			rc = CompiledScript.this.rc;
+			kspe = CompiledScript.this.kspe;
+		}
+		public String getScriptFor(int tag) {
+			String script = CompiledScript.this.getScriptFor(tag);
+			return (script != null) ? script : super.getScriptFor(tag);
+		}
+		public String getScriptFor(Integer tag) {
+			return getScriptFor(tag.intValue());
+		}
+		//Get a script from the context's own table of element scripts.
+		String getContextScriptFor(int tag) {
+			return super.getScriptFor(tag);
+		}
+	}
+}
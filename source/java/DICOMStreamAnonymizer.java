@@ -0,0 +1,436 @@
+/*---------------------------------------------------------------
+*  Copyright 2020 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.anonymizer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+import org.apache.log4j.Logger;
+import org.dcm4che.data.Dataset;
+import org.dcm4che.data.DcmDecodeParam;
+import org.dcm4che.data.DcmEncodeParam;
+import org.dcm4che.data.DcmObjectFactory;
+import org.dcm4che.data.DcmParser;
+import org.dcm4che.data.DcmParserFactory;
+import org.dcm4che.data.FileMetaInfo;
+import org.dcm4che.dict.Tags;
+import org.dcm4che.dict.VRs;
+import org.rsna.ctp.stdstages.anonymizer.AnonymizerStatus;
+import org.rsna.ctp.stdstages.anonymizer.IntegerTable;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMAnonymizerContext;
+import org.rsna.util.FileUtil;
+
+/**
+ * An anonymizer for DICOM datasets supplied as a stream, for example
+ * the data of a C-STORE request, or as a file. The dataset without the
+ * pixel data is anonymized in memory using a CompiledScript, which
+ * applies the rules of the CTP DICOMAnonymizer, and the pixel data is
+ * copied to the output file without being parsed. Only the anonymized
+ * object is written.
+ * <p>
+ * The elements following the pixel data (private groups, trailing
+ * padding) are anonymized with the rest of the dataset, as they are by
+ * the DICOMAnonymizer. When the input is a file, the pixel data is
+ * transferred between the file channels. When the input is a stream,
+ * the pixel data is first copied to a temporary file in the directory
+ * of the output file, so the elements that follow it can be read before
+ * the anonymized object is written; the temporary file holds only the
+ * pixel data, which the anonymizer copies to the output unchanged. In
+ * both cases, memory use does not depend on the size of the pixel data.
+ * <p>
+ * An instance anonymizes one object; after the call, the PHI and
+ * anonymized datasets are available to the caller.
+ */
+public class DICOMStreamAnonymizer {
+
+	static final Logger logger = Logger.getLogger(DICOMStreamAnonymizer.class);
+
+	static final DcmParserFactory pFact = DcmParserFactory.getInstance();
+	static final DcmObjectFactory oFact = DcmObjectFactory.getInstance();
+
+	CompiledScript script;
+	Properties lkup;
+	IntegerTable intTable;
+	Dataset phiDataset = null;
+	Dataset anonDataset = null;
+	boolean isImage = false;
+
+	/**
+	 * Class constructor. The script is compiled for this instance; to
+	 * anonymize many objects, compile it once and use the other constructor.
+	 * @param cmds the properties of the anonymizer script
+	 * @param lkup the properties of the lookup table
+	 * @param intTable the integer table
+	 */
+	public DICOMStreamAnonymizer(Properties cmds, Properties lkup, IntegerTable intTable) {
+		this(new CompiledScript(cmds), lkup, intTable);
+	}
+
+	/**
+	 * Class constructor.
+	 * @param script the compiled anonymizer script
+	 * @param lkup the properties of the lookup table
+	 * @param intTable the integer table
+	 */
+	public DICOMStreamAnonymizer(CompiledScript script, Properties lkup, IntegerTable intTable) {
+		this.script = script;
+		this.lkup = lkup;
+		this.intTable = intTable;
+	}
+
+	/**
+	 * Anonymize a dataset from a stream and write the result to a file.
+	 * The stream must be positioned at the start of the dataset (after the
+	 * File Meta Information, if any), and it is read to its end. The output is written to a temporary file in the directory
+	 * of the output file and renamed when complete, so the output file never
+	 * contains a partial object.
+	 * @param in the stream containing the dataset. The stream is not closed.
+	 * @param fmi the File Meta Information describing the dataset
+	 * @param outFile the file in which to store the anonymized object
+	 * @return the status of the anonymization.
+	 */
+	public AnonymizerStatus anonymize(InputStream in, FileMetaInfo fmi, File outFile) {
+		try {
+			//Parse the dataset up to the pixel data
+			String tsuid = fmi.getTransferSyntaxUID();
+			DcmParser parser = pFact.newDcmParser(in);
+			phiDataset = oFact.newDataset();
+			phiDataset.setFileMetaInfo(fmi);
+			parser.setDcmHandler(phiDataset.getDcmHandler());
+			parser.parseDataset(DcmDecodeParam.valueOf(tsuid), Tags.PixelData);
+
+			File tempFile = anonymize(parser, null, tsuid, outFile.getParentFile());
+			rename(tempFile, outFile);
+			return AnonymizerStatus.OK(outFile, "");
+		}
+		catch (Exception ex) { return getStatus(outFile, ex); }
+	}
+
+	/**
+	 * Anonymize a DICOM file. The file is read once: the dataset without
+	 * the pixel data is parsed and anonymized, and the pixel data is copied
+	 * to the output file. The input and output files may be the same. As with
+	 * the stream method, the output file never contains a partial object.
+	 * After the call, the PHI and anonymized datasets are available to the
+	 * caller, so the identifiers of the object do not have to be read from
+	 * the files.
+	 * @param inFile the file to anonymize
+	 * @param outFile the file in which to store the anonymized object
+	 * @return the status of the anonymization.
+	 */
+	public AnonymizerStatus anonymize(File inFile, File outFile) {
+		DicomHeader header;
+		try { header = new DicomHeader(inFile); }
+		catch (Exception ex) { return getStatus(inFile, ex); }
+		return anonymize(header, outFile);
+	}
+
+	/**
+	 * Anonymize a DICOM file whose header has already been read, for
+	 * example to apply a filter. The header must have been read up to the
+	 * pixel data; the anonymization continues from the position of its
+	 * parser, so the header is not read again. The header is closed before
+	 * the output file is written, so the header's file may be the output file.
+	 * @param header the header of the file to anonymize
+	 * @param outFile the file in which to store the anonymized object
+	 * @return the status of the anonymization.
+	 */
+	public AnonymizerStatus anonymize(DicomHeader header, File outFile) {
+		phiDataset = header.getDataset();
+		try {
+			File tempFile = anonymize(header.getParser(), header.getChannel(),
+									  header.getTransferSyntaxUID(), outFile.getParentFile());
+			header.close();
+			rename(tempFile, outFile);
+			return AnonymizerStatus.OK(outFile, "");
+		}
+		catch (Exception ex) { return getStatus(outFile, ex); }
+		finally { header.close(); }
+	}
+
+	//Anonymize the dataset parsed by a parser, which must be positioned
+	//at the pixel data or the end of the dataset, and write the anonymized
+	//object to a temporary file in a directory. The elements that follow
+	//the pixel data are parsed and anonymized with the rest of the dataset.
+	//If the parser is reading a file, the pixel data is transferred from
+	//the file's channel; otherwise, it is copied from the parser's stream
+	//to a temporary file, and transferred from there.
+	private File anonymize(DcmParser parser, FileChannel channel, String tsuid, File dir) throws Exception {
+		if (phiDataset.getSpecificCharacterSet() == null) {
+			phiDataset.putCS(Tags.SpecificCharacterSet, "ISO_IR 100");
+		}
+		DcmEncodeParam param = DcmEncodeParam.valueOf(tsuid);
+		boolean hasPixels = (parser.getReadTag() == Tags.PixelData);
+		isImage = hasPixels;
+		if (!hasPixels) return anonymize(null, 0, 0, 0, param, tsuid, dir);
+
+		int vr = parser.getReadVR();
+		int len = parser.getReadLength();
+		if (channel != null) {
+			long pos = parser.getStreamPosition();
+			parseTrailer(channel, getPixelDataEnd(parser, channel), param);
+			return anonymize(channel, pos, vr, len, param, tsuid, dir);
+		}
+		File pixelFile = File.createTempFile("DCMtemp-", ".pixels", dir);
+		FileInputStream pixels = null;
+		try {
+			spoolPixels(parser, pixelFile);
+			parseTrailer(parser.getInputStream(), param);
+			pixels = new FileInputStream(pixelFile);
+			return anonymize(pixels.getChannel(), 0, vr, len, param, tsuid, dir);
+		}
+		finally {
+			FileUtil.close(pixels);
+			pixelFile.delete();
+		}
+	}
+
+	//Anonymize the PHI dataset and write the anonymized object to a
+	//temporary file in a directory, transferring the value of the pixel
+	//data element from a position in a channel. The channel is null if
+	//the object has no pixel data.
+	private File anonymize(FileChannel pixels, long pos, int vr, int len,
+						   DcmEncodeParam param, String tsuid, File dir) throws Exception {
+
+		//Anonymize a copy of the dataset
+		anonDataset = copy(phiDataset, param);
+		DICOMAnonymizerContext context = script.getContext(lkup, intTable, phiDataset, anonDataset);
+		script.insertElements(context);
+		String exceptions = script.processElements(context);
+		if (!exceptions.equals("")) logger.debug("Anonymizer exceptions: "+exceptions);
+
+		//Write the anonymized dataset, with the pixel data in its place
+		File tempFile = File.createTempFile("DCMtemp-", ".anon", dir);
+		OutputStream out = null;
+		try {
+			FileOutputStream fos = new FileOutputStream(tempFile);
+			out = new BufferedOutputStream(fos);
+			anonDataset.setFileMetaInfo( oFact.newFileMetaInfo(anonDataset, tsuid) );
+			anonDataset.getFileMetaInfo().write(out);
+			anonDataset.subSet(0, Tags.PixelData).writeDataset(out, param);
+			if (pixels != null) transferPixels(pixels, pos, vr, len, anonDataset, param, out, fos.getChannel());
+			anonDataset.subSet(Tags.PixelData + 1, -1).writeDataset(out, param);
+			out.flush();
+			out.close();
+			return tempFile;
+		}
+		catch (Exception ex) {
+			FileUtil.close(out);
+			tempFile.delete();
+			throw ex;
+		}
+	}
+
+	//Parse the elements that follow the pixel data in a file, starting
+	//at a position in the file's channel, into the PHI dataset.
+	private void parseTrailer(FileChannel in, long pos, DcmDecodeParam param) throws Exception {
+		if (pos >= in.size()) return;
+		in.position(pos);
+		//The stream is not closed, since that would close the channel.
+		parseTrailer(new BufferedInputStream(Channels.newInputStream(in)), param);
+	}
+
+	//Parse the elements that follow the pixel data from a stream,
+	//up to the end of the stream, into the PHI dataset.
+	private void parseTrailer(InputStream in, DcmDecodeParam param) throws Exception {
+		DcmParser parser = pFact.newDcmParser(in);
+		Dataset trailer = oFact.newDataset();
+		parser.setDcmHandler(trailer.getDcmHandler());
+		parser.parseDataset(param, -1);
+		phiDataset.putAll(trailer);
+	}
+
+	//Replace a file with a temporary file.
+	private static void rename(File tempFile, File outFile) throws Exception {
+		if (outFile.exists()) outFile.delete();
+		if (!tempFile.renameTo(outFile)) {
+			tempFile.delete();
+			throw new Exception("!error! - unable to rename "+tempFile);
+		}
+	}
+
+	/**
+	 * Get the dataset of the last object anonymized, before anonymization.
+	 * The dataset does not include the pixel data.
+	 * @return the PHI dataset, or null if no object has been parsed.
+	 */
+	public Dataset getPHIDataset() {
+		return phiDataset;
+	}
+
+	/**
+	 * Get the dataset of the last object anonymized, after anonymization.
+	 * The dataset does not include the pixel data.
+	 * @return the anonymized dataset, or null if the object was not anonymized.
+	 */
+	public Dataset getAnonymizedDataset() {
+		return anonDataset;
+	}
+
+	/**
+	 * Determine whether the last object anonymized is an image.
+	 * @return true if the object contained a pixel data element.
+	 */
+	public boolean isImage() {
+		return isImage;
+	}
+
+	//Make a deep copy of a dataset by encoding it and parsing it
+	//again, so that changes to the copy's sequence items do not
+	//affect the original.
+	private static Dataset copy(Dataset ds, DcmEncodeParam param) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ds.writeDataset(baos, param);
+		Dataset copy = oFact.newDataset();
+		DcmParser parser = pFact.newDcmParser(new ByteArrayInputStream(baos.toByteArray()));
+		parser.setDcmHandler(copy.getDcmHandler());
+		parser.parseDataset(param, -1);
+		return copy;
+	}
+
+	//Copy the value of the pixel data element at the current position of
+	//the parser from the parser's stream to a file. Encapsulated pixel data
+	//is copied item by item, with the item headers, as it is in a file.
+	private static void spoolPixels(DcmParser parser, File file) throws Exception {
+		InputStream in = parser.getInputStream();
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try {
+			byte[] buffer = new byte[65536];
+			int len = parser.getReadLength();
+			if (len != -1) copy(in, out, len, buffer);
+			else {
+				parser.parseHeader();
+				while (parser.getReadTag() == Tags.Item) {
+					len = parser.getReadLength();
+					writeItemHeader(out, Tags.Item, len);
+					copy(in, out, len, buffer);
+					parser.parseHeader();
+				}
+				if (parser.getReadTag() != Tags.SeqDelimitationItem) {
+					throw new Exception("!error! - unexpected tag in pixel data: "+Tags.toString(parser.getReadTag()));
+				}
+				writeItemHeader(out, Tags.SeqDelimitationItem, 0);
+			}
+		}
+		finally { out.close(); }
+	}
+
+	//Write the header of an item of encapsulated pixel data.
+	//The item headers are always little endian.
+	private static void writeItemHeader(OutputStream out, int tag, int len) throws Exception {
+		ByteBuffer bb = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		bb.putShort((short)(tag >>> 16)).putShort((short)tag).putInt(len);
+		out.write(bb.array());
+	}
+
+	//Get the position in the parser's file of the end of the pixel data
+	//element at the current position of the parser.
+	private static long getPixelDataEnd(DcmParser parser, FileChannel in) throws Exception {
+		long pos = parser.getStreamPosition();
+		int len = parser.getReadLength();
+		if (len != -1) return pos + len;
+		ByteBuffer bb = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		while (true) {
+			int tag = readItemHeader(in, pos, bb);
+			len = bb.getInt(4);
+			pos += 8;
+			if ((tag == Tags.Item) && (len >= 0)) pos += len;
+			else if (tag == Tags.SeqDelimitationItem) return pos;
+			else throw new Exception("!error! - unexpected tag in pixel data: "+Tags.toString(tag));
+		}
+	}
+
+	//Write the pixel data element, with its value transferred from a position
+	//in a channel, to the output file. The element values are transferred
+	//between the channels, so the pixel data does not pass through the heap,
+	//whatever its size.
+	private static void transferPixels(FileChannel in, long pos, int vr, int len, Dataset ds, DcmEncodeParam param,
+									   OutputStream out, FileChannel outChannel) throws Exception {
+		ds.writeHeader(out, param, Tags.PixelData, vr, len);
+		if (len != -1) {
+			transfer(in, pos, len, out, outChannel);
+			return;
+		}
+		ByteBuffer bb = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		while (true) {
+			int tag = readItemHeader(in, pos, bb);
+			len = bb.getInt(4);
+			pos += 8;
+			if ((tag == Tags.Item) && (len >= 0)) {
+				ds.writeHeader(out, param, Tags.Item, VRs.NONE, len);
+				transfer(in, pos, len, out, outChannel);
+				pos += len;
+			}
+			else if (tag == Tags.SeqDelimitationItem) {
+				ds.writeHeader(out, param, Tags.SeqDelimitationItem, VRs.NONE, 0);
+				return;
+			}
+			else throw new Exception("!error! - unexpected tag in pixel data: "+Tags.toString(tag));
+		}
+	}
+
+	//Read the header of an item of encapsulated pixel data from a position
+	//in a channel into a buffer and return its tag. The item headers of
+	//encapsulated pixel data are always little endian.
+	private static int readItemHeader(FileChannel in, long pos, ByteBuffer bb) throws Exception {
+		bb.clear();
+		while (bb.hasRemaining()) {
+			if (in.read(bb, pos + bb.position()) == -1) {
+				throw new Exception("!error! - premature end of pixel data");
+			}
+		}
+		return ((bb.getShort(0) & 0xffff) << 16) | (bb.getShort(2) & 0xffff);
+	}
+
+	//Transfer a number of bytes from a position in one channel to the
+	//output file, after flushing the stream that writes the output file.
+	private static void transfer(FileChannel in, long pos, long len,
+								 OutputStream out, FileChannel outChannel) throws Exception {
+		out.flush();
+		while (len > 0) {
+			long n = in.transferTo(pos, len, outChannel);
+			if (n <= 0) throw new Exception("!error! - premature end of pixel data");
+			pos += n;
+			len -= n;
+		}
+	}
+
+	//Copy a number of bytes from one stream to another.
+	static void copy(InputStream in, OutputStream out, long len, byte[] buffer) throws Exception {
+		while (len > 0) {
+			int n = in.read(buffer, 0, (int)Math.min(buffer.length, len));
+			if (n == -1) throw new Exception("!error! - premature end of pixel data");
+			out.write(buffer, 0, n);
+			len -= n;
+		}
+	}
+
+	//Convert an exception into an AnonymizerStatus, in the same way as the DICOMAnonymizer.
+	private static AnonymizerStatus getStatus(File file, Exception ex) {
+		String msg = ex.getMessage();
+		if (msg == null) msg = "!error! - no message";
+		if (msg.contains("!skip!")) return AnonymizerStatus.SKIP(file, msg);
+		if (msg.contains("!quarantine!")) {
+			logger.info("Quarantine call from DICOMStreamAnonymizer\n...Message: "+msg);
+			return AnonymizerStatus.QUARANTINE(file, msg);
+		}
+		logger.info("Error call from DICOMStreamAnonymizer", ex);
+		return AnonymizerStatus.QUARANTINE(file, msg);
+	}
+}
@@ -0,0 +1,272 @@
+/*---------------------------------------------------------------
+*  Copyright 2020 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.anonymizer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import org.dcm4che.data.Dataset;
+import org.dcm4che.data.DcmEncodeParam;
+import org.dcm4che.data.DcmObjectFactory;
+import org.dcm4che.data.DcmParser;
+import org.dcm4che.data.DcmParserFactory;
+import org.dcm4che.data.FileFormat;
+import org.dcm4che.data.FileMetaInfo;
+import org.dcm4che.dict.Tags;
+import org.dcm4che.dict.UIDs;
+import org.rsna.ctp.objects.DicomObject;
+import org.rsna.ctp.objects.SopClass;
+import org.rsna.util.FileUtil;
+
+/**
+ * The header of a DICOM file: the elements that precede the pixel data,
+ * or another stop tag. Only the header is read from the file. The file
+ * stays open, with its parser positioned at the stop tag, until the
+ * header is closed, so a DICOMStreamAnonymizer can anonymize the object
+ * without parsing the header again.
+ * <p>
+ * The methods used by the filter give the same results as the
+ * corresponding methods of the DicomObject. Filter scripts are
+ * evaluated by the DicomObject's script engine against the dataset
+ * of the header, so the file is not read again.
+ */
+public class DicomHeader {
+
+	static final DcmParserFactory pFact = DcmParserFactory.getInstance();
+	static final DcmObjectFactory oFact = DcmObjectFactory.getInstance();
+
+	File file;
+	FileInputStream fis;
+	InputStream in;
+	DcmParser parser;
+	Dataset dataset;
+	String tsuid;
+	boolean isImage;
+
+	/**
+	 * Read the header of a file up to the pixel data.
+	 * @param file the file
+	 * @throws Exception if the file is not a DICOM file.
+	 */
+	public DicomHeader(File file) throws Exception {
+		this(file, Tags.PixelData);
+	}
+
+	/**
+	 * Read the header of a file up to an element.
+	 * @param file the file
+	 * @param stopTag the tag of the first element not to be read
+	 * @throws Exception if the file is not a DICOM file.
+	 */
+	public DicomHeader(File file, int stopTag) throws Exception {
+		this.file = file;
+		fis = new FileInputStream(file);
+		in = new BufferedInputStream(fis);
+		try {
+			parser = pFact.newDcmParser(in);
+			FileFormat fileFormat = parser.detectFileFormat();
+			if (fileFormat == null) throw new Exception("!error! - unrecognized file format: "+file);
+			dataset = oFact.newDataset();
+			parser.setDcmHandler(dataset.getDcmHandler());
+			parser.parseDcmFile(fileFormat, stopTag);
+			FileMetaInfo fmi = dataset.getFileMetaInfo();
+			tsuid = (fmi != null) ? fmi.getTransferSyntaxUID() : UIDs.ImplicitVRLittleEndian;
+			isImage = (parser.getReadTag() == Tags.PixelData);
+		}
+		catch (Exception ex) {
+			close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Wrap a dataset that has already been parsed, so the filter can be
+	 * applied to it.
+	 * @param dataset the dataset, without the pixel data
+	 * @param isImage true if the object contained a pixel data element
+	 */
+	public DicomHeader(Dataset dataset, boolean isImage) {
+		this.dataset = dataset;
+		this.isImage = isImage;
+		FileMetaInfo fmi = dataset.getFileMetaInfo();
+		tsuid = (fmi != null) ? fmi.getTransferSyntaxUID() : UIDs.ImplicitVRLittleEndian;
+	}
+
+	/**
+	 * Get the file.
+	 * @return the file from which the header was read, or null if the
+	 * header was created from a dataset.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Get the dataset of the header.
+	 * @return the elements that precede the stop tag.
+	 */
+	public Dataset getDataset() {
+		return dataset;
+	}
+
+	/**
+	 * Get the transfer syntax of the dataset.
+	 * @return the TransferSyntaxUID from the File Meta Information, or the
+	 * UID of Implicit VR Little Endian if the file has none.
+	 */
+	public String getTransferSyntaxUID() {
+		return tsuid;
+	}
+
+	//Get the parser, positioned at the stop tag.
+	DcmParser getParser() {
+		return parser;
+	}
+
+	//Get the channel of the file, for positioned reads. The parser's
+	//stream position is the offset in the file of the data that follows
+	//the header of the stop tag element.
+	FileChannel getChannel() {
+		return fis.getChannel();
+	}
+
+	/**
+	 * Get the value of an element.
+	 * @param tag the tag of the element
+	 * @return the trimmed value, or the empty string if the element is missing.
+	 */
+	public String getString(int tag) {
+		String[] s = dataset.getStrings(tag);
+		if (s == null) return "";
+		StringBuffer sb = new StringBuffer();
+		for (int i=0; i<s.length; i++) {
+			if (i > 0) sb.append("\\");
+			sb.append(s[i]);
+		}
+		return sb.toString().trim();
+	}
+
+	/**
+	 * Determine whether the object is an image.
+	 * @return true if the header was read up to the pixel data and the
+	 * pixel data element was found.
+	 */
+	public boolean isImage() {
+		return isImage;
+	}
+
+	/**
+	 * Determine whether the object is a structured report.
+	 * @return true if the SOPClassUID is a structured report SOP class.
+	 */
+	public boolean isSR() {
+		return SopClass.isSR(getString(Tags.SOPClassUID));
+	}
+
+	/**
+	 * Determine whether the object is a secondary capture.
+	 * @return true if the ImageType contains SECONDARY.
+	 */
+	public boolean isSecondaryCapture() {
+		return getString(Tags.ImageType).toUpperCase().contains("SECONDARY");
+	}
+
+	/**
+	 * Determine whether the object is a reformatted image.
+	 * @return true if the ImageType contains REFORMATTED.
+	 */
+	public boolean isReformatted() {
+		return getString(Tags.ImageType).toUpperCase().contains("REFORMATTED");
+	}
+
+	/**
+	 * Determine whether the object matches a filter script. The script is
+	 * evaluated against the elements of the header, and the elements of the
+	 * File Meta Information, if any, so elements following the stop tag
+	 * cannot be tested.
+	 * @param script the filter script
+	 * @return true if the script is empty or the object matches it;
+	 * false if the object does not match or the script cannot be evaluated.
+	 */
+	public boolean matches(String script) {
+		if (script.trim().length() == 0) return true;
+		try {
+			FileMetaInfo fmi = dataset.getFileMetaInfo();
+			if (fmi == null) fmi = oFact.newFileMetaInfo(dataset, tsuid);
+			return HeaderMatcher.getInstance().matches(fmi, dataset, script);
+		}
+		catch (Exception ex) { return false; }
+	}
+
+	/**
+	 * Close the file. The dataset remains available.
+	 */
+	public void close() {
+		FileUtil.close(in);
+	}
+
+	//A DicomObject that evaluates filter scripts against the dataset of a
+	//header. The DicomObject's script engine reads the values of elements
+	//with getElementValue, so the matcher overrides it to read them from
+	//the header. A DicomObject can only be constructed from a file, so the
+	//matcher is constructed once, from a minimal object in a temporary file,
+	//and calls are synchronized on it.
+	static class HeaderMatcher extends DicomObject {
+
+		static HeaderMatcher matcher = null;
+
+		FileMetaInfo fmi = null;
+		Dataset ds = null;
+
+		static synchronized HeaderMatcher getInstance() throws Exception {
+			if (matcher == null) {
+				File file = File.createTempFile("matcher-", ".dcm");
+				try {
+					Dataset ds = oFact.newDataset();
+					ds.putUI(Tags.SOPClassUID, UIDs.SecondaryCaptureImageStorage);
+					ds.putUI(Tags.SOPInstanceUID, "1.2.3");
+					ds.setFileMetaInfo(oFact.newFileMetaInfo(ds, UIDs.ExplicitVRLittleEndian));
+					OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+					try { ds.writeFile(out, DcmEncodeParam.valueOf(UIDs.ExplicitVRLittleEndian)); }
+					finally { out.close(); }
+					matcher = new HeaderMatcher(file);
+				}
+				finally { file.delete(); }
+			}
+			return matcher;
+		}
+
+		HeaderMatcher(File file) throws Exception {
+			super(file);
+		}
+
+		synchronized boolean matches(FileMetaInfo fmi, Dataset ds, String script) {
+			this.fmi = fmi;
+			this.ds = ds;
+			try { return matches(script); }
+			finally {
+				this.fmi = null;
+				this.ds = null;
+			}
+		}
+
+		public String getElementValue(String name) {
+			return getElementValue(name, "");
+		}
+
+		public String getElementValue(String name, String defaultValue) {
+			String value = DicomObject.getElementValue(fmi, ds, name, null);
+			return (value == null) ? defaultValue : value;
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/*---------------------------------------------------------------
+*  Copyright 2020 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.anonymizer;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedList;
+import org.apache.log4j.Logger;
+import org.rsna.util.FileUtil;
+
+/**
+ * A durable FIFO queue of files stored in a single directory.
+ * Files are handed off between stages by renaming them, so the
+ * directory containing a file to be enqueued must be on the same
+ * filesystem as the queue directory. If a rename fails, the file
+ * is copied instead.
+ */
+public class FileQueue {
+
+	static final Logger logger = Logger.getLogger(FileQueue.class);
+
+	File queueDir;
+	File activeDir;
+	LinkedList<File> files = new LinkedList<File>();
+	long sequence = 0;
+
+	/**
+	 * Class constructor; loads the files already in the queue directory.
+	 * Files left in the active directory by a previous run, and files
+	 * in subdirectories of the queue directory (the layout used by the
+	 * QueueManager), are moved back into the queue.
+	 * @param queueDir the directory holding the queued files
+	 * @param activeDir the directory into which files are moved when they are dequeued
+	 */
+	public FileQueue(File queueDir, File activeDir) {
+		this.queueDir = queueDir;
+		this.activeDir = activeDir;
+		queueDir.mkdirs();
+		activeDir.mkdirs();
+		File[] queued = queueDir.listFiles();
+		Arrays.sort(queued);
+		for (File file : queued) {
+			if (file.isFile()) {
+				files.add(file);
+				sequence = Math.max(sequence, getSequence(file) + 1);
+			}
+		}
+		for (File file : queued) {
+			if (file.isDirectory()) {
+				enqueueTree(file);
+				FileUtil.deleteAll(file);
+			}
+		}
+		for (File file : activeDir.listFiles()) {
+			if (file.isFile()) enqueue(file);
+		}
+		if (files.size() > 0) logger.info(files.size() + " files found in the queue");
+	}
+
+	/**
+	 * Get the number of files in the queue.
+	 * @return the number of files in the queue.
+	 */
+	public synchronized int size() {
+		return files.size();
+	}
+
+	/**
+	 * Move a file into the queue and wake up a thread waiting in dequeue.
+	 * @param file the file to enqueue
+	 * @return the file in the queue, or null if the file could not be enqueued
+	 */
+	public synchronized File enqueue(File file) {
+		if ((file == null) || !file.isFile()) return null;
+		String name = file.getName();
+		if (getSequence(file) >= 0) name = name.substring(name.indexOf("-") + 1);
+		File queuedFile = new File(queueDir, String.format("%012d-%s", sequence++, name));
+		if (!move(file, queuedFile)) {
+			logger.warn("Unable to enqueue "+file);
+			return null;
+		}
+		files.add(queuedFile);
+		notify();
+		return queuedFile;
+	}
+
+	/**
+	 * Remove the first file from the queue and move it to the active directory,
+	 * waiting if necessary until a file is enqueued.
+	 * @return the file in the active directory, or null if the wait was interrupted
+	 */
+	public synchronized File dequeue() {
+		while (true) {
+			while (files.size() == 0) {
+				try { wait(); }
+				catch (InterruptedException ex) { return null; }
+			}
+			File queuedFile = files.removeFirst();
+			File activeFile = new File(activeDir, queuedFile.getName());
+			if (move(queuedFile, activeFile)) return activeFile;
+			logger.warn("Unable to dequeue "+queuedFile);
+		}
+	}
+
+	//Enqueue the files in a directory tree, in name order.
+	private void enqueueTree(File dir) {
+		File[] children = dir.listFiles();
+		Arrays.sort(children);
+		for (File child : children) {
+			if (child.isDirectory()) enqueueTree(child);
+			else enqueue(child);
+		}
+	}
+
+	//Get the sequence number from the name of a queued file.
+	private long getSequence(File file) {
+		String name = file.getName();
+		int k = name.indexOf("-");
+		try { return Long.parseLong(name.substring(0, k)); }
+		catch (Exception notQueued) { return -1; }
+	}
+
+	//Rename a file, falling back to copy and delete
+	//if the rename is not possible.
+	static boolean move(File from, File to) {
+		if (to.exists()) to.delete();
+		if (from.renameTo(to)) return true;
+		if (FileUtil.copy(from, to)) {
+			from.delete();
+			return true;
+		}
+		return false;
+	}
+}
@@ -8,16 +8,52 @@
 package org.rsna.anonymizer;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
-import jdbm.RecordManager;
-import jdbm.htree.HTree;
-import jdbm.helper.FastIterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.apache.log4j.Logger;
-import org.rsna.util.JdbmUtil;
+import org.rsna.util.StringUtil;
 
 /**
  * An index of patients, containing PHI and anonymized values for PatientName and PatientID.
+ * <p>
+ * Each study is stored as its own record in the studyIndex table, keyed by
+ * PHI PatientID, StudyDate and AccessionNumber, so the studies of a patient
+ * are a contiguous range of keys. Indexes created by earlier versions, which
+ * stored all the studies of a patient in one StudyIndexEntry in the
+ * fwdStudyIndex table, are migrated when the index is opened.
+ * <p>
+ * The patientNameIndex table orders the patients by anonymized PatientName
+ * (and anonymized PatientID, to make the keys unique), so the patient list
+ * can be read a page at a time without loading the whole index. It is
+ * built when an index without it, or with keys in an older format, is opened.
+ * <p>
+ * Changes to the index are committed in groups: a commit is done when
+ * the number of uncommitted changes reaches indexCommitOps (default 500)
+ * or when the oldest uncommitted change is indexCommitInterval ms old
+ * (default 200). Both values can be set in the program.properties file.
+ * Use afterCommit to take an action once the current changes are durable.
+ * <p>
+ * Access to the index is controlled by a read/write lock, so lookups run
+ * concurrently with each other and are only excluded while an entry is
+ * being written or the index is being committed.
+ * <p>
+ * The backup method writes a point-in-time copy of the index to a new
+ * store while the index is in use. The tables are copied in short batches
+ * under the read lock while the keys of all changes are journaled; writes
+ * are paused only while the journaled keys are copied again at the end.
+ * <p>
+ * The tables are kept in an IndexStore. The indexStore property in the
+ * program.properties file selects the implementation: jdbm (the default)
+ * keeps them in a JDBM database; log keeps them in memory with an
+ * append-only log (see LogIndexStore). When the selected store does not
+ * exist but an index of the other type does, the index is migrated.
  */
 public class Index {
 
@@ -25,11 +61,42 @@ public class Index {
 	static Index instance = null;
 
 	//Note: fwd means that the key is PHI; inv means the key is anonymized.
-    RecordManager recman = null;
-    public HTree fwdPatientIndex = null;
-    public HTree invPatientIndex = null;
-    public HTree fwdStudyIndex = null;
-    public HTree uidIndex = null;
+    IndexStore store = null;
+    String storeType = IndexStore.JDBM;
+    public IndexStore.Table fwdPatientIndex = null;
+    public IndexStore.Table invPatientIndex = null;
+    public IndexStore.Table fwdStudyIndex = null;
+    public IndexStore.Table uidIndex = null;
+    public IndexStore.Table studyIndex = null;
+    public IndexStore.Table patientNameIndex = null;
+
+    //The names of the tables, in the order of getTables
+    static final String[] hashTables = { "fwdPatientIndex", "invPatientIndex", "fwdStudyIndex", "uidIndex" };
+    static final String[] sortedTables = { "studyIndex", "patientNameIndex" };
+    
+    //Write-through caches in front of the tables
+    IndexCache fwdPatientCache = null;
+    IndexCache invPatientCache = null;
+    IndexCache studyCache = null;
+    IndexCache uidCache = null;
+    int cacheSize = 10000;
+    String indexPath = null;
+    static final int backupBatchSize = 1000;
+    static final int backupRounds = 5;
+    static final int lookupBatchSize = 1000;
+    static final String nameKeySeparator = "\u0000";
+    
+    //Keys written to the patientNameIndex while a backup is running
+    HashSet<Object> nameJournal = null;
+    
+    int commitOps = 500;
+    long commitInterval = 200;
+    int pendingOps = 0;
+    long firstPendingTime = 0;
+    LinkedList<Runnable> commitListeners = new LinkedList<Runnable>();
+    
+    //The lock is fair so a stream of lookups cannot starve the writers.
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
     
 	/**
 	 * Get the singleton instance of the index.
@@ -45,32 +112,126 @@ public class Index {
 	protected Index() {
 		File databaseDir = Configuration.getInstance().getDatabaseDir();
 		File indexFile = new File(databaseDir, "index");
+		Properties props = Configuration.getInstance().getProps();
+		commitOps = Math.max(1, StringUtil.getInt(props.getProperty("indexCommitOps"), commitOps));
+		commitInterval = Math.max(1, StringUtil.getInt(props.getProperty("indexCommitInterval"), (int)commitInterval));
+		cacheSize = Math.max(1, StringUtil.getInt(props.getProperty("indexCacheSize"), cacheSize));
+		storeType = IndexStore.getType(props.getProperty("indexStore"));
+		int checkpointSize = StringUtil.getInt(props.getProperty("indexCheckpointSize"), 0);
+		if (checkpointSize > 0) LogIndexStore.checkpointSize = checkpointSize * 1024L * 1024L;
 		getIndex(indexFile.getPath());
+		new CommitThread().start();
 	}
 
 	/**
 	 * Commit the index.
 	 */
-	public synchronized void commit() {
-		if (recman != null) {
-			try { recman.commit(); }
-			catch (Exception ex) { }
+	public void commit() {
+		LinkedList<Runnable> listeners;
+		lock.writeLock().lock();
+		try { listeners = commitPending(); }
+		finally { lock.writeLock().unlock(); }
+		runCommitListeners(listeners);
+	}
+	
+	/**
+	 * Run an action when the changes made to the index so far have been
+	 * committed. If there are no uncommitted changes, the action is run
+	 * immediately on the calling thread; otherwise, it is run on the thread
+	 * that does the next commit.
+	 * @param r the action
+	 */
+	public void afterCommit(Runnable r) {
+		lock.writeLock().lock();
+		try {
+			if (pendingOps > 0) {
+				commitListeners.add(r);
+				return;
+			}
+		}
+		finally { lock.writeLock().unlock(); }
+		r.run();
+	}
+	
+	//Record a change to the index and commit if a threshold has been
+	//reached. This method must be called while holding the write lock. It
+	//returns the list of commit listeners to be run after releasing
+	//the lock, or null if no commit was done.
+	private LinkedList<Runnable> changed() {
+		long now = System.currentTimeMillis();
+		if (pendingOps == 0) firstPendingTime = now;
+		pendingOps++;
+		if ((pendingOps >= commitOps) || (now - firstPendingTime >= commitInterval)) {
+			return commitPending();
+		}
+		return null;
+	}
+	
+	//Commit the index. This method must be called while holding the write lock.
+	//It returns the list of commit listeners to be run after releasing the lock,
+	//or null if the commit failed. After a failure, the changes are still pending
+	//and the listeners are kept, so the next commit retries and runs them.
+	private LinkedList<Runnable> commitPending() {
+		if (store != null) {
+			try { store.commit(); }
+			catch (Exception ex) {
+				logger.warn("Unable to commit the index", ex);
+				return null;
+			}
+		}
+		pendingOps = 0;
+		LinkedList<Runnable> listeners = commitListeners;
+		commitListeners = new LinkedList<Runnable>();
+		return listeners;
+	}
+	
+	private void runCommitListeners(LinkedList<Runnable> listeners) {
+		if (listeners == null) return;
+		for (Runnable r : listeners) {
+			try { r.run(); }
+			catch (Exception ex) { logger.warn("Exception in a commit listener", ex); }
+		}
+	}
+	
+	//Commit changes that have been waiting for longer than the commit
+	//interval, so the last changes of a burst are not left uncommitted.
+	class CommitThread extends Thread {
+		public CommitThread() {
+			super("IndexCommitThread");
+			setDaemon(true);
+		}
+		public void run() {
+			while (true) {
+				try { sleep(commitInterval); }
+				catch (Exception ignore) { }
+				LinkedList<Runnable> listeners = null;
+				lock.writeLock().lock();
+				try {
+					if ((pendingOps > 0) && (System.currentTimeMillis() - firstPendingTime >= commitInterval)) {
+						listeners = commitPending();
+					}
+				}
+				finally { lock.writeLock().unlock(); }
+				runCommitListeners(listeners);
+			}
 		}
 	}
 
 	/**
 	 * Commit and close the index.
 	 */
-	public synchronized void close() {
-		if (recman != null) {
-			try {
-				recman.commit();
-				recman.close();
-			}
-			catch (Exception ex) {
-				logger.debug("Unable to commit and close the index");
+	public void close() {
+		LinkedList<Runnable> listeners;
+		lock.writeLock().lock();
+		try {
+			listeners = commitPending();
+			if (store != null) {
+				logger.info("Index cache statistics:\n"+getCacheStatistics());
+				store.close();
 			}
 		}
+		finally { lock.writeLock().unlock(); }
+		runCommitListeners(listeners);
 	}
 
 	/**
@@ -80,17 +241,37 @@ public class Index {
 	 * @param anonPtName the anonymized patient name
 	 * @param anonPtID the anonymized patient ID
 	 */
-	public synchronized void addPatient(String origPtName, String origPtID, String anonPtName, String anonPtID) {
+	public void addPatient(String origPtName, String origPtID, String anonPtName, String anonPtID) {
+		PatientIndexEntry fwdEntry = new PatientIndexEntry(origPtID, anonPtName, anonPtID);
+		PatientIndexEntry invEntry = new PatientIndexEntry(anonPtID, origPtName, origPtID);
+		if (isCurrent(fwdPatientCache, fwdEntry.key.toLowerCase(), fwdEntry)
+				&& isCurrent(invPatientCache, invEntry.key.toLowerCase(), invEntry)) return;
+		LinkedList<Runnable> listeners = null;
+		boolean changed = false;
+		lock.writeLock().lock();
 		try {
-			PatientIndexEntry fwdEntry = new PatientIndexEntry(origPtID, anonPtName, anonPtID);
-			PatientIndexEntry invEntry = new PatientIndexEntry(anonPtID, origPtName, origPtID);
-			fwdPatientIndex.put(fwdEntry.key.toLowerCase(), fwdEntry);
-			invPatientIndex.put(invEntry.key.toLowerCase(), invEntry);
-			commit();
+			PatientIndexEntry oldFwdEntry = (PatientIndexEntry)fwdPatientCache.get(fwdEntry.key.toLowerCase());
+			boolean fwdChanged = fwdPatientCache.put(fwdEntry.key.toLowerCase(), fwdEntry);
+			boolean invChanged = invPatientCache.put(invEntry.key.toLowerCase(), invEntry);
+			if (fwdChanged || invChanged) {
+				if (oldFwdEntry != null) {
+					String oldKey = getNameKey(oldFwdEntry.name, oldFwdEntry.id);
+					patientNameIndex.remove(oldKey);
+					if (nameJournal != null) nameJournal.add(oldKey);
+				}
+				String nameKey = getNameKey(anonPtName, anonPtID);
+				patientNameIndex.put(nameKey, anonPtID.toLowerCase());
+				if (nameJournal != null) nameJournal.add(nameKey);
+				listeners = changed();
+				changed = true;
+			}
 		}
 		catch (Exception ex) {
 			logger.warn("Unable to access the patient indexes.");
 		}
+		finally { lock.writeLock().unlock(); }
+		if (changed) PatientSearchIndex.getInstance().add(invEntry, fwdEntry);
+		runCommitListeners(listeners);
 	}
 	
 	/**
@@ -101,18 +282,20 @@ public class Index {
 	 * @param anonStudyDate the anonymized study date
 	 * @param anonAccessionNumber the anonymized accession number
 	 */
-	public synchronized void addStudy(String origPtID, String origStudyDate, String origAccessionNumber, String anonStudyDate, String anonAccessionNumber) {
+	public void addStudy(String origPtID, String origStudyDate, String origAccessionNumber, String anonStudyDate, String anonAccessionNumber) {
+		Study study = new Study(origStudyDate, origAccessionNumber, anonStudyDate, anonAccessionNumber);
+		String key = getStudyKey(origPtID, study);
+		if (isCurrent(studyCache, key, study)) return;
+		LinkedList<Runnable> listeners = null;
+		lock.writeLock().lock();
 		try {
-			StudyIndexEntry entry = (StudyIndexEntry) fwdStudyIndex.get(origPtID);
-			if (entry == null) entry = new StudyIndexEntry(origPtID);
-			Study study = new Study(origStudyDate, origAccessionNumber, anonStudyDate, anonAccessionNumber);
-			entry.add(study);
-			fwdStudyIndex.put(origPtID, entry);
-			commit();
+			if (studyCache.put(key, study)) listeners = changed();
 		}
 		catch (Exception ex) {
 			logger.warn("Unable to access the study index.");
 		}
+		finally { lock.writeLock().unlock(); }
+		runCommitListeners(listeners);
 	}
 	
 	/**
@@ -123,16 +306,44 @@ public class Index {
 	 * @param origStudyInstanceUID the PHI study instance UID
 	 * @param anonStudyInstanceUID the anonymized study instance UID
 	 */
-	public synchronized void addStudyInstanceUID(String ptID, String studyDate, String accessionNumber, String origStudyInstanceUID, String anonStudyInstanceUID) {
+	public void addStudyInstanceUID(String ptID, String studyDate, String accessionNumber, String origStudyInstanceUID, String anonStudyInstanceUID) {
+		String key = ptID + "|" + studyDate + "|" + accessionNumber;
+		UIDIndexEntry entry = new UIDIndexEntry(origStudyInstanceUID, anonStudyInstanceUID);
+		if (isCurrent(uidCache, key, entry)) return;
+		LinkedList<Runnable> listeners = null;
+		lock.writeLock().lock();
 		try {
-			String key = ptID + "|" + studyDate + "|" + accessionNumber;
-			UIDIndexEntry entry = new UIDIndexEntry(origStudyInstanceUID, anonStudyInstanceUID);
-			uidIndex.put(key, entry);
-			commit();
+			if (uidCache.put(key, entry)) listeners = changed();
 		}
 		catch (Exception ex) {
 			logger.warn("Unable to access the UID index.");
 		}
+		finally { lock.writeLock().unlock(); }
+		runCommitListeners(listeners);
+	}
+	
+	//Determine whether an entry is already in the index with the same value.
+	//This is checked under the read lock, so the updates made for every
+	//object of a study after the first do not contend for the write lock.
+	private boolean isCurrent(IndexCache cache, String key, Object value) {
+		if (cache == null) return false;
+		lock.readLock().lock();
+		try { return value.equals(cache.get(key)); }
+		catch (Exception ex) { return false; }
+		finally { lock.readLock().unlock(); }
+	}
+	
+	//Get the key of a patient in the patient name index. The separator
+	//sorts before every character, so a name sorts before the longer
+	//names that start with it.
+	static String getNameKey(String anonPtName, String anonPtID) {
+		return anonPtName + nameKeySeparator + anonPtID;
+	}
+	
+	//Get the key of a study in the study index. The key starts with
+	//the PHI PatientID so the studies of a patient are adjacent.
+	private static String getStudyKey(String origPtID, Study study) {
+		return origPtID + "|" + study.phiDate + "|" + study.phiAccession;
 	}
 	
 	/**
@@ -142,12 +353,14 @@ public class Index {
 	 * @param accessionNumber the accession number (anon)
 	 * @return the UIDIndex entry
 	 */
-	public synchronized UIDIndexEntry getUIDIndexEntry(String ptID, String studyDate, String accessionNumber) {
+	public UIDIndexEntry getUIDIndexEntry(String ptID, String studyDate, String accessionNumber) {
+		lock.readLock().lock();
 		try {
 			String key = ptID + "|" + studyDate + "|" + accessionNumber;
-			return (UIDIndexEntry)uidIndex.get(key);
+			return (UIDIndexEntry)uidCache.get(key);
 		}
 		catch (Exception ex) { return null; }
+		finally { lock.readLock().unlock(); }
 	}
 	
 	/**
@@ -156,9 +369,11 @@ public class Index {
 	 * @param key the anonymized PatientID
 	 * @return the PHI PatientIndexEntry corresponding to the anonymized PtName.
 	 */
-	public synchronized PatientIndexEntry getInvEntry(String key) {
-		try { return (PatientIndexEntry)invPatientIndex.get(key.toLowerCase()); }
+	public PatientIndexEntry getInvEntry(String key) {
+		lock.readLock().lock();
+		try { return (PatientIndexEntry)invPatientCache.get(key.toLowerCase()); }
 		catch (Exception ex) { return null; }
+		finally { lock.readLock().unlock(); }
 	}
 	
 	/**
@@ -167,9 +382,11 @@ public class Index {
 	 * @param key the PHI PatientID
 	 * @return the anonymized PatientIndexEntry corresponding to the PHI PtName.
 	 */
-	public synchronized PatientIndexEntry getFwdEntry(String key) {
-		try { return (PatientIndexEntry)fwdPatientIndex.get(key.toLowerCase()); }
+	public PatientIndexEntry getFwdEntry(String key) {
+		lock.readLock().lock();
+		try { return (PatientIndexEntry)fwdPatientCache.get(key.toLowerCase()); }
 		catch (Exception ex) { return null; }
+		finally { lock.readLock().unlock(); }
 	}
 	
 	/**
@@ -177,38 +394,250 @@ public class Index {
 	 * @param key the PHI PatientID
 	 * @return the study index entry for the PHI PatientID
 	 */
-	public synchronized StudyIndexEntry getFwdStudyEntry(String key) {
-		try { return (StudyIndexEntry)fwdStudyIndex.get(key.toLowerCase()); }
-		catch (Exception ex) { return null; }
+	public StudyIndexEntry getFwdStudyEntry(String key) {
+		key = key.toLowerCase();
+		Study[] studies = listStudiesFor(key);
+		if (studies.length == 0) return null;
+		StudyIndexEntry entry = new StudyIndexEntry(key);
+		for (Study study : studies) entry.add(study);
+		return entry;
+	}
+
+	/**
+	 * Get many entries from the forward patient index.
+	 * @param keys the PHI PatientIDs
+	 * @return the anonymized PatientIndexEntries, in the order of the keys;
+	 * null for the keys that are not in the index.
+	 */
+	public PatientIndexEntry[] getFwdEntries(String[] keys) {
+		PatientIndexEntry[] entries = new PatientIndexEntry[keys.length];
+		lookup(fwdPatientIndex, toLowerCase(keys), entries);
+		return entries;
+	}
+
+	/**
+	 * Get many entries from the inverse patient index.
+	 * @param keys the anonymized PatientIDs
+	 * @return the PHI PatientIndexEntries, in the order of the keys;
+	 * null for the keys that are not in the index.
+	 */
+	public PatientIndexEntry[] getInvEntries(String[] keys) {
+		PatientIndexEntry[] entries = new PatientIndexEntry[keys.length];
+		lookup(invPatientIndex, toLowerCase(keys), entries);
+		return entries;
+	}
+
+	/**
+	 * Get many entries from the study UID index. The arrays must have the same length.
+	 * @param ptIDs the anonymized PatientIDs
+	 * @param studyDates the anonymized study dates
+	 * @param accessionNumbers the anonymized accession numbers
+	 * @return the UIDIndexEntries, in the order of the keys; null for the
+	 * keys that are not in the index.
+	 */
+	public UIDIndexEntry[] getUIDIndexEntries(String[] ptIDs, String[] studyDates, String[] accessionNumbers) {
+		String[] keys = new String[ptIDs.length];
+		for (int i=0; i<keys.length; i++) {
+			if (ptIDs[i] != null) keys[i] = ptIDs[i] + "|" + studyDates[i] + "|" + accessionNumbers[i];
+		}
+		UIDIndexEntry[] entries = new UIDIndexEntry[keys.length];
+		lookup(uidIndex, keys, entries);
+		return entries;
+	}
+
+	/**
+	 * Get many studies from the study index. The arrays must have the same length.
+	 * @param origPtIDs the PHI PatientIDs
+	 * @param origStudyDates the PHI study dates
+	 * @param origAccessionNumbers the PHI accession numbers
+	 * @return the Studies, in the order of the keys; null for the
+	 * keys that are not in the index.
+	 */
+	public Study[] getStudies(String[] origPtIDs, String[] origStudyDates, String[] origAccessionNumbers) {
+		String[] keys = new String[origPtIDs.length];
+		for (int i=0; i<keys.length; i++) {
+			if (origPtIDs[i] != null) keys[i] = origPtIDs[i] + "|" + origStudyDates[i] + "|" + origAccessionNumbers[i];
+		}
+		Study[] studies = new Study[keys.length];
+		lookup(studyIndex, keys, studies);
+		return studies;
+	}
+
+	//Look up many keys in a table. The keys are sorted, so the lookups in
+	//a sorted table move through it in order and duplicate keys are read
+	//only once. The lookups are done in batches, each under the read lock,
+	//and directly in the table, so a bulk lookup does not displace the
+	//entries in the caches. Null keys and unreadable entries give null values.
+	private void lookup(IndexStore.Table table, final String[] keys, Object[] values) {
+		Integer[] order = new Integer[keys.length];
+		int count = 0;
+		for (int i=0; i<keys.length; i++) {
+			if (keys[i] != null) order[count++] = i;
+		}
+		Arrays.sort(order, 0, count, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return keys[a].compareTo(keys[b]);
+			}
+		});
+		int i = 0;
+		while (i < count) {
+			lock.readLock().lock();
+			try {
+				for (int n=0; (n<lookupBatchSize) && (i<count); n++, i++) {
+					int k = order[i];
+					if ((i > 0) && keys[k].equals(keys[order[i-1]])) values[k] = values[order[i-1]];
+					else {
+						try { values[k] = IndexSerializer.toEntry(table.get(keys[k])); }
+						catch (Exception ex) { values[k] = null; }
+					}
+				}
+			}
+			finally { lock.readLock().unlock(); }
+		}
+	}
+
+	private static String[] toLowerCase(String[] keys) {
+		String[] lc = new String[keys.length];
+		for (int i=0; i<keys.length; i++) {
+			if (keys[i] != null) lc[i] = keys[i].toLowerCase();
+		}
+		return lc;
+	}
+
+	/**
+	 * Get the number of patients in the index.
+	 * @return the number of patients.
+	 */
+	public int getPatientCount() {
+		lock.readLock().lock();
+		try { return patientNameIndex.size(); }
+		catch (Exception ex) { return 0; }
+		finally { lock.readLock().unlock(); }
 	}
 
 	/**
 	 * List the entries in the index, in alphabetical order by anonymized PatientName.
 	 * The array consists of pairs of IndexEntries, inv[0], fwd[0], inv[1], fwd[1], etc.
+	 * The index is read a page at a time, so writers are not held off for the
+	 * whole listing. Entries added while the listing is in progress may not
+	 * appear in it.
 	 */
-	public synchronized PatientIndexEntry[] listPatientIndex() {
-		try {
-			FastIterator fit = invPatientIndex.keys();
-			LinkedList<PatientIndexEntry> list = new LinkedList<PatientIndexEntry>();
-			Object key;
-			while ( (key=fit.next()) != null ) {
-				list.add( getInvEntry( (String)key) );
-			}
-			PatientIndexEntry[] entries = new PatientIndexEntry[list.size()];
-			entries = list.toArray(entries);
-			Arrays.sort(entries);
-			PatientIndexEntry[] invfwd = new PatientIndexEntry[2*entries.length];
-			for (int i=0; i<entries.length; i++) {
-				invfwd[2*i] = entries[i];
-				invfwd[2*i+1] = getFwdEntry(entries[i].id);
-			}
-			return invfwd;
+	public PatientIndexEntry[] listPatientIndex() {
+		LinkedList<PatientIndexEntry> list = new LinkedList<PatientIndexEntry>();
+		PatientCursor cursor = getPatientCursor();
+		PatientIndexEntry[] page;
+		while ( (page=cursor.next(1000)).length > 0 ) {
+			for (PatientIndexEntry entry : page) list.add(entry);
 		}
-		catch (Exception ex) { 
-			ex.printStackTrace();
-			return new PatientIndexEntry[0];
+		return list.toArray(new PatientIndexEntry[list.size()]);
+	}
+
+	/**
+	 * Get a cursor for reading the patient list in order, a page at a time.
+	 * @return a cursor positioned before the first patient.
+	 */
+	public PatientCursor getPatientCursor() {
+		return new PatientCursor(null);
+	}
+
+	/**
+	 * Get a cursor for reading the patient list in order, a page at a time,
+	 * starting after a patient.
+	 * @param lastKey the key of a patient, as returned by PatientCursor.getKey(),
+	 * or null to start at the beginning of the list
+	 * @return a cursor positioned after the patient.
+	 */
+	public PatientCursor getPatientCursor(String lastKey) {
+		return new PatientCursor(lastKey);
+	}
+
+	/**
+	 * A position in the patient list. A cursor remembers the key of the last
+	 * patient returned, so it remains valid when the index changes between pages.
+	 */
+	public class PatientCursor {
+		String lastKey;
+
+		PatientCursor(String lastKey) {
+			this.lastKey = lastKey;
+		}
+
+		/**
+		 * Get the key of the last patient returned or skipped. A cursor
+		 * obtained with this key starts after that patient.
+		 * @return the key, or null if the cursor is at the beginning of the list.
+		 */
+		public String getKey() {
+			return lastKey;
+		}
+
+		/**
+		 * Get the next page of the patient list.
+		 * @param count the maximum number of patients in the page
+		 * @return the pairs of entries (as in listPatientIndex()) for the
+		 * patients in the page; an empty array at the end of the list.
+		 */
+		public PatientIndexEntry[] next(int count) {
+			lock.readLock().lock();
+			try {
+				IndexStore.Cursor cursor = patientNameIndex.browse(lastKey);
+				String[] last = new String[1];
+				PatientIndexEntry[] page = getPage(cursor, lastKey, count, last);
+				if (last[0] != null) lastKey = last[0];
+				return page;
+			}
+			catch (Exception ex) {
+				logger.warn("Unable to list the patient index", ex);
+				return new PatientIndexEntry[0];
+			}
+			finally { lock.readLock().unlock(); }
+		}
+
+		/**
+		 * Move past patients in the patient list without loading their entries.
+		 * @param count the maximum number of patients to skip
+		 * @return the number of patients skipped; less than count at the end
+		 * of the list.
+		 */
+		public int skip(int count) {
+			lock.readLock().lock();
+			try {
+				IndexStore.Cursor cursor = patientNameIndex.browse(lastKey);
+				int n = 0;
+				while ((n < count) && cursor.next()) {
+					String key = (String)cursor.getKey();
+					if (key.equals(lastKey)) continue;
+					lastKey = key;
+					n++;
+				}
+				return n;
+			}
+			catch (Exception ex) {
+				logger.warn("Unable to list the patient index", ex);
+				return 0;
+			}
+			finally { lock.readLock().unlock(); }
 		}
 	}
+
+	//Read a page of the patient name index, skipping the key after which
+	//the page starts, and return the key of the last patient in lastKey[0].
+	//This method must be called while holding the read lock.
+	private PatientIndexEntry[] getPage(IndexStore.Cursor cursor, String afterKey, int count, String[] lastKey) throws Exception {
+		LinkedList<PatientIndexEntry> list = new LinkedList<PatientIndexEntry>();
+		int n = 0;
+		while ((n < count) && cursor.next()) {
+			String key = (String)cursor.getKey();
+			if (key.equals(afterKey)) continue;
+			lastKey[0] = key;
+			PatientIndexEntry inv = (PatientIndexEntry)invPatientCache.get((String)cursor.getValue());
+			if (inv == null) continue;
+			list.add(inv);
+			list.add( (PatientIndexEntry)fwdPatientCache.get(inv.id.toLowerCase()) );
+			n++;
+		}
+		return list.toArray(new PatientIndexEntry[list.size()]);
+	}
 	
 	/**
 	 * List the studies for a patient, in chronological order by original study date
@@ -216,10 +645,16 @@ public class Index {
 	 * @param origPatientID the PHI PatientID
 	 * @return the array of studies for the patient.
 	 */
-	public synchronized Study[] listStudiesFor(String origPatientID) {
+	public Study[] listStudiesFor(String origPatientID) {
+		lock.readLock().lock();
 		try {
-			StudyIndexEntry ie = (StudyIndexEntry)fwdStudyIndex.get(origPatientID);
-			Study[] studies = ie.studies.toArray(new Study[ie.studies.size()]);
+			String prefix = origPatientID + "|";
+			LinkedList<Study> list = new LinkedList<Study>();
+			IndexStore.Cursor cursor = studyIndex.browse(prefix);
+			while (cursor.next() && ((String)cursor.getKey()).startsWith(prefix)) {
+				list.add( (Study)IndexSerializer.toEntry(cursor.getValue()) );
+			}
+			Study[] studies = list.toArray(new Study[list.size()]);
 			Arrays.sort(studies);
 			return studies;
 		}
@@ -227,20 +662,339 @@ public class Index {
 			ex.printStackTrace();
 			return new Study[0];
 		}
+		finally { lock.readLock().unlock(); }
 	}
 
-	//Load the index HTrees
+	/**
+	 * Write a point-in-time copy of the index to a new store while the
+	 * index remains in use. The copy is made in batches, each under the read
+	 * lock, while the keys of all the entries written are journaled. The
+	 * journaled entries are copied again, also in batches, until few remain;
+	 * then writes are paused while the last ones are copied, so the copy is
+	 * the state of the index at that moment.
+	 * @param path the path of the new store, without extension
+	 * @return the time in ms for which writes were paused.
+	 * @throws Exception if the copy cannot be written.
+	 */
+	public long backup(String path) throws Exception {
+		return copy(path, false);
+	}
+
+	/**
+	 * Compact the index while it remains in use. The JDBM files only grow,
+	 * so an index whose entries have been rewritten many times is larger
+	 * than its content. The index is copied as by the backup method into
+	 * a new store, which replaces the index while writes are paused
+	 * at the end of the copy. A LogIndexStore is compacted instead by
+	 * writing a checkpoint, which replaces its logs; writes are paused
+	 * only while the log is switched to a new file.
+	 * @return the time in ms for which writes were paused.
+	 * @throws Exception if the index cannot be compacted. The index is
+	 * unchanged unless the exception occurs after the new store
+	 * has been installed.
+	 */
+	public long compact() throws Exception {
+		if (!(store instanceof LogIndexStore)) return copy(indexPath + "-compact", true);
+		LogIndexStore logStore = (LogIndexStore)store;
+		LinkedList<Runnable> listeners;
+		Thread checkpointer;
+		long pause;
+		lock.writeLock().lock();
+		long startTime = System.currentTimeMillis();
+		try {
+			listeners = commitPending();
+			checkpointer = logStore.checkpoint();
+		}
+		finally {
+			pause = System.currentTimeMillis() - startTime;
+			lock.writeLock().unlock();
+		}
+		runCommitListeners(listeners);
+		checkpointer.join();
+		if (logStore.checkpointError != null) {
+			throw new Exception("Unable to write the checkpoint", logStore.checkpointError);
+		}
+		return pause;
+	}
+
+	//Copy the index into a new store of the same type, and if replace
+	//is true, install the new store in place of the index.
+	private long copy(String path, boolean replace) throws Exception {
+		if (store == null) throw new Exception("The index is not open");
+		IndexStore.delete(storeType, path);
+		IndexCache[] caches = { fwdPatientCache, invPatientCache, uidCache, studyCache };
+		ArrayList<HashSet<Object>> keys = new ArrayList<HashSet<Object>>();
+		lock.writeLock().lock();
+		try {
+			for (IndexCache cache : caches) cache.startJournal();
+			nameJournal = new HashSet<Object>();
+		}
+		finally { lock.writeLock().unlock(); }
+
+		IndexStore copy = null;
+		long pause = 0;
+		try {
+			copy = IndexStore.open(storeType, path);
+			IndexStore.Table[] tables = getTables(copy);
+			copyTable(fwdPatientIndex, tables[0], false, copy);
+			copyTable(invPatientIndex, tables[1], false, copy);
+			copyTable(fwdStudyIndex, tables[2], false, copy);
+			copyTable(uidIndex, tables[3], false, copy);
+			copyTable(studyIndex, tables[4], true, copy);
+			copyTable(patientNameIndex, tables[5], true, copy);
+
+			//Copy the entries written during the copy until few are left
+			for (int round=0; round<backupRounds; round++) {
+				int count = 0;
+				lock.writeLock().lock();
+				try {
+					keys.clear();
+					for (IndexCache cache : caches) keys.add(cache.rotateJournal());
+					keys.add(nameJournal);
+					nameJournal = new HashSet<Object>();
+				}
+				finally { lock.writeLock().unlock(); }
+				for (HashSet<Object> k : keys) count += k.size();
+				copyJournaled(keys, tables, copy);
+				if (count < backupBatchSize) break;
+			}
+
+			//Pause the writers and copy the rest
+			lock.writeLock().lock();
+			long startTime = System.currentTimeMillis();
+			try {
+				keys.clear();
+				for (IndexCache cache : caches) keys.add(cache.stopJournal());
+				keys.add(nameJournal);
+				nameJournal = null;
+				copyJournaled(keys, tables, copy);
+				copy.commit();
+				if (replace) {
+					copy.close();
+					copy = null;
+					replace(path);
+				}
+			}
+			finally {
+				pause = System.currentTimeMillis() - startTime;
+				lock.writeLock().unlock();
+			}
+		}
+		finally {
+			//Stop the journals if the copy failed before the pause
+			if (nameJournal != null) {
+				lock.writeLock().lock();
+				try {
+					for (IndexCache cache : caches) cache.stopJournal();
+					nameJournal = null;
+				}
+				finally { lock.writeLock().unlock(); }
+			}
+			if (copy != null) copy.close();
+		}
+		return pause;
+	}
+
+	//Install a compacted copy of the index in place of the index. This
+	//method must be called while holding the write lock. The old index
+	//is kept until the copy has been opened.
+	private void replace(String path) throws Exception {
+		String oldPath = indexPath + "-old";
+		store.commit();
+		store.close();
+		store = null;
+		IndexStore.delete(storeType, oldPath);
+		if (!IndexStore.rename(storeType, indexPath, oldPath)) {
+			getIndex(indexPath);
+			throw new Exception("Unable to rename the index");
+		}
+		if (!IndexStore.rename(storeType, path, indexPath)) {
+			IndexStore.rename(storeType, oldPath, indexPath);
+			getIndex(indexPath);
+			throw new Exception("Unable to install the compacted index");
+		}
+		getIndex(indexPath);
+		if (store == null) throw new Exception("Unable to open the compacted index; the original is in "+oldPath);
+		IndexStore.delete(storeType, oldPath);
+	}
+
+	/**
+	 * Get the tables of a store, creating them if necessary, in the order of
+	 * the hashTables and sortedTables arrays: fwdPatientIndex, invPatientIndex,
+	 * fwdStudyIndex, uidIndex, studyIndex, patientNameIndex.
+	 * @param store the store
+	 * @return the tables.
+	 * @throws Exception if the tables cannot be obtained.
+	 */
+	static IndexStore.Table[] getTables(IndexStore store) throws Exception {
+		IndexStore.Table[] tables = new IndexStore.Table[hashTables.length + sortedTables.length];
+		int i = 0;
+		for (String name : hashTables) tables[i++] = store.getHashTable(name);
+		for (String name : sortedTables) tables[i++] = store.getSortedTable(name);
+		return tables;
+	}
+
+	//Copy the current values of journaled entries into a backup, in batches under the
+	//read lock. The keys are for the fwdPatientIndex, invPatientIndex, uidIndex,
+	//studyIndex and patientNameIndex, in that order.
+	private void copyJournaled(List<HashSet<Object>> keys, IndexStore.Table[] tables, IndexStore copy) throws Exception {
+		IndexStore.Table[] from = { fwdPatientIndex, invPatientIndex, uidIndex, studyIndex, patientNameIndex };
+		IndexStore.Table[] to = { tables[0], tables[1], tables[3], tables[4], tables[5] };
+		for (int i=0; i<keys.size(); i++) {
+			Iterator<Object> it = keys.get(i).iterator();
+			while (it.hasNext()) {
+				lock.readLock().lock();
+				try {
+					for (int n=0; (n<backupBatchSize) && it.hasNext(); n++) {
+						Object key = it.next();
+						Object value = from[i].get(key);
+						if (value != null) to[i].put(key, value);
+						else to[i].remove(key);
+					}
+				}
+				finally { lock.readLock().unlock(); }
+				copy.commit();
+			}
+		}
+	}
+
+	//Copy a table in batches, holding the read lock for each batch. Values are
+	//copied as stored. A sorted table is browsed again for each batch, starting
+	//at the last key copied. The cursor of a hash table is resumed for each
+	//batch; it can be, since the cursors of a JDBM HTree read all the keys when
+	//they are created and those of a LogIndexStore iterate over concurrent maps.
+	//Keys added or removed after the cursor was created may be missed or have
+	//null values, but every entry written during the copy is journaled and
+	//copied again (or removed from the copy) by the copy method.
+	private void copyTable(IndexStore.Table from, IndexStore.Table to, boolean sorted, IndexStore copy) throws Exception {
+		IndexStore.Cursor cursor = null;
+		Object lastKey = null;
+		boolean more = true;
+		while (more) {
+			lock.readLock().lock();
+			try {
+				if (sorted) cursor = from.browse(lastKey);
+				else if (cursor == null) cursor = from.keys();
+				int n = 0;
+				while (n < backupBatchSize) {
+					if (!cursor.next()) { more = false; break; }
+					Object key = cursor.getKey();
+					if (key.equals(lastKey)) continue;
+					lastKey = key;
+					Object value = cursor.getValue();
+					if (value != null) to.put(key, value);
+					n++;
+				}
+			}
+			finally { lock.readLock().unlock(); }
+			copy.commit();
+		}
+	}
+
+	/**
+	 * Get the statistics of the index caches, one line per cache.
+	 * The size of each cache is set by the indexCacheSize property
+	 * in the program.properties file (default 10000 entries).
+	 * @return the cache statistics.
+	 */
+	public String getCacheStatistics() {
+		if (store == null) return "";
+		return fwdPatientCache.getStatistics() + "\n"
+				+ invPatientCache.getStatistics() + "\n"
+				+ studyCache.getStatistics() + "\n"
+				+ uidCache.getStatistics();
+	}
+
+	//Open the index store and its tables. If the selected store does not exist
+	//but an index of the other type does, the index is migrated first.
 	private void getIndex(String indexPath) {
+		this.indexPath = indexPath;
 		try {
-			recman				= JdbmUtil.getRecordManager( indexPath );
-			fwdPatientIndex		= JdbmUtil.getHTree(recman, "fwdPatientIndex");
-			invPatientIndex		= JdbmUtil.getHTree(recman, "invPatientIndex");
-			fwdStudyIndex		= JdbmUtil.getHTree(recman, "fwdStudyIndex");
-			uidIndex			= JdbmUtil.getHTree(recman, "uidIndex");
+			String otherType = storeType.equals(IndexStore.LOG) ? IndexStore.JDBM : IndexStore.LOG;
+			if (!IndexStore.exists(storeType, indexPath) && IndexStore.exists(otherType, indexPath)) {
+				IndexMigrator.migrate(otherType, storeType, indexPath);
+			}
+			store				= IndexStore.open(storeType, indexPath);
+			IndexStore.Table[] tables = getTables(store);
+			fwdPatientIndex		= tables[0];
+			invPatientIndex		= tables[1];
+			fwdStudyIndex		= tables[2];
+			uidIndex			= tables[3];
+			studyIndex			= tables[4];
+			patientNameIndex	= tables[5];
+			fwdPatientCache		= new IndexCache(fwdPatientIndex, "fwdPatientIndex", cacheSize);
+			invPatientCache		= new IndexCache(invPatientIndex, "invPatientIndex", cacheSize);
+			studyCache			= new IndexCache(studyIndex, "studyIndex", cacheSize);
+			uidCache			= new IndexCache(uidIndex, "uidIndex", cacheSize);
+		}
+		catch (Exception ex) {
+			if (store != null) store.close();
+			store = null;
+			logger.warn("Unable to load the indexes.", ex);
+			return;
+		}
+		migrateStudyIndex();
+		buildPatientNameIndex();
+	}
+
+	//Build the patient name index if it is empty and the patient index is not.
+	//An index whose keys use an older separator is emptied and built again.
+	private void buildPatientNameIndex() {
+		try {
+			if (patientNameIndex.size() > 0) {
+				IndexStore.Cursor cursor = patientNameIndex.keys();
+				if (!cursor.next() || ((String)cursor.getKey()).contains(nameKeySeparator)) return;
+				LinkedList<Object> oldKeys = new LinkedList<Object>();
+				do { oldKeys.add(cursor.getKey()); } while (cursor.next());
+				for (Object key : oldKeys) patientNameIndex.remove(key);
+				store.commit();
+				logger.info("Rebuilding the patient name index");
+			}
+			IndexStore.Cursor cursor = invPatientIndex.keys();
+			int count = 0;
+			while (cursor.next()) {
+				Object key = cursor.getKey();
+				PatientIndexEntry inv = (PatientIndexEntry)IndexSerializer.toEntry(cursor.getValue());
+				PatientIndexEntry fwd = (PatientIndexEntry)IndexSerializer.toEntry(fwdPatientIndex.get(inv.id.toLowerCase()));
+				String anonPtName = (fwd != null) ? fwd.name : "";
+				patientNameIndex.put(getNameKey(anonPtName, inv.key), key);
+				if ((++count % 1000) == 0) store.commit();
+			}
+			store.commit();
+			if (count > 0) logger.info("Built the patient name index for "+count+" patients");
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to build the patient name index", ex);
+		}
+	}
+
+	//Move the studies from the StudyIndexEntry objects in the fwdStudyIndex
+	//table into separate records in the studyIndex table, and remove the
+	//StudyIndexEntry objects. Entries are removed only after all the studies
+	//have been copied, so an interrupted migration is repeated at the next start.
+	private void migrateStudyIndex() {
+		try {
+			LinkedList<String> keys = new LinkedList<String>();
+			IndexStore.Cursor cursor = fwdStudyIndex.keys();
+			while (cursor.next()) keys.add( (String)cursor.getKey() );
+			if (keys.size() == 0) return;
+			logger.info("Migrating the study index for "+keys.size()+" patients");
+			int count = 0;
+			for (String ptID : keys) {
+				StudyIndexEntry entry = (StudyIndexEntry)IndexSerializer.toEntry(fwdStudyIndex.get(ptID));
+				for (Study study : entry.studies) {
+					String key = getStudyKey(ptID, study);
+					if (studyIndex.get(key) == null) studyIndex.put(key, IndexSerializer.encode(study));
+					count++;
+				}
+			}
+			store.commit();
+			for (String ptID : keys) fwdStudyIndex.remove(ptID);
+			store.commit();
+			logger.info("Migrated "+count+" studies");
 		}
 		catch (Exception ex) {
-			recman = null;
-			logger.warn("Unable to load the indexes.");
+			logger.warn("Unable to migrate the study index", ex);
 		}
 	}
-}
\ No newline at end of file
+}
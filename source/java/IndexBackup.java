@@ -0,0 +1,180 @@
+/*---------------------------------------------------------------
+*  Copyright 2020 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.anonymizer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Properties;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.stdstages.anonymizer.IntegerTable;
+import org.rsna.util.FileUtil;
+import org.rsna.util.StringUtil;
+
+/**
+ * Online backups of the index and the integer table, made without
+ * stopping the program. Each backup is written to a new directory,
+ * named with the date and time, under the backup directory
+ * (indexBackupDir in the program.properties file; default data/backups).
+ * The index is copied by Index.backup, which pauses writes only at
+ * the end of the copy. The integer table is copied while its lock is
+ * held, which pauses only the assignment of new integers.
+ * <p>
+ * If the indexBackupHour property is set (0-23), a backup is made every
+ * day at that hour. The most recent indexBackupCount backups (default 7)
+ * are kept.
+ */
+public class IndexBackup {
+
+	static final Logger logger = Logger.getLogger(IndexBackup.class);
+	static IndexBackup instance = null;
+
+	File backupDir;
+	int backupHour = -1;
+	int backupCount = 7;
+	Thread scheduler = null;
+
+	/**
+	 * Get the singleton instance of the backup manager.
+	 * @return the IndexBackup object
+	 */
+	public static synchronized IndexBackup getInstance() {
+		if (instance == null) instance = new IndexBackup();
+		return instance;
+	}
+
+	protected IndexBackup() {
+		Configuration config = Configuration.getInstance();
+		Properties props = config.getProps();
+		String dir = props.getProperty("indexBackupDir", "").trim();
+		backupDir = dir.equals("") ? new File(config.getDatabaseDir(), "backups") : new File(dir);
+		backupHour = StringUtil.getInt(props.getProperty("indexBackupHour"), -1);
+		backupCount = Math.max(1, StringUtil.getInt(props.getProperty("indexBackupCount"), backupCount));
+	}
+
+	/**
+	 * Start the daily backups if the indexBackupHour property is set.
+	 */
+	public synchronized void startScheduler() {
+		if ((backupHour < 0) || (backupHour > 23) || (scheduler != null)) return;
+		scheduler = new Thread("IndexBackupScheduler") {
+			public void run() {
+				while (true) {
+					try {
+						sleep(getDelay());
+						backup();
+					}
+					catch (InterruptedException quit) { return; }
+					catch (Exception ex) { logger.warn("Scheduled backup failed", ex); }
+				}
+			}
+		};
+		scheduler.setDaemon(true);
+		scheduler.start();
+		logger.info("Index backups scheduled daily at "+backupHour+":00 in "+backupDir);
+	}
+
+	//Get the time in ms until the next backup.
+	private long getDelay() {
+		Calendar now = Calendar.getInstance();
+		Calendar next = (Calendar)now.clone();
+		next.set(Calendar.HOUR_OF_DAY, backupHour);
+		next.set(Calendar.MINUTE, 0);
+		next.set(Calendar.SECOND, 0);
+		next.set(Calendar.MILLISECOND, 0);
+		if (!next.after(now)) next.add(Calendar.DAY_OF_MONTH, 1);
+		return next.getTimeInMillis() - now.getTimeInMillis();
+	}
+
+	/**
+	 * Make a backup of the index and the integer table. The backup is
+	 * written to a temporary directory, which is renamed when the backup
+	 * is complete, so an incomplete backup is never taken for a good one.
+	 * @return a one-line description of the backup.
+	 * @throws Exception if the backup fails.
+	 */
+	public synchronized String backup() throws Exception {
+		long startTime = System.currentTimeMillis();
+		String name = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+		File dir = new File(backupDir, name);
+		File tempDir = new File(backupDir, name + ".partial");
+		FileUtil.deleteAll(tempDir);
+		tempDir.mkdirs();
+		try {
+			long indexPause = Index.getInstance().backup(new File(tempDir, "index").getPath());
+			long tablePause = backupIntegerTable(tempDir);
+			if (!tempDir.renameTo(dir)) throw new Exception("Unable to rename "+tempDir);
+			removeOldBackups();
+			String result = String.format("Backup written to %s in %.1f s; writes paused for %d ms (index), %d ms (integer table)",
+											dir, (System.currentTimeMillis() - startTime) / 1000.0,
+											indexPause, tablePause);
+			logger.info(result);
+			return result;
+		}
+		catch (Exception ex) {
+			FileUtil.deleteAll(tempDir);
+			throw ex;
+		}
+	}
+
+	//Copy the integer table files while holding the table lock,
+	//returning the time in ms for which the table was locked.
+	private long backupIntegerTable(File dir) throws Exception {
+		Configuration config = Configuration.getInstance();
+		IntegerTable table = config.getIntegerTable();
+		if (table == null) return 0;
+		File dbDir = config.getDatabaseDir();
+		synchronized (table) {
+			long startTime = System.currentTimeMillis();
+			table.recman.commit();
+			for (String ext : new String[] { ".db", ".lg" }) {
+				File file = new File(dbDir, "integers" + ext);
+				if (file.exists()) copy(file, new File(dir, file.getName()));
+			}
+			return System.currentTimeMillis() - startTime;
+		}
+	}
+
+	private static void copy(File from, File to) throws Exception {
+		FileInputStream in = null;
+		FileOutputStream out = null;
+		try {
+			in = new FileInputStream(from);
+			out = new FileOutputStream(to);
+			FileChannel inChannel = in.getChannel();
+			FileChannel outChannel = out.getChannel();
+			long size = inChannel.size();
+			long position = 0;
+			while (position < size) {
+				position += inChannel.transferTo(position, size - position, outChannel);
+			}
+		}
+		finally {
+			FileUtil.close(in);
+			FileUtil.close(out);
+		}
+	}
+
+	//Delete the oldest backups, keeping backupCount of them.
+	private void removeOldBackups() {
+		File[] dirs = backupDir.listFiles();
+		if (dirs == null) return;
+		Arrays.sort(dirs);
+		int kept = 0;
+		for (int i=dirs.length-1; i>=0; i--) {
+			File dir = dirs[i];
+			if (!dir.isDirectory() || !dir.getName().matches("\\d{8}-\\d{6}")) continue;
+			if (++kept > backupCount) FileUtil.deleteAll(dir);
+		}
+	}
+}
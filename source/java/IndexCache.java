@@ -0,0 +1,186 @@
+/*---------------------------------------------------------------
+*  Copyright 2020 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.anonymizer;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded LRU write-through cache in front of an IndexStore table.
+ * Reads are served from memory when possible, and writes of a
+ * value equal to the cached value are not passed to the table.
+ * Keys that are not in the table are cached too, so repeated
+ * lookups of a new key do not go to the disk.
+ * <p>
+ * The cache does not lock the table; callers must hold the Index
+ * read lock for get and the Index write lock for put.
+ * <p>
+ * While a journal is active, the keys of all the values written to
+ * the table are recorded, so an online backup can copy them again.
+ */
+public class IndexCache {
+
+	//The value cached for a key that is not in the table.
+	static final Object absent = new Object();
+
+	IndexStore.Table table;
+	String name;
+	int capacity;
+	LinkedHashMap<Object,Object> map;
+	long hits = 0;
+	long misses = 0;
+	long writes = 0;
+	long skippedWrites = 0;
+	HashSet<Object> journal = null;
+
+	/**
+	 * Class constructor.
+	 * @param table the table
+	 * @param name the name of the table, for the statistics
+	 * @param capacity the maximum number of entries in the cache
+	 */
+	public IndexCache(IndexStore.Table table, String name, int capacity) {
+		this.table = table;
+		this.name = name;
+		this.capacity = Math.max(1, capacity);
+		final int max = this.capacity;
+		map = new LinkedHashMap<Object,Object>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Object,Object> eldest) {
+				return size() > max;
+			}
+		};
+	}
+
+	/**
+	 * Get a value, from the cache if possible.
+	 * @param key the key
+	 * @return the value, or null if the key is not in the table.
+	 * @throws Exception if the table cannot be read.
+	 */
+	public Object get(Object key) throws Exception {
+		synchronized (map) {
+			Object value = map.get(key);
+			if (value != null) {
+				hits++;
+				return (value == absent) ? null : value;
+			}
+			misses++;
+		}
+		Object value = fetch(key);
+		synchronized (map) {
+			map.put(key, (value == null) ? absent : value);
+		}
+		return value;
+	}
+
+	/**
+	 * Store a value in the table unless it equals the value already stored.
+	 * @param key the key
+	 * @param value the value
+	 * @return true if the value was written to the table; false if the
+	 * write was skipped because the value was unchanged.
+	 * @throws Exception if the table cannot be written.
+	 */
+	public boolean put(Object key, Object value) throws Exception {
+		Object current = get(key);
+		if ((current != null) && current.equals(value)) {
+			synchronized (map) { skippedWrites++; }
+			return false;
+		}
+		try {
+			store(key, value);
+		}
+		catch (Exception ex) {
+			synchronized (map) { map.remove(key); }
+			throw ex;
+		}
+		synchronized (map) {
+			map.put(key, value);
+			writes++;
+		}
+		return true;
+	}
+
+	//Values are stored in the table in the IndexSerializer encoding.
+	private Object fetch(Object key) throws Exception {
+		return IndexSerializer.toEntry(table.get(key));
+	}
+
+	private void store(Object key, Object value) throws Exception {
+		table.put(key, IndexSerializer.encode(value));
+		if (journal != null) journal.add(key);
+	}
+
+	/**
+	 * Start recording the keys written to the table.
+	 * Callers must hold the Index write lock.
+	 */
+	public void startJournal() {
+		journal = new HashSet<Object>();
+	}
+
+	/**
+	 * Get the keys written to the table since the journal was started or
+	 * last rotated, and start a new journal.
+	 * Callers must hold the Index write lock.
+	 * @return the keys written since the last rotation.
+	 */
+	public HashSet<Object> rotateJournal() {
+		HashSet<Object> keys = stopJournal();
+		journal = new HashSet<Object>();
+		return keys;
+	}
+
+	/**
+	 * Stop recording the keys written to the table.
+	 * Callers must hold the Index write lock.
+	 * @return the keys written since the journal was started.
+	 */
+	public HashSet<Object> stopJournal() {
+		HashSet<Object> keys = (journal != null) ? journal : new HashSet<Object>();
+		journal = null;
+		return keys;
+	}
+
+	/**
+	 * Remove all the entries from the cache.
+	 */
+	public void clear() {
+		synchronized (map) { map.clear(); }
+	}
+
+	/**
+	 * Get the number of lookups served from the cache.
+	 * @return the number of hits.
+	 */
+	public long getHits() {
+		synchronized (map) { return hits; }
+	}
+
+	/**
+	 * Get the number of lookups that went to the table.
+	 * @return the number of misses.
+	 */
+	public long getMisses() {
+		synchronized (map) { return misses; }
+	}
+
+	/**
+	 * Get a one-line summary of the cache statistics.
+	 * @return the statistics.
+	 */
+	public String getStatistics() {
+		synchronized (map) {
+			long lookups = hits + misses;
+			int pct = (lookups > 0) ? (int)((100 * hits) / lookups) : 0;
+			return String.format("%s: %d/%d entries; %d hits, %d misses (%d%%); %d writes, %d skipped",
+									name, map.size(), capacity, hits, misses, pct, writes, skippedWrites);
+		}
+	}
+}
@@ -0,0 +1,425 @@
+/*---------------------------------------------------------------
+*  Copyright 2020 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.anonymizer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import jdbm.helper.FastIterator;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.stdstages.anonymizer.IntegerTable;
+
+/**
+ * A background integrity checker for the Index and the IntegerTable.
+ * Each table is scanned by its own thread. Every entry is decoded, and
+ * the patient, study, UID and patient name entries are cross-checked
+ * against the patient indexes:
+ * <ul>
+ * <li>Each forward patient entry must have an inverse entry that points back to it.
+ * <li>Each inverse patient entry must have a forward entry that points back to it.
+ * <li>Each UID entry must belong to a patient in the inverse patient index.
+ * <li>Each study must belong to a patient in the forward patient index.
+ * <li>Each patient name entry must match the forward entry of its patient.
+ * </ul>
+ * The tables are scanned in short batches. The Index read lock (or the IntegerTable
+ * lock) is held only while a batch is read, so objects can be received and
+ * anonymized while the check is running, and the entries of a batch are
+ * checked against a consistent state of the index. The scan reads the tables
+ * directly, so it does not displace the entries in the Index caches.
+ */
+public class IndexChecker {
+
+	static final Logger logger = Logger.getLogger(IndexChecker.class);
+
+	//A batch ends after batchSize entries or batchTime ns, whichever comes
+	//first, so a writer never waits long for the scans to release the lock.
+	static final int batchSize = 1000;
+	static final long batchTime = 2000000;
+
+	Listener listener;
+	volatile boolean cancelled = false;
+	LinkedList<Scan> scans = new LinkedList<Scan>();
+	long startTime = 0;
+	long endTime = 0;
+
+	/**
+	 * The interface for receiving the results of a check.
+	 * The methods are called from the threads of the checker.
+	 */
+	public interface Listener {
+		/**
+		 * Report a problem or the completion of a scan.
+		 * @param message a one-line description
+		 * @param isError true if the message reports a problem
+		 */
+		public void message(String message, boolean isError);
+		/**
+		 * Report the progress of the check.
+		 * @param checker the checker, from which the counts can be obtained
+		 */
+		public void progress(IndexChecker checker);
+	}
+
+	/**
+	 * Class constructor.
+	 * @param listener the listener for problems and progress reports, or null
+	 */
+	public IndexChecker(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Check the indexes. This method returns when all the
+	 * trees have been scanned or the check is cancelled.
+	 */
+	public void check() {
+		Index index = Index.getInstance();
+		IntegerTable table = Configuration.getInstance().getIntegerTable();
+		scans.clear();
+		if (table != null) scans.add(new IntegerTableScan(table));
+		if (index.store != null) {
+			scans.add(new FwdPatientScan(index));
+			scans.add(new InvPatientScan(index));
+			scans.add(new FwdStudyScan(index));
+			scans.add(new UIDScan(index));
+			scans.add(new StudyScan(index));
+			scans.add(new PatientNameScan(index));
+		}
+		startTime = System.currentTimeMillis();
+		ExecutorService exec = Executors.newFixedThreadPool(Math.max(scans.size(), 1));
+		for (Scan scan : scans) exec.execute(scan);
+		exec.shutdown();
+		try { while (!exec.awaitTermination(1, TimeUnit.SECONDS)) progress(); }
+		catch (InterruptedException ex) { cancelled = true; }
+		endTime = System.currentTimeMillis();
+		progress();
+		logger.info(getSummary());
+	}
+
+	/**
+	 * Stop the check at the end of the current batch of each scan.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Determine whether the check was cancelled.
+	 * @return true if the check was cancelled.
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Get the total number of entries checked so far.
+	 * @return the number of entries.
+	 */
+	public int getEntries() {
+		int n = 0;
+		for (Scan scan : scans) n += scan.entries.get();
+		return n;
+	}
+
+	/**
+	 * Get the total number of problems found so far.
+	 * @return the number of problems.
+	 */
+	public int getProblems() {
+		int n = 0;
+		for (Scan scan : scans) n += scan.problems.get();
+		return n;
+	}
+
+	/**
+	 * Get a summary of the check, one line per tree.
+	 * @return the summary.
+	 */
+	public String getSummary() {
+		StringBuffer sb = new StringBuffer();
+		for (Scan scan : scans) {
+			sb.append(String.format("%s: %d entries, %d problems%s\n",
+							scan.name, scan.entries.get(), scan.problems.get(),
+							(scan.done ? "" : " (incomplete)")));
+		}
+		long time = ((endTime > 0) ? endTime : System.currentTimeMillis()) - startTime;
+		sb.append(String.format("%d entries checked in %.1f s; %d problems found",
+							getEntries(), time / 1000.0, getProblems()));
+		return sb.toString();
+	}
+
+	private void progress() {
+		if (listener != null) listener.progress(this);
+	}
+
+	//The scan of one tree. Subclasses read a batch of entries while holding
+	//the lock that protects the tree and check each entry in the batch.
+	abstract class Scan implements Runnable {
+		String name;
+		AtomicInteger entries = new AtomicInteger();
+		AtomicInteger problems = new AtomicInteger();
+		volatile boolean done = false;
+		public Scan(String name) {
+			this.name = name;
+		}
+		public void run() {
+			try {
+				while (!cancelled && nextBatch()) ;
+				done = !cancelled;
+				if (done) message(name + ": " + entries.get() + " entries checked", false);
+			}
+			catch (Throwable t) {
+				logger.warn("Scan of "+name+" failed", t);
+				problem("scan stopped after " + entries.get() + " entries: " + t);
+			}
+		}
+		//Check the next batch of entries; return false at the end of the tree.
+		abstract boolean nextBatch() throws Exception;
+		void problem(String message) {
+			problems.incrementAndGet();
+			message(name + ": " + message, true);
+		}
+		void message(String message, boolean isError) {
+			if (listener != null) listener.message(message, isError);
+		}
+	}
+
+	//A scan of an Index hash table, resumed from the same cursor for each batch.
+	//The cursor can be resumed after the lock has been released: the cursor of
+	//a JDBM HTree reads all the keys when it is created, and that of a
+	//LogIndexStore iterates over a concurrent map. A key removed since the
+	//cursor was created has a null value and is skipped.
+	abstract class HashScan extends Scan {
+		Index index;
+		IndexStore.Table table;
+		IndexStore.Cursor cursor = null;
+		public HashScan(Index index, IndexStore.Table table, String name) {
+			super(name);
+			this.index = index;
+			this.table = table;
+		}
+		boolean nextBatch() throws Exception {
+			index.lock.readLock().lock();
+			try {
+				if (cursor == null) cursor = table.keys();
+				long endTime = System.nanoTime() + batchTime;
+				for (int i=0; (i<batchSize) && (System.nanoTime()<endTime); i++) {
+					if (!cursor.next()) return false;
+					Object key = cursor.getKey();
+					Object value;
+					try { value = cursor.getValue(); }
+					catch (Exception ex) { value = ex; }
+					if (value == null) continue;
+					entries.incrementAndGet();
+					Object entry;
+					try {
+						if (value instanceof Exception) throw (Exception)value;
+						entry = IndexSerializer.toEntry(value);
+					}
+					catch (Exception ex) {
+						problem("unreadable entry for key " + key + ": " + ex.getMessage());
+						continue;
+					}
+					if (entry == null) problem("null value for key " + key);
+					else check((String)key, entry);
+				}
+				return true;
+			}
+			finally { index.lock.readLock().unlock(); }
+		}
+		abstract void check(String key, Object entry) throws Exception;
+	}
+
+	//A scan of an Index sorted table. Each batch starts a new cursor at the
+	//last key of the previous batch, since the table may change in between.
+	abstract class SortedScan extends Scan {
+		Index index;
+		IndexStore.Table table;
+		Object lastKey = null;
+		public SortedScan(Index index, IndexStore.Table table, String name) {
+			super(name);
+			this.index = index;
+			this.table = table;
+		}
+		boolean nextBatch() throws Exception {
+			index.lock.readLock().lock();
+			try {
+				IndexStore.Cursor cursor = table.browse(lastKey);
+				int n = 0;
+				long endTime = System.nanoTime() + batchTime;
+				while ((n < batchSize) && (System.nanoTime() < endTime)) {
+					if (!cursor.next()) return false;
+					if (cursor.getKey().equals(lastKey)) continue;
+					lastKey = cursor.getKey();
+					entries.incrementAndGet();
+					n++;
+					Object value = cursor.getValue();
+					if (value == null) problem("null value for key " + lastKey);
+					else check((String)lastKey, value);
+				}
+				return true;
+			}
+			finally { index.lock.readLock().unlock(); }
+		}
+		abstract void check(String key, Object value) throws Exception;
+	}
+
+	//A scan of the IntegerTable. An HTree iterator is not valid after the
+	//tree has changed, and the table's monitor is released between batches,
+	//so the keys are read in the first batch, as in JdbmIndexStore, and the
+	//values are read in batches. Keys removed since then are skipped.
+	class IntegerTableScan extends Scan {
+		IntegerTable table;
+		Iterator<Object> keys = null;
+		public IntegerTableScan(IntegerTable table) {
+			super("IntegerTable");
+			this.table = table;
+		}
+		boolean nextBatch() throws Exception {
+			synchronized (table) {
+				if (keys == null) {
+					ArrayList<Object> list = new ArrayList<Object>();
+					FastIterator fit = table.index.keys();
+					Object key;
+					while ( (key=fit.next()) != null ) list.add(key);
+					keys = list.iterator();
+				}
+				long endTime = System.nanoTime() + batchTime;
+				for (int i=0; (i<batchSize) && (System.nanoTime()<endTime); i++) {
+					if (!keys.hasNext()) return false;
+					Object key = keys.next();
+					Object value = table.index.get(key);
+					if (value == null) continue;
+					entries.incrementAndGet();
+					if (!(value instanceof Integer)) problem("invalid value for key " + key + ": " + value);
+				}
+				return true;
+			}
+		}
+	}
+
+	class FwdPatientScan extends HashScan {
+		public FwdPatientScan(Index index) {
+			super(index, index.fwdPatientIndex, "fwdPatientIndex");
+		}
+		void check(String key, Object entry) throws Exception {
+			if (!(entry instanceof PatientIndexEntry)) {
+				problem("unexpected entry for " + key + ": " + entry.getClass().getName());
+				return;
+			}
+			PatientIndexEntry fwd = (PatientIndexEntry)entry;
+			PatientIndexEntry inv = getPatient(index.invPatientIndex, fwd.id);
+			if (inv == null) problem(key + " maps to " + fwd.id + ", which is not in the inverse index");
+			else if (!key.equalsIgnoreCase(inv.id)) {
+				problem(key + " maps to " + fwd.id + ", which maps back to " + inv.id);
+			}
+		}
+	}
+
+	class InvPatientScan extends HashScan {
+		public InvPatientScan(Index index) {
+			super(index, index.invPatientIndex, "invPatientIndex");
+		}
+		void check(String key, Object entry) throws Exception {
+			if (!(entry instanceof PatientIndexEntry)) {
+				problem("unexpected entry for " + key + ": " + entry.getClass().getName());
+				return;
+			}
+			PatientIndexEntry inv = (PatientIndexEntry)entry;
+			PatientIndexEntry fwd = getPatient(index.fwdPatientIndex, inv.id);
+			if (fwd == null) problem(key + " maps to a PHI PatientID that is not in the forward index");
+			else if (!key.equalsIgnoreCase(fwd.id)) {
+				problem(key + " maps to a PHI PatientID that maps to " + fwd.id);
+			}
+		}
+	}
+
+	//Entries are moved to the studyIndex when the Index is opened,
+	//so any entry found here is left over from a failed migration.
+	class FwdStudyScan extends HashScan {
+		public FwdStudyScan(Index index) {
+			super(index, index.fwdStudyIndex, "fwdStudyIndex");
+		}
+		void check(String key, Object entry) throws Exception {
+			if (!(entry instanceof StudyIndexEntry)) {
+				problem("unexpected entry for key " + key + ": " + entry.getClass().getName());
+			}
+			else problem("unmigrated study list for a PHI PatientID");
+		}
+	}
+
+	class UIDScan extends HashScan {
+		public UIDScan(Index index) {
+			super(index, index.uidIndex, "uidIndex");
+		}
+		void check(String key, Object entry) throws Exception {
+			if (!(entry instanceof UIDIndexEntry)) {
+				problem("unexpected entry for " + key + ": " + entry.getClass().getName());
+				return;
+			}
+			String anonPtID = getPatientID(key);
+			if (getPatient(index.invPatientIndex, anonPtID) == null) {
+				problem(key + " belongs to a patient that is not in the inverse index");
+			}
+		}
+	}
+
+	class StudyScan extends SortedScan {
+		public StudyScan(Index index) {
+			super(index, index.studyIndex, "studyIndex");
+		}
+		void check(String key, Object value) throws Exception {
+			Object entry;
+			try { entry = IndexSerializer.toEntry(value); }
+			catch (Exception ex) {
+				problem("unreadable study: " + ex.getMessage());
+				return;
+			}
+			if (!(entry instanceof Study)) {
+				problem("unexpected entry: " + entry.getClass().getName());
+			}
+			else if (getPatient(index.fwdPatientIndex, getPatientID(key)) == null) {
+				problem("study of a PHI PatientID that is not in the forward index");
+			}
+		}
+	}
+
+	class PatientNameScan extends SortedScan {
+		public PatientNameScan(Index index) {
+			super(index, index.patientNameIndex, "patientNameIndex");
+		}
+		void check(String key, Object value) throws Exception {
+			PatientIndexEntry inv = getPatient(index.invPatientIndex, (String)value);
+			if (inv == null) {
+				problem(key + " refers to " + value + ", which is not in the inverse index");
+				return;
+			}
+			PatientIndexEntry fwd = getPatient(index.fwdPatientIndex, inv.id);
+			if ((fwd == null) || !key.equals(Index.getNameKey(fwd.name, fwd.id))) {
+				problem(key + " does not match the forward index entry of " + value);
+			}
+		}
+	}
+
+	//Get a patient entry directly from a table, bypassing the cache.
+	private static PatientIndexEntry getPatient(IndexStore.Table table, String id) throws Exception {
+		if (id == null) return null;
+		Object entry = IndexSerializer.toEntry(table.get(id.toLowerCase()));
+		return (entry instanceof PatientIndexEntry) ? (PatientIndexEntry)entry : null;
+	}
+
+	//Get the PatientID from a key of the form PatientID|StudyDate|AccessionNumber.
+	private static String getPatientID(String key) {
+		int k = key.indexOf("|");
+		return (k >= 0) ? key.substring(0, k) : key;
+	}
+}
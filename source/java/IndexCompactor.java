@@ -0,0 +1,240 @@
+/*---------------------------------------------------------------
+*  Copyright 2020 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.anonymizer;
+
+import java.io.File;
+import java.util.LinkedList;
+import java.util.concurrent.locks.Lock;
+import jdbm.RecordManager;
+import jdbm.helper.FastIterator;
+import jdbm.htree.HTree;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.stdstages.anonymizer.IntegerTable;
+import org.rsna.util.JdbmUtil;
+
+/**
+ * Compaction of the index and the integer table. JDBM files only grow,
+ * so when entries are rewritten many times, the files become much larger
+ * than their content and lookups slow down. Compaction copies the live
+ * records into new files and swaps them in place of the originals.
+ * <p>
+ * The compaction can be done while the program is running (the Compact
+ * button in the Index tab) or, with the program stopped, from the command line:
+ * <pre>java -cp Anonymizer.jar org.rsna.anonymizer.IndexCompactor [data]</pre>
+ * where data is the directory containing the index and integers files.
+ * Both forms report the size of each file and the average lookup time,
+ * before and after. The command-line form keeps the original files
+ * with the suffix -backup.
+ * <p>
+ * An index in a LogIndexStore is compacted by its checkpoints. The online
+ * compaction copies it like a JDBM index; the command-line form opens and
+ * closes it, which replays the logs and replaces them with a checkpoint.
+ */
+public class IndexCompactor {
+
+	static final Logger logger = Logger.getLogger(IndexCompactor.class);
+
+	//The number of keys of each tree used to measure the lookup time
+	static final int samples = 5000;
+
+	/**
+	 * Compact the index and the integer table while the program is running.
+	 * Writes to the index are paused only at the end of the copy (see
+	 * Index.compact). The integer table is usually small; it is copied
+	 * while its lock is held.
+	 * @return a description of the result.
+	 * @throws Exception if the compaction fails.
+	 */
+	public static String compact() throws Exception {
+		Configuration config = Configuration.getInstance();
+		File dataDir = config.getDatabaseDir();
+		Index index = Index.getInstance();
+		StringBuffer sb = new StringBuffer();
+
+		String indexPath = new File(dataDir, "index").getPath();
+		long oldSize = IndexStore.getSize(index.storeType, indexPath);
+		double oldTime = measureIndexLookups(index);
+		long startTime = System.currentTimeMillis();
+		long pause = index.compact();
+		long time = System.currentTimeMillis() - startTime;
+		long newSize = IndexStore.getSize(index.storeType, indexPath);
+		sb.append(report("index", oldSize, newSize, oldTime, measureIndexLookups(index)));
+		sb.append(String.format("Index compacted in %.1f s; writes paused for %d ms\n", time / 1000.0, pause));
+
+		IntegerTable table = config.getIntegerTable();
+		if (table != null) {
+			String path = new File(dataDir, "integers").getPath();
+			File integersDB = IndexConverter.getDB(path);
+			synchronized (table) {
+				oldSize = integersDB.length();
+				oldTime = measureLookups(new JdbmIndexStore.HashTable(table.index), null);
+				startTime = System.currentTimeMillis();
+				table.recman.commit();
+				copy(table.recman, path + "-compact");
+				boolean installed = false;
+				JdbmUtil.close(table.recman);
+				try {
+					IndexConverter.delete(path + "-old");
+					if (IndexConverter.rename(path, path + "-old")) {
+						installed = IndexConverter.rename(path + "-compact", path);
+						if (!installed) IndexConverter.rename(path + "-old", path);
+					}
+					if (installed) IndexConverter.delete(path + "-old");
+					else IndexConverter.delete(path + "-compact");
+				}
+				finally {
+					//Reopen the table whatever happened, from the original
+					//if it could not be moved back.
+					String openPath = path;
+					if (!IndexConverter.getDB(path).exists() && IndexConverter.getDB(path + "-old").exists()) {
+						openPath = path + "-old";
+					}
+					table.recman = JdbmUtil.getRecordManager(openPath);
+					table.index = JdbmUtil.getHTree(table.recman, "index");
+				}
+				if (!installed) {
+					logger.warn("Index compacted:\n" + sb.toString());
+					throw new Exception("Unable to install the compacted integer table; "
+										+ "the index was compacted, the integer table is unchanged");
+				}
+				time = System.currentTimeMillis() - startTime;
+				newSize = integersDB.length();
+				double newTime = measureLookups(new JdbmIndexStore.HashTable(table.index), null);
+				sb.append(report("integer table", oldSize, newSize, oldTime, newTime));
+				sb.append(String.format("Integer table compacted in %d ms", time));
+			}
+		}
+		logger.info("Compaction complete:\n" + sb.toString());
+		return sb.toString();
+	}
+
+	/**
+	 * Compact the index and the integer table while the program is stopped.
+	 * @param args the directory containing the files (default: data)
+	 */
+	public static void main(String[] args) {
+		File dataDir = new File((args.length > 0) ? args[0] : "data");
+		try {
+			String indexPath = new File(dataDir, "index").getPath();
+			if (IndexStore.exists(IndexStore.LOG, indexPath)) compactLogStore(indexPath);
+			else compactOffline(indexPath, true);
+			compactOffline(new File(dataDir, "integers").getPath(), false);
+		}
+		catch (Exception ex) {
+			System.out.println("Compaction failed; the files that were not reported are unchanged");
+			ex.printStackTrace();
+		}
+	}
+
+	//Compact one database, keeping the original with the suffix -backup.
+	private static void compactOffline(String path, boolean isIndex) throws Exception {
+		if (!IndexConverter.getDB(path).exists()) {
+			System.out.println("Not found: " + IndexConverter.getDB(path));
+			return;
+		}
+		String compactPath = path + "-compact";
+		String backupPath = path + "-backup";
+		IndexConverter.delete(compactPath);
+		if (isIndex) IndexConverter.convert(path, compactPath);
+		else {
+			RecordManager recman = JdbmUtil.getRecordManager(path);
+			try { copy(recman, compactPath); }
+			finally { JdbmUtil.close(recman); }
+		}
+		long oldSize = IndexConverter.getDB(path).length();
+		long newSize = IndexConverter.getDB(compactPath).length();
+		double oldTime = measureOffline(path, isIndex);
+		double newTime = measureOffline(compactPath, isIndex);
+		IndexConverter.delete(backupPath);
+		if (!IndexConverter.rename(path, backupPath) || !IndexConverter.rename(compactPath, path)) {
+			throw new Exception("Unable to replace " + path + " with the compacted database");
+		}
+		System.out.print(report(new File(path).getName(), oldSize, newSize, oldTime, newTime));
+		System.out.println("The original was saved as " + IndexConverter.getDB(backupPath));
+	}
+
+	//Compact a log store by opening and closing it.
+	private static void compactLogStore(String path) throws Exception {
+		long oldSize = IndexStore.getSize(IndexStore.LOG, path);
+		LogIndexStore store = new LogIndexStore(path);
+		store.dirty = true;
+		store.close();
+		long newSize = IndexStore.getSize(IndexStore.LOG, path);
+		System.out.println(String.format("%s: %,d bytes -> %,d bytes", new File(path).getName(), oldSize, newSize));
+	}
+
+	//Copy the integer table HTree of a database into a new database.
+	private static void copy(RecordManager from, String toPath) throws Exception {
+		IndexConverter.delete(toPath);
+		RecordManager to = JdbmUtil.getRecordManager(toPath);
+		try {
+			HTree fromTree = JdbmUtil.getHTree(from, "index");
+			HTree toTree = JdbmUtil.getHTree(to, "index");
+			FastIterator fit = fromTree.keys();
+			Object key;
+			int count = 0;
+			while ( (key=fit.next()) != null ) {
+				toTree.put(key, fromTree.get(key));
+				if ((++count % 1000) == 0) to.commit();
+			}
+			to.commit();
+		}
+		finally { JdbmUtil.close(to); }
+	}
+
+	//Measure the average lookup time of a closed database.
+	private static double measureOffline(String path, boolean isIndex) throws Exception {
+		RecordManager recman = JdbmUtil.getRecordManager(path);
+		try {
+			if (!isIndex) return measureLookups(new JdbmIndexStore.HashTable(JdbmUtil.getHTree(recman, "index")), null);
+			return (measureLookups(new JdbmIndexStore.HashTable(JdbmUtil.getHTree(recman, "fwdPatientIndex")), null)
+						+ measureLookups(new JdbmIndexStore.HashTable(JdbmUtil.getHTree(recman, "invPatientIndex")), null)) / 2;
+		}
+		finally { JdbmUtil.close(recman); }
+	}
+
+	//Measure the average lookup time of the patient indexes of the open
+	//index, holding the read lock only for each lookup.
+	private static double measureIndexLookups(Index index) throws Exception {
+		Lock lock = index.lock.readLock();
+		return (measureLookups(index.fwdPatientIndex, lock) + measureLookups(index.invPatientIndex, lock)) / 2;
+	}
+
+	/**
+	 * Measure the average time to look up a key in a hash table. The keys are
+	 * the first keys returned by its cursor, which are in hash order and
+	 * therefore spread across the table. The entries are read from the table,
+	 * not from the Index caches.
+	 * @param table the table
+	 * @param lock the lock to hold while reading the table, or null
+	 * @return the average time per lookup in microseconds.
+	 * @throws Exception if the table cannot be read.
+	 */
+	static double measureLookups(IndexStore.Table table, Lock lock) throws Exception {
+		LinkedList<Object> keys = new LinkedList<Object>();
+		if (lock != null) lock.lock();
+		try {
+			IndexStore.Cursor cursor = table.keys();
+			while ((keys.size() < samples) && cursor.next()) keys.add(cursor.getKey());
+		}
+		finally { if (lock != null) lock.unlock(); }
+		if (keys.size() == 0) return 0;
+		long startTime = System.nanoTime();
+		for (Object key : keys) {
+			if (lock != null) lock.lock();
+			try { table.get(key); }
+			finally { if (lock != null) lock.unlock(); }
+		}
+		return (System.nanoTime() - startTime) / (1000.0 * keys.size());
+	}
+
+	private static String report(String name, long oldSize, long newSize, double oldTime, double newTime) {
+		return String.format("%s: %,d bytes -> %,d bytes; lookup %.1f us -> %.1f us\n",
+								name, oldSize, newSize, oldTime, newTime);
+	}
+}
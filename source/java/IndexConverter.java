@@ -0,0 +1,160 @@
+/*---------------------------------------------------------------
+*  Copyright 2020 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.anonymizer;
+
+import java.io.File;
+import jdbm.RecordManager;
+import jdbm.btree.BTree;
+import jdbm.htree.HTree;
+import jdbm.helper.FastIterator;
+import jdbm.helper.Tuple;
+import jdbm.helper.TupleBrowser;
+import org.rsna.util.JdbmUtil;
+
+/**
+ * A command-line tool to convert an index database to the IndexSerializer
+ * encoding. The program reads entries in either format, so conversion is
+ * optional; it reduces the size of the database and the cost of reading
+ * entries that were written by earlier versions of the program.
+ * <p>
+ * The tool must be run while the Anonymizer program is stopped:
+ * <pre>java -cp Anonymizer.jar org.rsna.anonymizer.IndexConverter [data/index]</pre>
+ * The converted database replaces the original, which is kept with the
+ * suffix -backup. When the conversion is complete, the tool reports the
+ * size of the database and the time to read all its entries, before and
+ * after the conversion.
+ */
+public class IndexConverter {
+
+	static final String[] htrees = { "fwdPatientIndex", "invPatientIndex", "fwdStudyIndex", "uidIndex" };
+	//The patientNameIndex BTree is not copied; its values are keys
+	//rather than entries, and the Index rebuilds it when it is missing.
+	static final String[] btrees = { "studyIndex" };
+
+	/**
+	 * Convert an index database.
+	 * @param args the path of the index, without the .db extension (default: data/index)
+	 */
+	public static void main(String[] args) {
+		String path = (args.length > 0) ? args[0] : "data/index";
+		String convertedPath = path + "-converted";
+		String backupPath = path + "-backup";
+		try {
+			if (!getDB(path).exists()) {
+				System.out.println("Index not found: " + getDB(path));
+				return;
+			}
+			delete(convertedPath);
+			int count = convert(path, convertedPath);
+			System.out.println("Converted " + count + " entries");
+
+			//Measure both databases twice, so the second
+			//measurement of each is made with a warm JVM.
+			scan(path);
+			scan(convertedPath);
+			long oldTime = scan(path);
+			long newTime = scan(convertedPath);
+			long oldSize = getDB(path).length();
+			long newSize = getDB(convertedPath).length();
+			System.out.println(String.format("Before: %,d bytes; %,d ms to read all entries", oldSize, oldTime));
+			System.out.println(String.format("After:  %,d bytes; %,d ms to read all entries", newSize, newTime));
+
+			delete(backupPath);
+			if (!rename(path, backupPath) || !rename(convertedPath, path)) {
+				System.out.println("Unable to replace the index with the converted index");
+				return;
+			}
+			System.out.println("The original index was saved as " + getDB(backupPath));
+		}
+		catch (Exception ex) {
+			System.out.println("Conversion failed; the original index is unchanged");
+			ex.printStackTrace();
+		}
+	}
+
+	//Copy all the trees of an index into a new database, encoding the values.
+	static int convert(String fromPath, String toPath) throws Exception {
+		RecordManager from = JdbmUtil.getRecordManager(fromPath);
+		RecordManager to = JdbmUtil.getRecordManager(toPath);
+		int count = 0;
+		try {
+			for (String name : htrees) {
+				HTree fromTree = JdbmUtil.getHTree(from, name);
+				HTree toTree = JdbmUtil.getHTree(to, name);
+				FastIterator fit = fromTree.keys();
+				Object key;
+				while ( (key=fit.next()) != null ) {
+					Object entry = IndexSerializer.toEntry(fromTree.get(key));
+					toTree.put(key, IndexSerializer.encode(entry));
+					if ((++count % 1000) == 0) to.commit();
+				}
+			}
+			for (String name : btrees) {
+				BTree fromTree = JdbmUtil.getBTree(from, name);
+				BTree toTree = JdbmUtil.getBTree(to, name);
+				TupleBrowser browser = fromTree.browse();
+				Tuple tuple = new Tuple();
+				while (browser.getNext(tuple)) {
+					Object entry = IndexSerializer.toEntry(tuple.getValue());
+					toTree.insert(tuple.getKey(), IndexSerializer.encode(entry), true);
+					if ((++count % 1000) == 0) to.commit();
+				}
+			}
+			to.commit();
+		}
+		finally {
+			JdbmUtil.close(from);
+			JdbmUtil.close(to);
+		}
+		return count;
+	}
+
+	//Read and decode every entry of an index, returning the elapsed time in ms.
+	static long scan(String path) throws Exception {
+		RecordManager recman = JdbmUtil.getRecordManager(path);
+		long startTime = System.currentTimeMillis();
+		try {
+			for (String name : htrees) {
+				HTree tree = JdbmUtil.getHTree(recman, name);
+				FastIterator fit = tree.keys();
+				Object key;
+				while ( (key=fit.next()) != null ) IndexSerializer.toEntry(tree.get(key));
+			}
+			for (String name : btrees) {
+				BTree tree = JdbmUtil.getBTree(recman, name);
+				TupleBrowser browser = tree.browse();
+				Tuple tuple = new Tuple();
+				while (browser.getNext(tuple)) IndexSerializer.toEntry(tuple.getValue());
+			}
+		}
+		finally { JdbmUtil.close(recman); }
+		return System.currentTimeMillis() - startTime;
+	}
+
+	static File getDB(String path) {
+		return new File(path + ".db");
+	}
+
+	static File getLG(String path) {
+		return new File(path + ".lg");
+	}
+
+	static void delete(String path) {
+		getDB(path).delete();
+		getLG(path).delete();
+	}
+
+	//Rename a database. If the db file cannot be renamed, the lg
+	//file is moved back, so the database is left as it was.
+	static boolean rename(String fromPath, String toPath) {
+		boolean movedLG = getLG(fromPath).renameTo(getLG(toPath));
+		if (getDB(fromPath).renameTo(getDB(toPath))) return true;
+		if (movedLG) getLG(toPath).renameTo(getLG(fromPath));
+		return false;
+	}
+}
@@ -9,6 +9,8 @@ package org.rsna.anonymizer;
 
 import javax.swing.*;
 import javax.swing.border.*;
+import javax.swing.filechooser.FileNameExtensionFilter;
+import javax.swing.table.AbstractTableModel;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
@@ -18,29 +20,19 @@ import org.rsna.ctp.objects.FileObject;
 import org.rsna.ctp.stdstages.anonymizer.AnonymizerFunctions;
 import org.rsna.util.FileUtil;
 import org.rsna.ui.ColorPane;
-import org.rsna.ui.RowLayout;
 
 import org.apache.log4j.*;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.Font;
 import org.apache.poi.ss.util.CellRangeAddress;  
 
 //imports for index testing
-import org.rsna.ctp.stdstages.anonymizer.IntegerTable;
 import javax.swing.SwingUtilities;
-import jdbm.htree.HTree;
-import jdbm.helper.FastIterator;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.TimeoutException;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.Callable;
 
 /**
  * A JPanel that provides a user interface for searching the Index.
@@ -50,8 +42,9 @@ public class IndexListPanel extends JPanel implements ActionListener {
 	static final Logger logger = Logger.getLogger(IndexListPanel.class);
 
 	private ListPanel listPanel;
-//	private CheckPanel checkPanel;
-//	private RebuildPanel rebuildPanel;
+	private CheckPanel checkPanel;
+	private RebuildPanel rebuildPanel;
+	private JPanel currentPanel;
 	private FooterPanel footerPanel;
 	Color background;
 
@@ -66,14 +59,18 @@ public class IndexListPanel extends JPanel implements ActionListener {
 		setBackground(background);
 
 		listPanel = new ListPanel();
-//		checkPanel = new CheckPanel();
-//		rebuildPanel = new RebuildPanel();
+		checkPanel = new CheckPanel();
+		rebuildPanel = new RebuildPanel();
 		footerPanel = new FooterPanel();
 		footerPanel.list.addActionListener(this);
 		footerPanel.save.addActionListener(this);
-//		footerPanel.check.addActionListener(this);
-//		footerPanel.rebuild.addActionListener(this);
+		footerPanel.cancel.addActionListener(this);
+		footerPanel.check.addActionListener(this);
+		footerPanel.rebuild.addActionListener(this);
+		footerPanel.backup.addActionListener(this);
+		footerPanel.compact.addActionListener(this);
 		this.add(listPanel, BorderLayout.CENTER);
+		currentPanel = listPanel;
 		this.add(footerPanel, BorderLayout.SOUTH);
 	}
 	
@@ -84,12 +81,30 @@ public class IndexListPanel extends JPanel implements ActionListener {
     public void actionPerformed(ActionEvent event) {
 		Object source = event.getSource();
 		if (source.equals(footerPanel.list)) {
+			if (!currentPanel.equals(listPanel)) {
+				this.remove(currentPanel);
+				this.add(listPanel, BorderLayout.CENTER);
+				currentPanel = listPanel;
+				footerPanel.save.setEnabled(!footerPanel.progress.isVisible());
+				revalidate();
+				repaint();
+			}
 			listPanel.list();
 		}
 		else if (source.equals(footerPanel.save)) {
 			listPanel.save();
 		}
-/*		
+		else if (source.equals(footerPanel.cancel)) {
+			listPanel.cancelExport();
+			rebuildPanel.cancel();
+			checkPanel.cancel();
+		}
+		else if (source.equals(footerPanel.backup)) {
+			backup();
+		}
+		else if (source.equals(footerPanel.compact)) {
+			compact();
+		}
 		else if (source.equals(footerPanel.rebuild)) {
 			if (!currentPanel.equals(rebuildPanel)) {
 				this.remove(currentPanel);
@@ -97,8 +112,9 @@ public class IndexListPanel extends JPanel implements ActionListener {
 				currentPanel = rebuildPanel;
 				footerPanel.save.setEnabled(false);
 				revalidate();
+				repaint();
 			}
-			rebuildPanel.rebuildUIDIndex();
+			rebuildPanel.rebuild();
 		}
 		else if (source.equals(footerPanel.check)) {
 			if (!currentPanel.equals(checkPanel)) {
@@ -107,10 +123,56 @@ public class IndexListPanel extends JPanel implements ActionListener {
 				currentPanel = checkPanel;
 				footerPanel.save.setEnabled(false);
 				revalidate();
+				repaint();
 			}
 			checkPanel.checkIndexes();
 		}
-*/
+	}
+	
+	//Make an online backup of the index in the background.
+	private void backup() {
+		footerPanel.backup.setEnabled(false);
+		Thread backupThread = new Thread("IndexBackup") {
+			public void run() {
+				String result;
+				try { result = IndexBackup.getInstance().backup(); }
+				catch (Exception ex) {
+					logger.warn("Index backup failed", ex);
+					result = "Backup failed: " + ex.getMessage();
+				}
+				final String text = result;
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						footerPanel.backup.setEnabled(true);
+						JOptionPane.showMessageDialog(IndexListPanel.this, text);
+					}
+				});
+			}
+		};
+		backupThread.start();
+	}
+	
+	//Compact the index in the background.
+	private void compact() {
+		footerPanel.compact.setEnabled(false);
+		Thread compactThread = new Thread("IndexCompactor") {
+			public void run() {
+				String result;
+				try { result = IndexCompactor.compact(); }
+				catch (Exception ex) {
+					logger.warn("Index compaction failed", ex);
+					result = "Compaction failed: " + ex.getMessage();
+				}
+				final String text = result;
+				SwingUtilities.invokeLater(new Runnable() {
+					public void run() {
+						footerPanel.compact.setEnabled(true);
+						JOptionPane.showMessageDialog(IndexListPanel.this, text);
+					}
+				});
+			}
+		};
+		compactThread.start();
 	}
 	
 	class HeaderPanel extends Panel {
@@ -128,69 +190,88 @@ public class IndexListPanel extends JPanel implements ActionListener {
 		}		
 	}
 	
-/*
-	class RebuildPanel extends JPanel {
+	class RebuildPanel extends JPanel implements IndexRebuilder.Listener {
+		static final int maxLines = 1000;
 		JScrollPane jsp;
 		ColorPane cp;
 		int margin = 15;
+		int lines = 0;
+		IndexRebuilder rebuilder = null;
+		Thread rebuildThread = null;
 
 		public RebuildPanel() {
 			super();
 			setBackground(background);
 			setLayout(new BorderLayout());
-			add(new HeaderPanel("UID Table Rebuild", 10, 10), BorderLayout.NORTH);
+			add(new HeaderPanel("Index Rebuild", 10, 10), BorderLayout.NORTH);
 			jsp = new JScrollPane();
 			add(jsp, BorderLayout.CENTER);
 			cp = new ColorPane();
+			jsp.setViewportView(cp);
 		}
-		public void rebuildUIDIndex() {
+		public void rebuild() {
+			if ((rebuildThread != null) && rebuildThread.isAlive()) return;
+			if (footerPanel.progress.isVisible()) return;
 			cp.clear();
-			Index index = Index.getInstance();
-			Configuration config = Configuration.getInstance();
-			File storageDir = config.getStorageDir();
-			int uidsAdded = 0;
-			for (File ptDir : storageDir.listFiles()) {
-				if (ptDir.isDirectory()) {
-					for (File studyDir : ptDir.listFiles()) {
-						boolean found = false;
-						if (studyDir.isDirectory() && studyDir.getName().startsWith("Study")) {
-							for (File seriesDir : studyDir.listFiles()) {
-								for (File seriesFile : seriesDir.listFiles()) {
-									FileObject fob = FileObject.getInstance(seriesFile);
-									if (fob instanceof DicomObject) {
-										DicomObject dob = (DicomObject)fob;
-										//update the UID index
-										String ptID = dob.getPatientID();
-										String stDate = dob.getStudyDate();
-										String accNum = dob.getAccessionNumber();
-										String uid = dob.getStudyInstanceUID();
-										UIDIndexEntry e = index.getUIDIndexEntry(ptID, stDate, accNum);
-										if (e == null) {
-											index.addStudyInstanceUID(ptID, stDate, accNum, "", uid);
-											cp.println(Color.red, ptID + ": " + uid);
-											uidsAdded++;
-										}
-										else cp.println(Color.black, ptID + ": " + uid);
-										found = true;
-										break;
-									}
-								} //end of series
-								if (found) break;
-							}
+			lines = 0;
+			File storageDir = Configuration.getInstance().getStorageDir();
+			cp.println(Color.black, "Rebuilding the index from " + storageDir + "\n");
+			rebuilder = new IndexRebuilder(storageDir, 0, this);
+			footerPanel.startExport(0);
+			rebuildThread = new Thread("IndexRebuilder") {
+				public void run() {
+					String result;
+					try {
+						rebuilder.rebuild();
+						result = (rebuilder.isCancelled() ? "Rebuild cancelled: " : "Rebuild complete: ")
+									+ rebuilder.getSummary();
+					}
+					catch (Throwable t) {
+						logger.warn("Index rebuild failed", t);
+						result = "Rebuild failed: " + t.getMessage();
+					}
+					final String text = result;
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							cp.println(Color.black, "\n" + text.replace("; ", "\n"));
 						}
-					} //end of studies
+					});
+					footerPanel.endExport(result);
+				}
+			};
+			rebuildThread.start();
+		}
+		public void cancel() {
+			if (rebuilder != null) rebuilder.cancel();
+		}
+		//IndexRebuilder.Listener methods, called from the rebuild threads.
+		public void message(final String message, final boolean isError) {
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					if (lines < maxLines) {
+						cp.println(isError ? Color.red : Color.black, message);
+					}
+					else if (lines == maxLines) {
+						cp.println(Color.black, "(further messages are not shown)");
+					}
+					lines++;
 				}
-			}//end of patients
-			index.commit();
-			cp.println("\n" + uidsAdded + " StudyInstanceUID" + ((uidsAdded==1)?"":"s") + " added.");
+			});
+		}
+		public void progress(IndexRebuilder rebuilder) {
+			footerPanel.setProgress(rebuilder.getPatients(), rebuilder.getTotalPatients());
 		}
 	}
 	
-	class CheckPanel extends JPanel {
+	class CheckPanel extends JPanel implements IndexChecker.Listener {
+		static final int maxLines = 1000;
 		JScrollPane jsp;
 		ColorPane cp;
 		int margin = 15;
+		int lines = 0;
 		JLabel sts;
+		IndexChecker checker = null;
+		Thread checkThread = null;
 
 		public CheckPanel() {
 			super();
@@ -201,263 +282,73 @@ public class IndexListPanel extends JPanel implements ActionListener {
 			add(jsp, BorderLayout.CENTER);
 			cp = new ColorPane();
 			jsp.setViewportView(cp);
-			jsp.setViewportView(cp);
 			Box ftr = Box.createHorizontalBox();
-			sts = new JLabel("Oink Moo Quack");
+			sts = new JLabel(" ");
 			ftr.add(Box.createHorizontalStrut(10));
 			ftr.add(sts);
 			add(ftr, BorderLayout.SOUTH);
 		}
 		public void checkIndexes() {
+			if ((checkThread != null) && checkThread.isAlive()) return;
 			cp.clear();
-			
-//			Runnable r = new Runnable() {
-//				public void run() {
-					Configuration config = Configuration.getInstance();
-					IntegerTable table = Configuration.getInstance().getIntegerTable();
-					synchronized(table) {
-						cp.println(Color.black, "Checking IntegerTable");
-						HTree tree = table.index;
-						try {
-							FastIterator fit = tree.keys();
-							int count = 0;
-							String key = null;
-							while ( (key=(String)fit.next()) != null ) {
-								count++;
-								Object value = tree.get(key);
-								String text = count + ": " + key + ": " + value;
-								sts.setText(text);
-								//cp.println(Color.blue, text);
-							}
-							cp.println(Color.black, "Finished checking IntegerTable");
-							cp.println(Color.black, count + " entries found and retrieved\n");
-						}
-						catch (Exception ex) {
-							StringWriter sw = new StringWriter();
-							ex.printStackTrace(new PrintWriter(sw));
-							cp.println(Color.red, sw.toString());
-						}
-					}
-//				}
-//			};
-//			SwingUtilities.invokeLater(r);
-					
-			//First do the IntegerTable
-			Configuration config = Configuration.getInstance();
-			IntegerTable table = Configuration.getInstance().getIntegerTable();
-			synchronized(table) {
-				cp.println(Color.black, "Checking IntegerTable");
-				HTree tree = table.index;
-				try {
-					ExecutorService exec = Executors.newSingleThreadExecutor();
-					FastIterator fit = tree.keys();
-					int count = 0;
-					String key = null;
-					do {
-						ReaderWithTimeout gwto = new ReaderWithTimeout(cp, fit, tree, ++count, sts);
-						Future<String> future = exec.submit(gwto);
-						try { key = future.get(1, TimeUnit.SECONDS); }
-						catch (TimeoutException e) { cp.println(Color.red, gwto.getTimeoutInfo()); }
-					} while (key != null);
-					cp.println(Color.black, "Finished checking IntegerTable");
-					cp.println(Color.black, count + " entries found and retrieved\n");
-				}
-				catch (Exception ex) {
-					StringWriter sw = new StringWriter();
-					ex.printStackTrace(new PrintWriter(sw));
-					cp.println(Color.red, sw.toString());
-				}
-			}
-
-			//Now do the fwdPatientIndex
-			Index index = Index.getInstance();
-			synchronized(index) {
-				cp.println(Color.black, "Checking fwdPatientIndex");
-				HTree tree = index.fwdPatientIndex;
-				try {
-					FastIterator fit = tree.keys();
-					int count = 0;
-					String key;
-					while ( (key = (String)fit.next()) != null ) {
-						count++;
-						Object value = tree.get(key);
-						if (value != null) {
-							final String text = count + ": " + key + ": " + value;
-							Runnable r = new Runnable() {
-								public void run() {
-									sts.setText(text);
-								}
-							};
-							SwingUtilities.invokeLater(r);
-						}
-						else cp.println(Color.red, "null value for key: "+key);
+			lines = 0;
+			cp.println(Color.black, "Checking the IntegerTable and the index\n");
+			checker = new IndexChecker(this);
+			checkThread = new Thread("IndexChecker") {
+				public void run() {
+					String result;
+					try {
+						checker.check();
+						result = checker.getSummary();
+						if (checker.isCancelled()) result = "Check cancelled\n" + result;
 					}
-					cp.println(Color.black, "Finished checking fwdPatientIndex");
-					cp.println(Color.black, count + " entries found and retrieved\n");
-				}
-				catch (Exception ex) {
-					StringWriter sw = new StringWriter();
-					ex.printStackTrace(new PrintWriter(sw));
-					cp.println(Color.red, sw.toString());
-				}
-			}
-			
-			//Now do the invPatientIndex
-			synchronized(index) {
-				cp.println(Color.black, "Checking invPatientIndex");
-				HTree tree = index.invPatientIndex;
-				try {
-					FastIterator fit = tree.keys();
-					int count = 0;
-					String key;
-					while ( (key = (String)fit.next()) != null ) {
-						count++;
-						Object value = tree.get(key);
-						if (value != null) {
-							final String text = count + ": " + key + ": " + value;
-							Runnable r = new Runnable() {
-								public void run() {
-									sts.setText(text);
-								}
-							};
-							SwingUtilities.invokeLater(r);
-						}
-						else cp.println(Color.red, "null value for key: "+key);
+					catch (Throwable t) {
+						logger.warn("Index check failed", t);
+						result = "Check failed: " + t.getMessage();
 					}
-					cp.println(Color.black, "Finished checking invPatientIndex");
-					cp.println(Color.black, count + " entries found and retrieved\n");
-				}
-				catch (Exception ex) {
-					StringWriter sw = new StringWriter();
-					ex.printStackTrace(new PrintWriter(sw));
-					cp.println(Color.red, sw.toString());
-				}
-			}
-			
-			//Now do the fwdStudyIndex
-			synchronized(index) {
-				cp.println(Color.black, "Checking fwdStudyIndex");
-				HTree tree = index.fwdStudyIndex;
-				try {
-					FastIterator fit = tree.keys();
-					int count = 0;
-					String key;
-					while ( (key = (String)fit.next()) != null ) {
-						count++;
-						Object value = tree.get(key);
-						if (value != null) {
-							final String text = count + ": " + key + ": " + value;
-							Runnable r = new Runnable() {
-								public void run() {
-									sts.setText(text);
-								}
-							};
-							SwingUtilities.invokeLater(r);
+					final String text = result;
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							cp.println(Color.black, "\n" + text);
+							sts.setText(checker.isCancelled() ? "Cancelled" : "Done");
 						}
-						else cp.println(Color.red, "null value for key: "+key);
-					}
-					cp.println(Color.black, "Finished checking fwdStudyIndex");
-					cp.println(Color.black, count + " entries found and retrieved\n");
-				}
-				catch (Exception ex) {
-					StringWriter sw = new StringWriter();
-					ex.printStackTrace(new PrintWriter(sw));
-					cp.println(Color.red, sw.toString());
-				}
-			}
-			
-			//Now do the uidIndex
-			synchronized(index) {
-				cp.println(Color.black, "Checking uidIndex");
-				HTree tree = index.uidIndex;
-				try {
-					FastIterator fit = tree.keys();
-					int count = 0;
-					String key;
-					while ( (key = (String)fit.next()) != null ) {
-						count++;
-						Object value = tree.get(key);
-						if (value != null) {
-							final UIDIndexEntry e = (UIDIndexEntry)value;
-							final String text = count + ": " + key + ": " + e.origStudyInstanceUID + " - " + e.anonStudyInstanceUID;
-							Runnable r = new Runnable() {
-								public void run() {
-									sts.setText(text);
-								}
-							};
-							SwingUtilities.invokeLater(r);
-						}
-						else cp.println(Color.red, "null value for key: "+key);
-					}
-					cp.println(Color.black, "Finished checking uidIndex");
-					cp.println(Color.black, count + " entries found and retrieved\n");
+					});
 				}
-				catch (Exception ex) {
-					StringWriter sw = new StringWriter();
-					ex.printStackTrace(new PrintWriter(sw));
-					cp.println(Color.red, sw.toString());
-				}
-			}
+			};
+			checkThread.start();
 		}
-	}
-	
-	class ReaderWithTimeout implements Callable<String> {
-		ColorPane cp;
-		String key;
-		FastIterator fit;
-		HTree tree;
-		int count;
-		JLabel sts;
-		boolean gettingKey = false;
-		public ReaderWithTimeout(ColorPane cp, FastIterator fit, HTree tree, int count, JLabel sts) {
-			this.cp = cp;
-			this.fit = fit;
-			this.tree = tree;
-			this.count = count;
-			this.sts = sts;
-		}
-		public String call() {
-			try {
-				gettingKey = true;
-				key = (String)fit.next();
-				gettingKey = false;
-				if (key != null) {
-					Object value = tree.get(key);
-					if (value != null) {
-						final String text = count + ": " + key + ": " + (Integer)value;
-						Runnable r = new Runnable() {
-							public void run() {
-								sts.setText(text);
-							}
-						};
-						SwingUtilities.invokeLater(r);
-						return text;
+		public void cancel() {
+			if (checker != null) checker.cancel();
+		}
+		//IndexChecker.Listener methods, called from the checker threads.
+		public void message(final String message, final boolean isError) {
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					if (lines < maxLines) {
+						cp.println(isError ? Color.red : Color.black, message);
 					}
-					else {
-						cp.println(Color.red, "null value for key: "+key);
-						return "null value for key: "+key;
+					else if (lines == maxLines) {
+						cp.println(Color.black, "(further messages are not shown)");
 					}
+					lines++;
 				}
-			}
-			catch (Exception ex) {
-				if (gettingKey) cp.println(Color.red, "Exception getting key");
-				else cp.println(Color.red, "Exception getting key: "+key);
-				StringWriter sw = new StringWriter();
-				ex.printStackTrace(new PrintWriter(sw));
-				cp.println(Color.red, sw.toString());
-				return "Exception on key number "+count+" - keep trying";
-			}
-			return key;
+			});
 		}
-		public String getTimeoutInfo() {
-			return "Timeout on key number "+count;
+		public void progress(IndexChecker checker) {
+			final String text = checker.getEntries() + " entries checked, "
+									+ checker.getProblems() + " problems found";
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					sts.setText(text);
+				}
+			});
 		}
 	}
-*/
 	
 	class ListPanel extends JPanel {
 		JScrollPane jsp;
-		JPanel panel;
+		JTable table;
+		PatientTableModel model = null;
 		java.awt.Font mono = new java.awt.Font( "Monospaced", java.awt.Font.BOLD, 12 );
 		java.awt.Font mono18 = new java.awt.Font( "Monospaced", java.awt.Font.BOLD, 18 );
 		String[] columnNames = new String[] {
@@ -480,6 +371,9 @@ public class IndexListPanel extends JPanel implements ActionListener {
 			"PHI-StudyInstanceUID"
 		};
 		JFileChooser chooser = null;
+		FileNameExtensionFilter xlsxFilter = new FileNameExtensionFilter("Excel workbook (*.xlsx)", "xlsx");
+		FileNameExtensionFilter csvFilter = new FileNameExtensionFilter("CSV file (*.csv)", "csv");
+		ExportThread exportThread = null;
 		int margin = 15;
 
 		public ListPanel() {
@@ -487,137 +381,325 @@ public class IndexListPanel extends JPanel implements ActionListener {
 			setBackground(background);
 			setLayout(new BorderLayout());
 			add(new HeaderPanel("Patient Index List", 10, 10), BorderLayout.NORTH);
-			jsp = new JScrollPane();
-			panel = new JPanel();
-			panel.setLayout(new RowLayout(20,5));
-			panel.setBackground(background);
-			jsp.setViewportView(panel);
+			table = new JTable();
+			table.setFont(mono);
+			table.setRowHeight(table.getFontMetrics(mono).getHeight() + 4);
+			table.getTableHeader().setFont(mono18);
+			table.getTableHeader().setReorderingAllowed(false);
+			table.setBackground(background);
+			table.setShowGrid(false);
+			jsp = new JScrollPane(table);
+			jsp.setBorder(BorderFactory.createEmptyBorder(0, margin, 0, 0));
+			jsp.getViewport().setBackground(background);
 			add(jsp, BorderLayout.CENTER);
 			jsp.getVerticalScrollBar().setUnitIncrement(25);
 			chooser = new JFileChooser();
+			chooser.addChoosableFileFilter(xlsxFilter);
+			chooser.addChoosableFileFilter(csvFilter);
+			chooser.setFileFilter(xlsxFilter);
 			File dir = new File(System.getProperty("user.dir"));
 			chooser.setSelectedFile(new File(dir,"Index.xlsx"));
 		}
 		public void list() {
-			PatientIndexEntry[] entries = Index.getInstance().listPatientIndex();
-			panel.removeAll();
-			panel.add(Box.createHorizontalStrut(margin));
-			for (int i=0; i<columnNames.length; i++) {
-				panel.add(new ColumnLabel(columnNames[i]));
-			}
-			panel.add(RowLayout.crlf());
-			//System.out.println("entering list(): entries.size = "+entries.length);
-			for (int i=0; i<entries.length; i+=2) {
-				if ((entries[i] != null) && (entries[i+1] != null)) {
-					//if (i%100 == 0) System.out.println("i = "+i);
-					panel.add(Box.createHorizontalStrut(margin));
-					panel.add(new Label(entries[i+1].name));
-					panel.add(new Label(entries[i+1].id));
-					panel.add(new Label(entries[i].name));
-					panel.add(new Label(entries[i].id));
-					panel.add(RowLayout.crlf());
-				}
-				else System.out.println("Null entry at i="+i);
-			}
-			//System.out.println("returning from list()");
-			revalidate();
+			if (model != null) model.close();
+			model = new PatientTableModel(Index.getInstance().getPatientCount());
+			table.setModel(model);
 		}
 		public void save() {
+			if ((exportThread != null) && exportThread.isAlive()) return;
+			if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+			File outputFile = chooser.getSelectedFile();
+			String name = outputFile.getName().toLowerCase();
+			boolean csv = name.endsWith(".csv");
+			if (!csv && !name.endsWith(".xlsx")) {
+				csv = (chooser.getFileFilter() == csvFilter);
+				outputFile = new File(outputFile.getParentFile(), outputFile.getName() + (csv ? ".csv" : ".xlsx"));
+			}
+			footerPanel.startExport(Index.getInstance().getPatientCount());
+			exportThread = new ExportThread(outputFile, csv);
+			exportThread.start();
+		}
+		public void cancelExport() {
+			if (exportThread != null) exportThread.cancel();
+		}
+		private void addCell(Row row, int k, String text, CellStyle style) {
+			Cell cell = row.createCell(k);
+			cell.setCellValue(text);
+			cell.setCellStyle(style);
+		}
+	}
+	
+	//A thread to export the index to a spreadsheet or a CSV file. The patients
+	//are read from the index a page at a time, and the XLSX workbook is written
+	//with the streaming SXSSF writer, which keeps only a window of rows in memory,
+	//so the memory used does not depend on the size of the index.
+	class ExportThread extends Thread {
+		File file;
+		boolean csv;
+		volatile boolean cancelled = false;
+		SXSSFWorkbook wb = null;
+		Sheet sheet = null;
+		CellStyle style = null;
+		Writer writer = null;
+		int rowNumber = 0;
+
+		public ExportThread(File file, boolean csv) {
+			super("IndexExportThread");
+			this.file = file;
+			this.csv = csv;
+		}
+		public void cancel() {
+			cancelled = true;
+		}
+		public void run() {
 			Index index = Index.getInstance();
+			int patients = 0;
+			boolean ok = false;
 			try {
-				PatientIndexEntry[] entries = index.listPatientIndex();
-				Workbook wb = new XSSFWorkbook();
-				Sheet sheet = wb.createSheet("Index");
-				Row row = sheet.createRow((short)0);
-				CellStyle style = wb.createCellStyle();
+				open();
+				writeRow(listPanel.spreadsheetColumnNames);
+				Index.PatientCursor cursor = index.getPatientCursor();
+				PatientIndexEntry[] entries;
+				while (!cancelled && ((entries=cursor.next(1000)).length > 0)) {
+					for (int i=0; i<entries.length && !cancelled; i+=2) {
+						if ((entries[i] != null) && (entries[i+1] != null)) {
+							writePatient(index, entries[i], entries[i+1]);
+						}
+						patients++;
+					}
+					footerPanel.setProgress(patients);
+				}
+				close();
+				ok = !cancelled;
+			}
+			catch (Throwable t) {
+				logger.warn("Unable to save the index to "+file, t);
+			}
+			finally {
+				if (wb != null) wb.dispose();
+				FileUtil.close(writer);
+				if (!ok) file.delete();
+				String result = ok ? "Saved " + (rowNumber-1) + " studies to " + file.getName()
+								   : (cancelled ? "Save cancelled" : "Save failed");
+				footerPanel.endExport(result);
+			}
+		}
+		//Write the rows for the studies of one patient.
+		private void writePatient(Index index, PatientIndexEntry inv, PatientIndexEntry fwd) throws Exception {
+			//Compute the date offset for this patient
+			String incString = AnonymizerFunctions.hash(inv.id, -1);
+			int n = incString.length();
+			if (n > 4) incString = incString.substring( n-4, n);
+			long inc = Long.parseLong(incString);
+			inc = inc % (10 * 365);
+
+			//Get the studies for this patient
+			Study[] studies = index.listStudiesFor(inv.id);
+			for (Study study : studies) {
+				String anonUID = null;
+				String phiUID = null;
+				UIDIndexEntry uidEntry = index.getUIDIndexEntry( fwd.id,  study.anonDate,  study.anonAccession);
+				if (uidEntry != null) {
+					anonUID = uidEntry.anonStudyInstanceUID;
+					phiUID = uidEntry.origStudyInstanceUID;
+				}
+				writeRow(new String[] {
+					fwd.name, fwd.id, inv.name, inv.id, Long.toString(inc),
+					study.anonDate, study.phiDate, study.anonAccession, study.phiAccession,
+					anonUID, phiUID
+				});
+			}
+		}
+		private void open() throws Exception {
+			if (csv) {
+				writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+			}
+			else {
+				wb = new SXSSFWorkbook(100);
+				sheet = wb.createSheet("Index");
+				style = wb.createCellStyle();
 				org.apache.poi.ss.usermodel.Font font = wb.createFont();
 				font.setBold(true);
 				style.setFont(font);
-				for (int i=0; i<spreadsheetColumnNames.length; i++) {
-					Cell cell = row.createCell(i);
-					cell.setCellValue(spreadsheetColumnNames[i]);
-					cell.setCellStyle(style);
-				}		
-				font.setBold(false);
-				style.setFont(font);
-				int rowNumber = 1;
-				
-				for (int i=0; i<entries.length; i+=2) {
-					if ((entries[i] != null) && (entries[i+1] != null)) {
-						//Compute the date offset for this patient
-						String incString = AnonymizerFunctions.hash(entries[i].id, -1);
-						int n = incString.length();
-						if (n > 4) incString = incString.substring( n-4, n);
-						long inc = Long.parseLong(incString);
-						inc = inc % (10 * 365);
-
-						//Get the studies for this patient
-						Study[] studies = index.listStudiesFor(entries[i].id);
-
-						for (int j=0; j<studies.length; j++) {
-							//Put in the patient columns
-							row = sheet.createRow(rowNumber++); // was (short)(i/2+1)
-							//System.out.println(i+": "+entries[i+1].id);
-							addCell(row, 0, entries[i+1].name, style);
-							addCell(row, 1, entries[i+1].id, style);
-							addCell(row, 2, entries[i].name, style);
-							addCell(row, 3, entries[i].id, style);
-							addCell(row, 4, Long.toString(inc), style);
-							//Put in the study columns
-							addCell(row, 5, studies[j].anonDate, style);
-							addCell(row, 6, studies[j].phiDate, style);
-							addCell(row, 7, studies[j].anonAccession, style);
-							addCell(row, 8, studies[j].phiAccession, style);
-							//Put in the StudyInstanceUIDs
-							UIDIndexEntry uidEntry = index.getUIDIndexEntry( entries[i+1].id,  studies[j].anonDate,  studies[j].anonAccession);
-							if (uidEntry != null) {
-								if (uidEntry.anonStudyInstanceUID != null) {
-									addCell(row, 9, uidEntry.anonStudyInstanceUID, style);
-								}
-								if (uidEntry.origStudyInstanceUID != null) {
-									addCell(row, 10, uidEntry.origStudyInstanceUID, style);
-								}								
-							}
-						}
-					}
+				//Columns are sized from the header, since autosizing
+				//would require all the rows to be kept in memory.
+				for (int i=0; i<listPanel.spreadsheetColumnNames.length; i++) {
+					int width = listPanel.spreadsheetColumnNames[i].length();
+					if (listPanel.spreadsheetColumnNames[i].endsWith("UID")) width = 64;
+					sheet.setColumnWidth(i, (width + 4) * 256);
 				}
-				for (int i=0; i<spreadsheetColumnNames.length; i++) sheet.autoSizeColumn(i);
-				
-				if (chooser.showSaveDialog(this) == chooser.APPROVE_OPTION) {
-					File outputFile = chooser.getSelectedFile();
-					FileOutputStream fos = new FileOutputStream(outputFile);
-					wb.write(fos);
-					fos.close();
+			}
+		}
+		private void writeRow(String[] values) throws Exception {
+			if (csv) {
+				for (int i=0; i<values.length; i++) {
+					if (i > 0) writer.write(",");
+					writer.write(csvValue(values[i]));
 				}
+				writer.write("\r\n");
 			}
-			catch (Exception ex) {
-				ex.printStackTrace();
+			else {
+				Row row = sheet.createRow(rowNumber);
+				for (int i=0; i<values.length; i++) {
+					if (values[i] != null) {
+						Cell cell = row.createCell(i);
+						cell.setCellValue(values[i]);
+						if (rowNumber == 0) cell.setCellStyle(style);
+					}
+				}
 			}
+			rowNumber++;
 		}
-		private void addCell(Row row, int k, String text, CellStyle style) {
-			Cell cell = row.createCell(k);
-			cell.setCellValue(text);
-			cell.setCellStyle(style);
+		private void close() throws Exception {
+			if (cancelled) return;
+			if (csv) {
+				writer.close();
+				writer = null;
+			}
+			else {
+				FileOutputStream fos = new FileOutputStream(file);
+				try { wb.write(fos); }
+				finally { fos.close(); }
+			}
 		}
-		class Label extends JLabel {
-			public Label(String text) {
-				super(text);
-				setFont(mono);
+		private String csvValue(String s) {
+			if (s == null) return "";
+			if ((s.indexOf(',') < 0) && (s.indexOf('"') < 0) && (s.indexOf('\n') < 0) && (s.indexOf('\r') < 0)) return s;
+			return "\"" + s.replace("\"", "\"\"") + "\"";
+		}
+	}
+	
+	//A table model for the patient list. Rows are loaded from the index
+	//a page at a time by a background thread when they are first displayed,
+	//and a limited number of pages are kept in memory, so the memory used
+	//and the time to open the list do not depend on the size of the index.
+	class PatientTableModel extends AbstractTableModel {
+		static final int pageSize = 100;
+		static final int maxPages = 50;
+		int rowCount;
+		LinkedHashMap<Integer,PatientIndexEntry[]> pages;
+		PageLoader loader;
+
+		public PatientTableModel(int rowCount) {
+			this.rowCount = rowCount;
+			pages = new LinkedHashMap<Integer,PatientIndexEntry[]>(16, 0.75f, true) {
+				protected boolean removeEldestEntry(Map.Entry<Integer,PatientIndexEntry[]> eldest) {
+					return size() > maxPages;
+				}
+			};
+			loader = new PageLoader(this);
+			loader.start();
+		}
+		public int getRowCount() {
+			return rowCount;
+		}
+		public int getColumnCount() {
+			return listPanel.columnNames.length;
+		}
+		public String getColumnName(int col) {
+			return listPanel.columnNames[col];
+		}
+		public boolean isCellEditable(int row, int col) {
+			return false;
+		}
+		//Called on the event dispatch thread. If the page containing
+		//the row is not loaded, request it and display an empty cell.
+		public Object getValueAt(int row, int col) {
+			int pageNumber = row / pageSize;
+			PatientIndexEntry[] page = pages.get(pageNumber);
+			if (page == null) {
+				loader.request(pageNumber);
+				return "";
 			}
+			int k = 2 * (row % pageSize);
+			if (k + 1 >= page.length) return "";
+			PatientIndexEntry entry = (col < 2) ? page[k+1] : page[k];
+			if (entry == null) return "";
+			return ((col % 2) == 0) ? entry.name : entry.id;
+		}
+		//Called on the event dispatch thread when a page has been loaded.
+		void setPage(int pageNumber, PatientIndexEntry[] page) {
+			pages.put(pageNumber, page);
+			int first = pageNumber * pageSize;
+			int last = Math.min(first + pageSize, rowCount) - 1;
+			if (last >= first) fireTableRowsUpdated(first, last);
+		}
+		public void close() {
+			loader.interrupt();
+		}
+	}
+
+	//A thread to load pages of the patient list. The most recently
+	//requested page is loaded first, since it is the one being displayed.
+	//The loader records the key after which each page it has reached
+	//starts, and loads a page with a cursor started from the nearest
+	//recorded key before it, so the index is only walked once to reach
+	//any part of the list. The patients between the recorded key and the
+	//page are skipped a page at a time, each under its own read lock.
+	class PageLoader extends Thread {
+		PatientTableModel model;
+		LinkedList<Integer> requests = new LinkedList<Integer>();
+		TreeMap<Integer,String> pageKeys = new TreeMap<Integer,String>();
+
+		public PageLoader(PatientTableModel model) {
+			super("IndexListPageLoader");
+			this.model = model;
+			setDaemon(true);
+			pageKeys.put(0, null);
+		}
+		public synchronized void request(int pageNumber) {
+			Integer p = Integer.valueOf(pageNumber);
+			requests.remove(p);
+			requests.addFirst(p);
+			notify();
+		}
+		private synchronized int next() throws InterruptedException {
+			while (requests.size() == 0) wait();
+			return requests.getFirst().intValue();
+		}
+		private synchronized void done(int pageNumber) {
+			requests.remove(Integer.valueOf(pageNumber));
 		}
-		class ColumnLabel extends JLabel {
-			public ColumnLabel(String text) {
-				super(text);
-				setFont(mono18);
+		//Load a page, starting from the nearest page whose key is known.
+		private PatientIndexEntry[] load(Index index, int pageNumber) {
+			int pageSize = PatientTableModel.pageSize;
+			Map.Entry<Integer,String> start = pageKeys.floorEntry(pageNumber);
+			Index.PatientCursor cursor = index.getPatientCursor(start.getValue());
+			for (int p=start.getKey(); p<pageNumber; p++) {
+				if (isInterrupted() || (cursor.skip(pageSize) < pageSize)) return new PatientIndexEntry[0];
+				pageKeys.put(p + 1, cursor.getKey());
 			}
+			PatientIndexEntry[] page = cursor.next(pageSize);
+			if (page.length == 2 * pageSize) pageKeys.put(pageNumber + 1, cursor.getKey());
+			return page;
+		}
+		public void run() {
+			Index index = Index.getInstance();
+			try {
+				while (!isInterrupted()) {
+					final int pageNumber = next();
+					final PatientIndexEntry[] page = load(index, pageNumber);
+					done(pageNumber);
+					SwingUtilities.invokeLater(new Runnable() {
+						public void run() {
+							model.setPage(pageNumber, page);
+						}
+					});
+				}
+			}
+			catch (InterruptedException done) { }
 		}
 	}
 	
 	class FooterPanel extends JPanel {
 		public JButton list;
 		public JButton save;
-//		public JButton check;
-//		public JButton rebuild;
+		public JButton cancel;
+		public JProgressBar progress;
+		public JButton check;
+		public JButton rebuild;
+		public JButton backup;
+		public JButton compact;
 		public FooterPanel() {
 			super();
 			setBorder(BorderFactory.createCompoundBorder(
@@ -631,14 +713,68 @@ public class IndexListPanel extends JPanel implements ActionListener {
 			add(Box.createHorizontalStrut(15));
 			save = new JButton(" Save ");
 			add(save);
-/*
+			add(Box.createHorizontalStrut(15));
+			progress = new JProgressBar();
+			progress.setStringPainted(true);
+			progress.setVisible(false);
+			add(progress);
+			add(Box.createHorizontalStrut(15));
+			cancel = new JButton(" Cancel ");
+			cancel.setVisible(false);
+			add(cancel);
 			add(Box.createHorizontalGlue());
-			check = new JButton(" Check Indexes");
+			check = new JButton(" Check Indexes ");
 			add(check);
 			add(Box.createHorizontalStrut(15));
-			rebuild = new JButton(" Rebuild UID Table");
+			rebuild = new JButton(" Rebuild Index ");
 			add(rebuild);
-*/
+			add(Box.createHorizontalStrut(15));
+			backup = new JButton(" Backup ");
+			add(backup);
+			add(Box.createHorizontalStrut(15));
+			compact = new JButton(" Compact ");
+			add(compact);
+		}
+		//Show the progress bar for an export.
+		public void startExport(int patients) {
+			save.setEnabled(false);
+			progress.setMaximum(Math.max(patients, 1));
+			progress.setValue(0);
+			progress.setString("0 / " + patients + " patients");
+			progress.setVisible(true);
+			cancel.setVisible(true);
+			revalidate();
+		}
+		//Update the progress bar; called from the export thread.
+		public void setProgress(final int patients) {
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					progress.setValue(patients);
+					progress.setString(patients + " / " + progress.getMaximum() + " patients");
+				}
+			});
+		}
+		//Update the progress bar when the number of patients was not known at the start.
+		public void setProgress(final int patients, final int total) {
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					progress.setMaximum(Math.max(total, 1));
+					progress.setValue(patients);
+					progress.setString(patients + " / " + total + " patients");
+				}
+			});
+		}
+		//Hide the progress bar and report the result; called from the export thread.
+		public void endExport(final String result) {
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					progress.setVisible(false);
+					cancel.setVisible(false);
+					save.setEnabled(currentPanel == listPanel);
+					revalidate();
+					JOptionPane.showMessageDialog(IndexListPanel.this, result);
+				}
+			});
 		}
 	}
 	
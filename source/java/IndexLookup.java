@@ -0,0 +1,557 @@
+/*---------------------------------------------------------------
+*  Copyright 2020 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.anonymizer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import javax.xml.parsers.SAXParserFactory;
+import org.apache.log4j.Logger;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.rsna.util.FileUtil;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Bulk lookups of patients and studies in the Index. The keys are read from
+ * the first columns of a CSV file or of the first sheet of an XLSX workbook,
+ * and the results are written, one row per input row, to a new file of the
+ * same type. Rows are processed in chunks: the keys of a chunk are looked up
+ * together (see Index.getInvEntries and Index.getFwdEntries) and its results
+ * are written before the next chunk is read, so the memory used does not
+ * depend on the number of rows. Workbooks are read with the streaming SAX
+ * reader and written with the streaming SXSSF writer.
+ * <p>
+ * In the inverse direction (anonymized to PHI), the columns are the anonymized
+ * PatientID and, optionally, the anonymized StudyDate and AccessionNumber. In the
+ * forward direction (PHI to anonymized), they are the PHI values. If the first row
+ * has three or more cells, the studies are looked up too. A first row whose first
+ * cell contains "PatientID" is taken as a header.
+ * <p>
+ * The lookup can be run from the Search tab or, in the program directory,
+ * from the command line:
+ * <pre>java -cp Anonymizer.jar org.rsna.anonymizer.IndexLookup inv|fwd input.xlsx [output.xlsx]</pre>
+ */
+public class IndexLookup {
+
+	static final Logger logger = Logger.getLogger(IndexLookup.class);
+
+	static final int chunkSize = 10000;
+
+	static final String[] invColumns = {
+		"ANON-PatientID", "PHI-PatientName", "PHI-PatientID", "Status"
+	};
+	static final String[] invStudyColumns = {
+		"ANON-PatientID", "ANON-StudyDate", "ANON-Accession",
+		"PHI-PatientName", "PHI-PatientID", "PHI-StudyDate", "PHI-Accession",
+		"PHI-StudyInstanceUID", "ANON-StudyInstanceUID", "Status"
+	};
+	static final String[] fwdColumns = {
+		"PHI-PatientID", "ANON-PatientName", "ANON-PatientID", "Status"
+	};
+	static final String[] fwdStudyColumns = {
+		"PHI-PatientID", "PHI-StudyDate", "PHI-Accession",
+		"ANON-PatientName", "ANON-PatientID", "ANON-StudyDate", "ANON-Accession",
+		"ANON-StudyInstanceUID", "PHI-StudyInstanceUID", "Status"
+	};
+
+	File inFile;
+	File outFile;
+	boolean inverse;
+	Listener listener;
+	volatile boolean cancelled = false;
+
+	boolean firstRow = true;
+	boolean studies = false;
+	LinkedList<String[]> chunk = new LinkedList<String[]>();
+	int rows = 0;
+	int found = 0;
+	int notFound = 0;
+	long startTime = 0;
+
+	boolean csv;
+	Writer writer = null;
+	SXSSFWorkbook wb = null;
+	Sheet sheet = null;
+	CellStyle style = null;
+	int rowNumber = 0;
+
+	/**
+	 * The interface for receiving the progress of a lookup.
+	 */
+	public interface Listener {
+		/**
+		 * Report the progress of the lookup, after each chunk.
+		 * @param lookup the lookup, from which the counts can be obtained
+		 */
+		public void progress(IndexLookup lookup);
+	}
+
+	/**
+	 * Class constructor.
+	 * @param inFile the CSV or XLSX file containing the keys
+	 * @param outFile the file to receive the results; it is written
+	 * as CSV if its name ends in .csv, and as XLSX otherwise
+	 * @param inverse true to look up anonymized keys; false to look up PHI keys
+	 * @param listener the listener for progress reports, or null
+	 */
+	public IndexLookup(File inFile, File outFile, boolean inverse, Listener listener) {
+		this.inFile = inFile;
+		this.outFile = outFile;
+		this.inverse = inverse;
+		this.listener = listener;
+		this.csv = outFile.getName().toLowerCase().endsWith(".csv");
+	}
+
+	/**
+	 * Look up a file of keys from the command line.
+	 * @param args the direction (inv or fwd), the input file, and optionally the output file
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.out.println("Usage: java -cp Anonymizer.jar org.rsna.anonymizer.IndexLookup inv|fwd input [output]");
+			return;
+		}
+		boolean inverse = !args[0].equalsIgnoreCase("fwd");
+		File inFile = new File(args[1]);
+		File outFile = (args.length > 2) ? new File(args[2]) : getOutputFile(inFile);
+		try {
+			IndexLookup lookup = new IndexLookup(inFile, outFile, inverse, null);
+			lookup.run();
+			System.out.println(lookup.getSummary());
+		}
+		catch (Exception ex) {
+			System.out.println("Lookup failed");
+			ex.printStackTrace();
+		}
+		finally { Index.getInstance().close(); }
+	}
+
+	/**
+	 * Get the default output file for an input file: the input file
+	 * name with -lookup added before the extension.
+	 * @param inFile the input file
+	 * @return the output file.
+	 */
+	public static File getOutputFile(File inFile) {
+		String name = inFile.getName();
+		int k = name.lastIndexOf(".");
+		String ext = (k > 0) ? name.substring(k) : ".xlsx";
+		if (k > 0) name = name.substring(0, k);
+		return new File(inFile.getAbsoluteFile().getParentFile(), name + "-lookup" + ext);
+	}
+
+	/**
+	 * Look up all the rows of the input file and write the output file.
+	 * If the lookup fails or is cancelled, the output file is deleted.
+	 * @throws Exception if the input file cannot be read or the output
+	 * file cannot be written.
+	 */
+	public void run() throws Exception {
+		startTime = System.currentTimeMillis();
+		boolean ok = false;
+		try {
+			open();
+			if (inFile.getName().toLowerCase().endsWith(".csv")) readCSV();
+			else readXLSX();
+			if (!cancelled) {
+				if (chunk.size() > 0) lookupChunk();
+				close();
+				ok = true;
+			}
+		}
+		finally {
+			if (wb != null) wb.dispose();
+			FileUtil.close(writer);
+			if (!ok) outFile.delete();
+			logger.info(getSummary());
+		}
+	}
+
+	/**
+	 * Stop the lookup at the end of the current chunk.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Determine whether the lookup was cancelled.
+	 * @return true if the lookup was cancelled.
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Get the number of rows looked up so far.
+	 * @return the number of rows.
+	 */
+	public int getRows() {
+		return rows;
+	}
+
+	/**
+	 * Get the output file.
+	 * @return the output file.
+	 */
+	public File getOutputFile() {
+		return outFile;
+	}
+
+	/**
+	 * Get a one-line summary of the counts and throughput.
+	 * @return the summary.
+	 */
+	public String getSummary() {
+		long time = Math.max(System.currentTimeMillis() - startTime, 1);
+		return String.format("%d rows looked up in %.1f s (%.0f rows/s): %d found, %d not found%s",
+								rows, time / 1000.0, (1000.0 * rows) / time, found, notFound,
+								(cancelled ? " (cancelled)" : ""));
+	}
+
+	//Add a row of the input file to the current chunk, and look up
+	//the chunk when it is full.
+	private void row(String[] cells) throws Exception {
+		if (cancelled) return;
+		int n = cells.length;
+		while ((n > 0) && cells[n-1].equals("")) n--;
+		if (firstRow) {
+			firstRow = false;
+			if (n > 0) cells[0] = cells[0].replace("\uFEFF", "");
+			studies = (n >= 3);
+			if (inverse) writeRow(studies ? invStudyColumns : invColumns);
+			else writeRow(studies ? fwdStudyColumns : fwdColumns);
+			if ((n > 0) && cells[0].replaceAll("[\\s_-]", "").toLowerCase().contains("patientid")) return;
+		}
+		if (n == 0) return;
+		chunk.add(cells);
+		if (chunk.size() >= chunkSize) lookupChunk();
+	}
+
+	//Look up the keys of the rows in the current chunk and write the results.
+	private void lookupChunk() throws Exception {
+		int n = chunk.size();
+		String[] ids = new String[n];
+		String[] dates = new String[n];
+		String[] accessions = new String[n];
+		int i = 0;
+		for (String[] cells : chunk) {
+			ids[i] = getCell(cells, 0);
+			dates[i] = getCell(cells, 1);
+			accessions[i] = getCell(cells, 2);
+			i++;
+		}
+		if (inverse) lookupInv(ids, dates, accessions);
+		else lookupFwd(ids, dates, accessions);
+		rows += n;
+		chunk.clear();
+		if (listener != null) listener.progress(this);
+	}
+
+	private void lookupInv(String[] ids, String[] dates, String[] accessions) throws Exception {
+		Index index = Index.getInstance();
+		PatientIndexEntry[] phi = index.getInvEntries(ids);
+		UIDIndexEntry[] uids = studies ? index.getUIDIndexEntries(ids, dates, accessions) : null;
+		HashMap<String,Study[]> studyLists = new HashMap<String,Study[]>();
+		for (int i=0; i<ids.length; i++) {
+			String status = getStatus(ids[i], phi[i]);
+			String name = (phi[i] != null) ? phi[i].name : null;
+			String id = (phi[i] != null) ? phi[i].id : null;
+			if (!studies) {
+				writeRow(new String[] { ids[i], name, id, status });
+				continue;
+			}
+			//The PHI date and accession number are found among the
+			//studies of the patient, which are listed once per chunk.
+			Study study = null;
+			if (id != null) {
+				Study[] list = studyLists.get(id);
+				if (list == null) {
+					list = index.listStudiesFor(id);
+					studyLists.put(id, list);
+				}
+				for (Study s : list) {
+					if (equals(s.anonDate, dates[i]) && equals(s.anonAccession, accessions[i])) study = s;
+				}
+			}
+			if ((phi[i] != null) && hasStudy(dates[i], accessions[i]) && (study == null) && (uids[i] == null)) {
+				status = "study not found";
+			}
+			writeRow(new String[] {
+				ids[i], dates[i], accessions[i], name, id,
+				(study != null) ? study.phiDate : null,
+				(study != null) ? study.phiAccession : null,
+				(uids[i] != null) ? uids[i].origStudyInstanceUID : null,
+				(uids[i] != null) ? uids[i].anonStudyInstanceUID : null,
+				status
+			});
+		}
+	}
+
+	private void lookupFwd(String[] ids, String[] dates, String[] accessions) throws Exception {
+		Index index = Index.getInstance();
+		PatientIndexEntry[] anon = index.getFwdEntries(ids);
+		Study[] found = null;
+		UIDIndexEntry[] uids = null;
+		if (studies) {
+			found = index.getStudies(ids, dates, accessions);
+			int n = ids.length;
+			String[] anonIDs = new String[n];
+			String[] anonDates = new String[n];
+			String[] anonAccessions = new String[n];
+			for (int i=0; i<n; i++) {
+				if ((anon[i] != null) && (found[i] != null)) {
+					anonIDs[i] = anon[i].id;
+					anonDates[i] = found[i].anonDate;
+					anonAccessions[i] = found[i].anonAccession;
+				}
+			}
+			uids = index.getUIDIndexEntries(anonIDs, anonDates, anonAccessions);
+		}
+		for (int i=0; i<ids.length; i++) {
+			String status = getStatus(ids[i], anon[i]);
+			String name = (anon[i] != null) ? anon[i].name : null;
+			String id = (anon[i] != null) ? anon[i].id : null;
+			if (!studies) {
+				writeRow(new String[] { ids[i], name, id, status });
+				continue;
+			}
+			Study study = found[i];
+			if ((anon[i] != null) && hasStudy(dates[i], accessions[i]) && (study == null)) status = "study not found";
+			writeRow(new String[] {
+				ids[i], dates[i], accessions[i], name, id,
+				(study != null) ? study.anonDate : null,
+				(study != null) ? study.anonAccession : null,
+				(uids[i] != null) ? uids[i].anonStudyInstanceUID : null,
+				(uids[i] != null) ? uids[i].origStudyInstanceUID : null,
+				status
+			});
+		}
+	}
+
+	//Get the status of a patient lookup and count the result.
+	private String getStatus(String id, PatientIndexEntry entry) {
+		if (id == null) return "no PatientID";
+		if (entry == null) {
+			notFound++;
+			return "not found";
+		}
+		found++;
+		return "";
+	}
+
+	//Determine whether a row identifies a study.
+	private static boolean hasStudy(String date, String accession) {
+		return (date != null) || (accession != null);
+	}
+
+	private static boolean equals(String a, String b) {
+		return (a == null) ? (b == null) : a.equals(b);
+	}
+
+	//Get a cell of a row, or null if it is missing or empty.
+	private static String getCell(String[] cells, int k) {
+		if ((k >= cells.length) || cells[k].equals("")) return null;
+		return cells[k];
+	}
+
+	private void readCSV() throws Exception {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(inFile), "UTF-8"));
+		try {
+			String[] cells;
+			while (!cancelled && ((cells=readCSVRow(reader)) != null)) row(cells);
+		}
+		finally { FileUtil.close(reader); }
+	}
+
+	//Read a row of a CSV file, allowing quoted values that contain commas,
+	//quotes and line breaks. Return null at the end of the file.
+	static String[] readCSVRow(BufferedReader reader) throws IOException {
+		ArrayList<String> cells = new ArrayList<String>();
+		StringBuffer sb = new StringBuffer();
+		boolean quoted = false;
+		boolean empty = true;
+		int c;
+		while ((c=reader.read()) >= 0) {
+			empty = false;
+			if (quoted) {
+				if (c != '"') sb.append((char)c);
+				else {
+					reader.mark(1);
+					if (reader.read() == '"') sb.append('"');
+					else {
+						reader.reset();
+						quoted = false;
+					}
+				}
+			}
+			else if (c == '"') quoted = true;
+			else if (c == ',') {
+				cells.add(sb.toString().trim());
+				sb.setLength(0);
+			}
+			else if (c == '\n') break;
+			else if (c != '\r') sb.append((char)c);
+		}
+		if (empty) return null;
+		cells.add(sb.toString().trim());
+		return cells.toArray(new String[cells.size()]);
+	}
+
+	//Read the first sheet of a workbook with the SAX reader, which
+	//does not load the sheet into memory.
+	private void readXLSX() throws Exception {
+		OPCPackage pkg = OPCPackage.open(inFile, PackageAccess.READ);
+		try {
+			XSSFReader reader = new XSSFReader(pkg);
+			ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(pkg);
+			Iterator<InputStream> sheets = reader.getSheetsData();
+			if (!sheets.hasNext()) return;
+			InputStream in = sheets.next();
+			try {
+				SAXParserFactory factory = SAXParserFactory.newInstance();
+				factory.setNamespaceAware(true);
+				factory.newSAXParser().parse(new InputSource(in), new SheetHandler(strings));
+			}
+			finally { FileUtil.close(in); }
+		}
+		finally { pkg.revert(); }
+	}
+
+	//A handler for the rows of a worksheet. Cells are placed in their
+	//columns, since empty cells are not stored in the sheet.
+	class SheetHandler extends DefaultHandler {
+		ReadOnlySharedStringsTable strings;
+		ArrayList<String> cells = new ArrayList<String>();
+		StringBuffer text = new StringBuffer();
+		boolean inValue = false;
+		String type = null;
+		int column = 0;
+		public SheetHandler(ReadOnlySharedStringsTable strings) {
+			this.strings = strings;
+		}
+		public void startElement(String uri, String localName, String qName, Attributes attributes) {
+			if (localName.equals("row")) cells.clear();
+			else if (localName.equals("c")) {
+				type = attributes.getValue("t");
+				column = getColumn(attributes.getValue("r"), cells.size());
+				text.setLength(0);
+			}
+			else if (localName.equals("v") || localName.equals("t")) inValue = true;
+		}
+		public void characters(char[] ch, int start, int length) {
+			if (inValue) text.append(ch, start, length);
+		}
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+			if (localName.equals("v") || localName.equals("t")) inValue = false;
+			else if (localName.equals("c")) {
+				String value = text.toString();
+				if ("s".equals(type)) {
+					try { value = strings.getEntryAt(Integer.parseInt(value.trim())); }
+					catch (Exception ex) { value = ""; }
+				}
+				while (cells.size() < column) cells.add("");
+				cells.add(value.trim());
+			}
+			else if (localName.equals("row")) {
+				try { row(cells.toArray(new String[cells.size()])); }
+				catch (Exception ex) { throw new SAXException(ex); }
+			}
+		}
+	}
+
+	//Get the column index from a cell reference (e.g. C12 is column 2).
+	private static int getColumn(String ref, int defaultColumn) {
+		if (ref == null) return defaultColumn;
+		int column = 0;
+		for (int i=0; i<ref.length(); i++) {
+			char c = ref.charAt(i);
+			if ((c < 'A') || (c > 'Z')) break;
+			column = 26 * column + (c - 'A' + 1);
+		}
+		return (column > 0) ? column - 1 : defaultColumn;
+	}
+
+	private void open() throws Exception {
+		if (csv) {
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outFile), "UTF-8"));
+		}
+		else {
+			wb = new SXSSFWorkbook(100);
+			sheet = wb.createSheet("Lookup");
+			style = wb.createCellStyle();
+			org.apache.poi.ss.usermodel.Font font = wb.createFont();
+			font.setBold(true);
+			style.setFont(font);
+			for (int i=0; i<invStudyColumns.length; i++) {
+				sheet.setColumnWidth(i, ((i == 7) || (i == 8)) ? 68 * 256 : 24 * 256);
+			}
+		}
+	}
+
+	private void writeRow(String[] values) throws Exception {
+		if (csv) {
+			for (int i=0; i<values.length; i++) {
+				if (i > 0) writer.write(",");
+				writer.write(csvValue(values[i]));
+			}
+			writer.write("\r\n");
+		}
+		else {
+			Row row = sheet.createRow(rowNumber);
+			for (int i=0; i<values.length; i++) {
+				if (values[i] != null) {
+					Cell cell = row.createCell(i);
+					cell.setCellValue(values[i]);
+					if (rowNumber == 0) cell.setCellStyle(style);
+				}
+			}
+		}
+		rowNumber++;
+	}
+
+	private void close() throws Exception {
+		if (csv) {
+			writer.close();
+			writer = null;
+		}
+		else {
+			FileOutputStream fos = new FileOutputStream(outFile);
+			try { wb.write(fos); }
+			finally { fos.close(); }
+		}
+	}
+
+	private static String csvValue(String s) {
+		if (s == null) return "";
+		if ((s.indexOf(',') < 0) && (s.indexOf('"') < 0) && (s.indexOf('\n') < 0) && (s.indexOf('\r') < 0)) return s;
+		return "\"" + s.replace("\"", "\"\"") + "\"";
+	}
+}
@@ -0,0 +1,145 @@
+/*---------------------------------------------------------------
+*  Copyright 2020 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.anonymizer;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A tool to move the index from one IndexStore implementation to the other.
+ * The Index runs it when it is opened with an indexStore property that does
+ * not match the type of the existing index. It can also be run from the
+ * command line while the program is stopped:
+ * <pre>java -cp Anonymizer.jar org.rsna.anonymizer.IndexMigrator log [data/index]</pre>
+ * where the first argument is the type of the new store (jdbm or log).
+ * <p>
+ * The new store is written under a temporary name and renamed when it is
+ * complete. The original index is kept with its type as a suffix (for
+ * example, data/index-jdbm.db), so it is not opened again if the
+ * indexStore property is changed back. Entries written by earlier
+ * versions of the program are converted to the IndexSerializer encoding.
+ */
+public class IndexMigrator {
+
+	static final Logger logger = Logger.getLogger(IndexMigrator.class);
+
+	/**
+	 * Migrate an index.
+	 * @param args the type of the new store (jdbm or log), and the path
+	 * of the index, without extension (default: data/index)
+	 */
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.out.println("Usage: java -cp Anonymizer.jar org.rsna.anonymizer.IndexMigrator jdbm|log [data/index]");
+			return;
+		}
+		String toType = IndexStore.getType(args[0]);
+		String fromType = toType.equals(IndexStore.LOG) ? IndexStore.JDBM : IndexStore.LOG;
+		String path = (args.length > 1) ? args[1] : "data/index";
+		try {
+			if (IndexStore.exists(toType, path)) {
+				System.out.println("The index at " + path + " is already a " + toType + " store");
+				return;
+			}
+			if (!IndexStore.exists(fromType, path)) {
+				System.out.println("Index not found: " + path);
+				return;
+			}
+			long startTime = System.currentTimeMillis();
+			int count = migrate(fromType, toType, path);
+			long time = System.currentTimeMillis() - startTime;
+			String savedPath = getSavedPath(fromType, path);
+			System.out.println(String.format("Migrated %,d entries in %.1f s", count, time / 1000.0));
+			System.out.print(report(fromType, savedPath));
+			System.out.print(report(toType, path));
+			System.out.println("The original index was saved as " + savedPath);
+		}
+		catch (Exception ex) {
+			System.out.println("Migration failed; the original index is unchanged");
+			ex.printStackTrace();
+		}
+	}
+
+	/**
+	 * Copy an index into a new store of another type, which replaces it.
+	 * Neither store may be open.
+	 * @param fromType the type of the existing index
+	 * @param toType the type of the new store
+	 * @param path the path of the index, without extension
+	 * @return the number of entries copied.
+	 * @throws Exception if the index cannot be migrated. The original
+	 * index is unchanged unless the exception occurs after the new
+	 * store has been installed.
+	 */
+	static int migrate(String fromType, String toType, String path) throws Exception {
+		String tempPath = path + "-migrating";
+		String savedPath = getSavedPath(fromType, path);
+		logger.info("Migrating the index from " + fromType + " to " + toType);
+		IndexStore.delete(toType, tempPath);
+		IndexStore from = IndexStore.open(fromType, path);
+		IndexStore to = null;
+		int count = 0;
+		try {
+			to = IndexStore.open(toType, tempPath);
+			IndexStore.Table[] fromTables = Index.getTables(from);
+			IndexStore.Table[] toTables = Index.getTables(to);
+			for (int i=0; i<fromTables.length; i++) {
+				IndexStore.Cursor cursor = fromTables[i].keys();
+				while (cursor.next()) {
+					toTables[i].put(cursor.getKey(), encode(cursor.getValue()));
+					if ((++count % 10000) == 0) to.commit();
+				}
+			}
+			to.commit();
+		}
+		catch (Exception ex) {
+			if (to != null) to.close();
+			to = null;
+			IndexStore.delete(toType, tempPath);
+			throw ex;
+		}
+		finally {
+			from.close();
+			if (to != null) to.close();
+		}
+		//Install the new store before moving the original, so
+		//that an index is found if the program stops in between.
+		IndexStore.delete(fromType, savedPath);
+		if (!IndexStore.rename(toType, tempPath, path)) {
+			throw new Exception("Unable to rename the migrated index");
+		}
+		if (!IndexStore.rename(fromType, path, savedPath)) {
+			logger.warn("Unable to rename the original index to " + savedPath);
+		}
+		logger.info("Migrated " + count + " entries; the original index was saved as " + savedPath);
+		return count;
+	}
+
+	//Get the path at which the original index is kept.
+	private static String getSavedPath(String type, String path) {
+		return path + "-" + type;
+	}
+
+	//Get a value in a form that both stores accept. Values written by
+	//earlier versions are objects deserialized by JDBM.
+	private static Object encode(Object value) throws Exception {
+		if ((value instanceof byte[]) || (value instanceof String)) return value;
+		return IndexSerializer.encode(value);
+	}
+
+	//Report the size of a store and the average time to look up a key.
+	private static String report(String type, String path) throws Exception {
+		IndexStore store = IndexStore.open(type, path);
+		try {
+			IndexStore.Table[] tables = Index.getTables(store);
+			double time = (IndexCompactor.measureLookups(tables[0], null)
+								+ IndexCompactor.measureLookups(tables[1], null)) / 2;
+			return String.format("%s: %,d bytes; lookup %.1f us\n", type, IndexStore.getSize(type, path), time);
+		}
+		finally { store.close(); }
+	}
+}
@@ -0,0 +1,286 @@
+/*---------------------------------------------------------------
+*  Copyright 2020 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.anonymizer;
+
+import java.io.File;
+import java.util.LinkedList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import org.dcm4che.data.Dataset;
+import org.dcm4che.dict.Tags;
+
+/**
+ * A tool to repair the Index from the anonymized objects in the storage
+ * tree. The patient directories are processed concurrently in a fork/join
+ * pool. For each study, the header of the first DICOM object is read up
+ * to the StudyInstanceUID; the rest of the file is not read.
+ * <p>
+ * Only the parts of the Index that can be derived from anonymized data
+ * are repaired:
+ * <ul>
+ * <li>Missing UID index entries are added, with an empty PHI StudyInstanceUID.
+ * <li>Missing forward patient index entries (and their patient name index
+ * entries) are restored from the inverse patient index entry of the
+ * anonymized PatientID.
+ * </ul>
+ * Patients whose anonymized PatientID is not in the inverse patient index
+ * cannot be repaired, since their PHI is not in the storage tree; they are
+ * counted and reported to the listener. Changes are committed in groups
+ * by the Index as they are made, and once more when the rebuild is done.
+ */
+public class IndexRebuilder {
+
+	static final Logger logger = Logger.getLogger(IndexRebuilder.class);
+
+	File storageDir;
+	int threads;
+	Listener listener;
+	volatile boolean cancelled = false;
+
+	AtomicInteger patients = new AtomicInteger();
+	AtomicInteger studies = new AtomicInteger();
+	AtomicInteger filesRead = new AtomicInteger();
+	AtomicInteger uidsAdded = new AtomicInteger();
+	AtomicInteger patientsRepaired = new AtomicInteger();
+	AtomicInteger patientsUnknown = new AtomicInteger();
+	int totalPatients = 0;
+	long startTime = 0;
+
+	/**
+	 * The interface for receiving the progress of a rebuild.
+	 * The methods are called from the threads of the pool.
+	 */
+	public interface Listener {
+		/**
+		 * Report a repair or a problem.
+		 * @param message a one-line description
+		 * @param isError true if the patient could not be repaired
+		 */
+		public void message(String message, boolean isError);
+		/**
+		 * Report the progress of the rebuild.
+		 * @param rebuilder the rebuilder, from which the counts can be obtained
+		 */
+		public void progress(IndexRebuilder rebuilder);
+	}
+
+	/**
+	 * Class constructor.
+	 * @param storageDir the root of the storage tree
+	 * @param threads the number of threads, or zero for the number of processors
+	 * @param listener the listener for progress reports, or null
+	 */
+	public IndexRebuilder(File storageDir, int threads, Listener listener) {
+		this.storageDir = storageDir;
+		this.threads = (threads > 0) ? threads : Runtime.getRuntime().availableProcessors();
+		this.listener = listener;
+	}
+
+	/**
+	 * Rebuild the Index. This method returns when all the patient
+	 * directories have been processed or the rebuild is cancelled.
+	 */
+	public void rebuild() {
+		startTime = System.currentTimeMillis();
+		File[] ptDirs = listDirs(storageDir, null);
+		totalPatients = ptDirs.length;
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			pool.invoke(new PatientTask(ptDirs, 0, ptDirs.length));
+		}
+		finally {
+			pool.shutdown();
+			Index.getInstance().commit();
+		}
+		progress();
+		logger.info(getSummary());
+	}
+
+	/**
+	 * Stop the rebuild. Patients already in progress are completed.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Determine whether the rebuild was cancelled.
+	 * @return true if the rebuild was cancelled.
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Get the number of patient directories in the storage tree.
+	 * @return the number of patient directories.
+	 */
+	public int getTotalPatients() {
+		return totalPatients;
+	}
+
+	/**
+	 * Get the number of patient directories processed so far.
+	 * @return the number of patients processed.
+	 */
+	public int getPatients() {
+		return patients.get();
+	}
+
+	/**
+	 * Get a one-line summary of the counts and throughput.
+	 * @return the summary.
+	 */
+	public String getSummary() {
+		long time = Math.max(System.currentTimeMillis() - startTime, 1);
+		int n = patients.get();
+		return String.format("%d/%d patients, %d studies, %d files read in %.1f s (%.0f patients/s); "
+								+ "%d UIDs added, %d patients repaired, %d patients not in the index",
+								n, totalPatients, studies.get(), filesRead.get(), time / 1000.0,
+								(1000.0 * n) / time, uidsAdded.get(), patientsRepaired.get(),
+								patientsUnknown.get());
+	}
+
+	//Process a range of patient directories, splitting it until
+	//each task has a single patient.
+	class PatientTask extends RecursiveAction {
+		File[] ptDirs;
+		int first;
+		int last;
+		public PatientTask(File[] ptDirs, int first, int last) {
+			this.ptDirs = ptDirs;
+			this.first = first;
+			this.last = last;
+		}
+		protected void compute() {
+			if (cancelled) return;
+			if (last - first > 1) {
+				int mid = (first + last) >>> 1;
+				invokeAll(new PatientTask(ptDirs, first, mid), new PatientTask(ptDirs, mid, last));
+			}
+			else if (last > first) {
+				try { rebuildPatient(ptDirs[first]); }
+				catch (Exception ex) {
+					logger.warn("Unable to rebuild the index for "+ptDirs[first], ex);
+					message(ptDirs[first].getName() + ": " + ex.getMessage(), true);
+				}
+				int n = patients.incrementAndGet();
+				if ((n % 100) == 0) progress();
+			}
+		}
+	}
+
+	//Repair the index entries for one patient directory.
+	private void rebuildPatient(File ptDir) throws Exception {
+		Index index = Index.getInstance();
+		boolean patientChecked = false;
+		for (File studyDir : listDirs(ptDir, "Study")) {
+			String[] header = readStudyHeader(studyDir);
+			if (header == null) continue;
+			studies.incrementAndGet();
+			String anonPtName = header[0];
+			String anonPtID = header[1];
+			String anonStudyDate = header[2];
+			String anonAccession = header[3];
+			String anonStudyUID = header[4];
+
+			if (!patientChecked) {
+				patientChecked = true;
+				PatientIndexEntry inv = index.getInvEntry(anonPtID);
+				if (inv == null) {
+					patientsUnknown.incrementAndGet();
+					message(anonPtID + ": not in the patient index", true);
+				}
+				else if (index.getFwdEntry(inv.id) == null) {
+					index.addPatient(inv.name, inv.id, anonPtName, anonPtID);
+					patientsRepaired.incrementAndGet();
+					message(anonPtID + ": patient index entry restored", false);
+				}
+			}
+
+			if (index.getUIDIndexEntry(anonPtID, anonStudyDate, anonAccession) == null) {
+				index.addStudyInstanceUID(anonPtID, anonStudyDate, anonAccession, "", anonStudyUID);
+				uidsAdded.incrementAndGet();
+				message(anonPtID + ": " + anonStudyUID + " added", false);
+			}
+		}
+	}
+
+	//Get the identifiers of a study from the first DICOM object in its series
+	//directories: { PatientName, PatientID, StudyDate, AccessionNumber, StudyInstanceUID }.
+	private String[] readStudyHeader(File studyDir) {
+		for (File seriesDir : listDirs(studyDir, null)) {
+			File[] files = seriesDir.listFiles();
+			if (files == null) continue;
+			for (File file : files) {
+				if (file.isFile()) {
+					String[] header = readHeader(file);
+					if (header != null) return header;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Read the patient and study identifiers from a DICOM file, parsing
+	 * only the elements that precede the SeriesInstanceUID.
+	 * @param file the file
+	 * @return { PatientName, PatientID, StudyDate, AccessionNumber, StudyInstanceUID },
+	 * or null if the file is not a DICOM object.
+	 */
+	public String[] readHeader(File file) {
+		DicomHeader header = null;
+		try {
+			filesRead.incrementAndGet();
+			header = new DicomHeader(file, Tags.SeriesInstanceUID);
+			Dataset ds = header.getDataset();
+			String uid = ds.getString(Tags.StudyInstanceUID);
+			if (uid == null) return null;
+			return new String[] {
+				getString(ds, Tags.PatientName),
+				getString(ds, Tags.PatientID),
+				getString(ds, Tags.StudyDate),
+				getString(ds, Tags.AccessionNumber),
+				uid.trim()
+			};
+		}
+		catch (Exception notDicom) { return null; }
+		finally { if (header != null) header.close(); }
+	}
+
+	private static String getString(Dataset ds, int tag) throws Exception {
+		String s = ds.getString(tag);
+		return (s != null) ? s.trim() : "";
+	}
+
+	//List the subdirectories of a directory, optionally
+	//only those whose names start with a prefix.
+	private static File[] listDirs(File dir, String prefix) {
+		LinkedList<File> list = new LinkedList<File>();
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory() && ((prefix == null) || file.getName().startsWith(prefix))) {
+					list.add(file);
+				}
+			}
+		}
+		return list.toArray(new File[list.size()]);
+	}
+
+	private void message(String message, boolean isError) {
+		if (listener != null) listener.message(message, isError);
+	}
+
+	private void progress() {
+		if (listener != null) listener.progress(this);
+	}
+}
@@ -13,6 +13,9 @@ import java.io.*;
 import java.util.*;
 import javax.swing.*;
 import javax.swing.border.*;
+import javax.swing.event.*;
+import javax.swing.filechooser.FileNameExtensionFilter;
+import javax.swing.table.*;
 import org.apache.log4j.*;
 import org.rsna.ui.RowLayout;
 
@@ -26,6 +29,8 @@ public class IndexSearchPanel extends JPanel implements ActionListener {
 	private SearchPanel searchPanel;
 	private FooterPanel footerPanel;
 	Color background;
+	JFileChooser chooser = null;
+	LookupThread lookupThread = null;
 
 	/**
 	 * Class constructor.
@@ -40,6 +45,8 @@ public class IndexSearchPanel extends JPanel implements ActionListener {
 		searchPanel = new SearchPanel();
 		footerPanel = new FooterPanel();
 		footerPanel.search.addActionListener(this);
+		footerPanel.lookup.addActionListener(this);
+		footerPanel.cancel.addActionListener(this);
 		searchPanel.searchField.addActionListener(this);
 		this.add(searchPanel, BorderLayout.CENTER);
 		this.add(footerPanel, BorderLayout.SOUTH);
@@ -47,6 +54,8 @@ public class IndexSearchPanel extends JPanel implements ActionListener {
 	
 	public void setFocus() {
 		searchPanel.searchField.requestFocus();
+		PatientSearchIndex searchIndex = PatientSearchIndex.getInstance();
+		if (!searchIndex.isReady()) searchIndex.rebuild();
 	}		
 
 	/**
@@ -59,6 +68,84 @@ public class IndexSearchPanel extends JPanel implements ActionListener {
 		if (source.equals(footerPanel.search) || source.equals(searchPanel.searchField)) {
 			searchPanel.search();
 		}
+		else if (source.equals(footerPanel.lookup)) {
+			lookup();
+		}
+		else if (source.equals(footerPanel.cancel)) {
+			if (lookupThread != null) lookupThread.lookup.cancel();
+		}
+	}
+
+	//Get a file of keys and start a bulk lookup. The results are
+	//written next to the input file, with -lookup added to its name.
+	private void lookup() {
+		if ((lookupThread != null) && lookupThread.isAlive()) return;
+		if (chooser == null) {
+			chooser = new JFileChooser();
+			FileNameExtensionFilter filter = new FileNameExtensionFilter("Excel workbook or CSV file (*.xlsx, *.csv)", "xlsx", "csv");
+			chooser.addChoosableFileFilter(filter);
+			chooser.setFileFilter(filter);
+			chooser.setCurrentDirectory(new File(System.getProperty("user.dir")));
+			chooser.setDialogTitle("Select the file of PatientIDs to look up");
+		}
+		if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+		File inFile = chooser.getSelectedFile();
+		String[] options = { "Anonymized to PHI", "PHI to anonymized", "Cancel" };
+		int option = JOptionPane.showOptionDialog(this,
+			"The first column of the file must contain PatientIDs.\n"
+			+ "If the file has StudyDate and AccessionNumber columns\n"
+			+ "after the PatientID, the studies are looked up too.\n\n"
+			+ "Select the direction of the lookup:",
+			"Bulk Lookup", JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE,
+			null, options, options[0]);
+		if ((option != 0) && (option != 1)) return;
+		File outFile = IndexLookup.getOutputFile(inFile);
+		if (outFile.exists()) {
+			int yesno = JOptionPane.showConfirmDialog(this,
+				outFile + " exists.\nDo you want to replace it?",
+				"Bulk Lookup", JOptionPane.YES_NO_OPTION);
+			if (yesno != JOptionPane.YES_OPTION) return;
+		}
+		footerPanel.startLookup();
+		lookupThread = new LookupThread(inFile, outFile, (option == 0));
+		lookupThread.start();
+	}
+
+	//A thread to run a bulk lookup, reporting its progress in the status line.
+	class LookupThread extends Thread implements IndexLookup.Listener {
+		IndexLookup lookup;
+		public LookupThread(File inFile, File outFile, boolean inverse) {
+			super("IndexLookupThread");
+			lookup = new IndexLookup(inFile, outFile, inverse, this);
+		}
+		public void run() {
+			String result;
+			try {
+				lookup.run();
+				result = lookup.getSummary();
+				if (!lookup.isCancelled()) result += "\nThe results were written to " + lookup.getOutputFile();
+			}
+			catch (Exception ex) {
+				logger.warn("Bulk lookup failed", ex);
+				result = "The lookup failed:\n" + ex.getMessage();
+			}
+			final String message = result;
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					searchPanel.status.setText(" ");
+					footerPanel.endLookup();
+					JOptionPane.showMessageDialog(IndexSearchPanel.this, message);
+				}
+			});
+		}
+		public void progress(final IndexLookup lookup) {
+			final String text = lookup.getRows() + " rows looked up";
+			SwingUtilities.invokeLater(new Runnable() {
+				public void run() {
+					searchPanel.status.setText(text);
+				}
+			});
+		}
 	}
 	
 	class HeaderPanel extends Panel {
@@ -76,13 +163,19 @@ public class IndexSearchPanel extends JPanel implements ActionListener {
 		}		
 	}
 	
-	class SearchPanel extends JPanel {
+	class SearchPanel extends JPanel implements DocumentListener, ListSelectionListener {
+		static final int maxResults = 50;
+		static final int delay = 150;
 		public JTextField searchField = new JTextField("", 20);
-		JLabel searchLabel = new JLabel("Anonymized PatientID: ");
+		JLabel searchLabel = new JLabel("Search (name or ID): ");
 		JLabel nameLabel = new JLabel("Original PatientName: ");
 		JLabel idLabel = new JLabel("Original PatientID: ");
 		JLabel nameResult = new JLabel("???");
 		JLabel idResult = new JLabel("???");
+		JLabel status = new JLabel(" ");
+		ResultTableModel model = new ResultTableModel();
+		JTable table = new JTable(model);
+		javax.swing.Timer timer;
 		JPanel centerPanel;
 		public SearchPanel() {
 			super();
@@ -123,24 +216,106 @@ public class IndexSearchPanel extends JPanel implements ActionListener {
 			hBox.add(Box.createHorizontalGlue());
 			hBox.add(centerPanel);
 			hBox.add(Box.createHorizontalGlue());
-			add(hBox, BorderLayout.CENTER);
+
+			//The ranked matches, best first
+			table.setFont( new java.awt.Font( "Monospaced", java.awt.Font.PLAIN, 12 ) );
+			table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+			table.getSelectionModel().addListSelectionListener(this);
+			table.setFillsViewportHeight(true);
+			JScrollPane jsp = new JScrollPane(table);
+			jsp.setPreferredSize(new Dimension(600, 300));
+
+			JPanel resultsPanel = new JPanel(new BorderLayout());
+			resultsPanel.setBackground(background);
+			resultsPanel.setBorder(BorderFactory.createEmptyBorder(15, 20, 10, 20));
+			resultsPanel.add(status, BorderLayout.NORTH);
+			resultsPanel.add(jsp, BorderLayout.CENTER);
+
+			Box vBox = Box.createVerticalBox();
+			vBox.add(hBox);
+			vBox.add(resultsPanel);
+			add(vBox, BorderLayout.CENTER);
+
+			//Search as the user types, after a short pause
+			timer = new javax.swing.Timer(delay, new ActionListener() {
+				public void actionPerformed(ActionEvent event) {
+					search();
+				}
+			});
+			timer.setRepeats(false);
+			searchField.getDocument().addDocumentListener(this);
+		}
+		public void insertUpdate(DocumentEvent event) { timer.restart(); }
+		public void removeUpdate(DocumentEvent event) { timer.restart(); }
+		public void changedUpdate(DocumentEvent event) { timer.restart(); }
+		public void valueChanged(ListSelectionEvent event) {
+			if (event.getValueIsAdjusting()) return;
+			int row = table.getSelectedRow();
+			if (row >= 0) showEntry(model.getInvEntry(row));
 		}
 		public void search() {
-			String key = searchField.getText();
-			PatientIndexEntry entry = Index.getInstance().getInvEntry(key);
-			if (entry != null) {
-				nameResult.setText(entry.name);
-				idResult.setText(entry.id);
+			timer.stop();
+			String query = searchField.getText().trim();
+			PatientSearchIndex searchIndex = PatientSearchIndex.getInstance();
+			long startTime = System.currentTimeMillis();
+			PatientIndexEntry[] results = searchIndex.search(query, maxResults);
+			long time = System.currentTimeMillis() - startTime;
+			model.setResults(results);
+			showEntry((results.length > 0) ? results[0] : null);
+			if (query.length() == 0) status.setText(" ");
+			else if (!searchIndex.isReady()) {
+				status.setText("The search index is being built; only exact PatientID matches are shown.");
+			}
+			else status.setText(model.getRowCount() + " matches (" + time + " ms)");
+		}
+		private void showEntry(PatientIndexEntry inv) {
+			if (inv != null) {
+				nameResult.setText(inv.name);
+				idResult.setText(inv.id);
 			}
 			else {
 				nameResult.setText("???");
 				idResult.setText("???");
-			}				
+			}
+		}
+	}
+
+	class ResultTableModel extends AbstractTableModel {
+		String[] columnNames = { "ANON PatientName", "ANON PatientID", "PHI PatientName", "PHI PatientID" };
+		PatientIndexEntry[] results = new PatientIndexEntry[0];
+		public void setResults(PatientIndexEntry[] results) {
+			this.results = results;
+			fireTableDataChanged();
+		}
+		public PatientIndexEntry getInvEntry(int row) {
+			return results[2*row];
+		}
+		public int getRowCount() {
+			return results.length / 2;
+		}
+		public int getColumnCount() {
+			return columnNames.length;
+		}
+		public String getColumnName(int col) {
+			return columnNames[col];
+		}
+		public Object getValueAt(int row, int col) {
+			PatientIndexEntry inv = results[2*row];
+			PatientIndexEntry fwd = results[2*row+1];
+			switch (col) {
+				case 0: return fwd.name;
+				case 1: return fwd.id;
+				case 2: return inv.name;
+				case 3: return inv.id;
+			}
+			return null;
 		}
 	}
 
 	class FooterPanel extends JPanel {
 		public JButton search;
+		public JButton lookup;
+		public JButton cancel;
 		public FooterPanel() {
 			super();
 			setBorder(BorderFactory.createCompoundBorder(
@@ -150,7 +325,24 @@ public class IndexSearchPanel extends JPanel implements ActionListener {
 			setLayout(new BoxLayout(this, BoxLayout.X_AXIS));
 			setBackground(background);
 			search = new JButton("Search");
+			lookup = new JButton("Bulk Lookup...");
+			cancel = new JButton("Cancel Lookup");
+			cancel.setVisible(false);
 			add(search);
+			add(Box.createHorizontalGlue());
+			add(cancel);
+			add(Box.createHorizontalStrut(5));
+			add(lookup);
+		}
+		public void startLookup() {
+			lookup.setEnabled(false);
+			cancel.setVisible(true);
+			revalidate();
+		}
+		public void endLookup() {
+			lookup.setEnabled(true);
+			cancel.setVisible(false);
+			revalidate();
 		}
 	}
 	
@@ -0,0 +1,159 @@
+/*---------------------------------------------------------------
+*  Copyright 2020 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.anonymizer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A compact binary encoding for the entries stored in the index.
+ * Entries are stored in the JDBM trees as byte arrays in this encoding
+ * instead of as serialized Java objects. An encoded entry starts with a
+ * version byte and a type byte, followed by the fields of the entry as
+ * UTF-8 strings, each preceded by its length plus one as a variable-length
+ * integer (seven bits per byte, low-order bits first). A null string is
+ * encoded as length zero.
+ */
+public class IndexSerializer {
+
+	static final int VERSION = 1;
+
+	static final int PATIENT = 1;
+	static final int STUDY = 2;
+	static final int UID = 3;
+	static final int STUDYLIST = 4;
+
+	/**
+	 * Encode an index entry.
+	 * @param obj the entry (a PatientIndexEntry, Study, UIDIndexEntry or StudyIndexEntry)
+	 * @return the encoded entry.
+	 * @throws IOException if the object is not an index entry.
+	 */
+	public static byte[] encode(Object obj) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(baos);
+		out.writeByte(VERSION);
+		if (obj instanceof PatientIndexEntry) {
+			PatientIndexEntry entry = (PatientIndexEntry)obj;
+			out.writeByte(PATIENT);
+			writeString(out, entry.key);
+			writeString(out, entry.name);
+			writeString(out, entry.id);
+		}
+		else if (obj instanceof Study) {
+			out.writeByte(STUDY);
+			writeStudy(out, (Study)obj);
+		}
+		else if (obj instanceof UIDIndexEntry) {
+			UIDIndexEntry entry = (UIDIndexEntry)obj;
+			out.writeByte(UID);
+			writeString(out, entry.origStudyInstanceUID);
+			writeString(out, entry.anonStudyInstanceUID);
+		}
+		else if (obj instanceof StudyIndexEntry) {
+			StudyIndexEntry entry = (StudyIndexEntry)obj;
+			out.writeByte(STUDYLIST);
+			writeString(out, entry.key);
+			writeLength(out, entry.studies.size());
+			for (Study study : entry.studies) writeStudy(out, study);
+		}
+		else throw new IOException("Unsupported index entry: "+obj);
+		out.flush();
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Decode an index entry.
+	 * @param bytes the encoded entry
+	 * @return the entry.
+	 * @throws IOException if the encoding is not recognized.
+	 */
+	public static Object decode(byte[] bytes) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		int version = in.readUnsignedByte();
+		if (version != VERSION) throw new IOException("Unsupported index entry version: "+version);
+		int type = in.readUnsignedByte();
+		switch (type) {
+			case PATIENT:
+				return new PatientIndexEntry(readString(in), readString(in), readString(in));
+			case STUDY:
+				return readStudy(in);
+			case UID:
+				return new UIDIndexEntry(readString(in), readString(in));
+			case STUDYLIST:
+				StudyIndexEntry entry = new StudyIndexEntry(readString(in));
+				int n = readLength(in);
+				for (int i=0; i<n; i++) entry.add(readStudy(in));
+				return entry;
+		}
+		throw new IOException("Unsupported index entry type: "+type);
+	}
+
+	/**
+	 * Get the entry represented by a value read from an index tree.
+	 * Values written by earlier versions of the program are serialized
+	 * Java objects; they are returned unchanged.
+	 * @param value the value read from the tree
+	 * @return the entry.
+	 * @throws IOException if the value cannot be decoded.
+	 */
+	public static Object toEntry(Object value) throws IOException {
+		if (value instanceof byte[]) return decode((byte[])value);
+		return value;
+	}
+
+	private static void writeStudy(DataOutputStream out, Study study) throws IOException {
+		writeString(out, study.phiDate);
+		writeString(out, study.phiAccession);
+		writeString(out, study.anonDate);
+		writeString(out, study.anonAccession);
+	}
+
+	private static Study readStudy(DataInputStream in) throws IOException {
+		return new Study(readString(in), readString(in), readString(in), readString(in));
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			writeLength(out, 0);
+			return;
+		}
+		byte[] b = s.getBytes("UTF-8");
+		writeLength(out, b.length + 1);
+		out.write(b);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int len = readLength(in) - 1;
+		if (len < 0) return null;
+		byte[] b = new byte[len];
+		in.readFully(b);
+		return new String(b, "UTF-8");
+	}
+
+	private static void writeLength(DataOutputStream out, int n) throws IOException {
+		while ((n & ~0x7F) != 0) {
+			out.writeByte((n & 0x7F) | 0x80);
+			n >>>= 7;
+		}
+		out.writeByte(n);
+	}
+
+	private static int readLength(DataInputStream in) throws IOException {
+		int n = 0;
+		for (int shift=0; shift<32; shift+=7) {
+			int b = in.readUnsignedByte();
+			n |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return n;
+		}
+		throw new IOException("Malformed length in index entry");
+	}
+}
@@ -0,0 +1,214 @@
+/*---------------------------------------------------------------
+*  Copyright 2020 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.anonymizer;
+
+import java.io.File;
+import org.rsna.util.FileUtil;
+
+/**
+ * The storage behind the Index: a set of named tables of key/value pairs,
+ * committed together. Two implementations are provided:
+ * <ul>
+ * <li>JdbmIndexStore (type "jdbm", the default) keeps each table in a JDBM
+ * HTree or BTree, in the files index.db and index.lg.
+ * <li>LogIndexStore (type "log") keeps all the tables in memory, appends
+ * each change to a log, and periodically writes a checkpoint of the tables
+ * so the log can be discarded. It is in the directory index.logstore.
+ * </ul>
+ * The implementation is selected by the indexStore property in the
+ * program.properties file. Keys are Strings; values are the byte arrays
+ * of the IndexSerializer encoding, or Strings.
+ * <p>
+ * A store does not lock its tables; the Index read/write lock protects them.
+ */
+public abstract class IndexStore {
+
+	public static final String JDBM = "jdbm";
+	public static final String LOG = "log";
+
+	/**
+	 * A table of key/value pairs. A hash table returns its keys in no particular
+	 * order; a sorted table returns them in String order and can be browsed from
+	 * a key.
+	 */
+	public interface Table {
+		/**
+		 * Get the value of a key.
+		 * @param key the key
+		 * @return the value, or null if the key is not in the table.
+		 * @throws Exception if the table cannot be read.
+		 */
+		public Object get(Object key) throws Exception;
+		/**
+		 * Store a value, replacing the current value of the key.
+		 * @param key the key
+		 * @param value the value
+		 * @throws Exception if the table cannot be written.
+		 */
+		public void put(Object key, Object value) throws Exception;
+		/**
+		 * Remove a key. Removing a key that is not in the table has no effect.
+		 * @param key the key
+		 * @throws Exception if the table cannot be written.
+		 */
+		public void remove(Object key) throws Exception;
+		/**
+		 * Get the number of keys in the table. For a JDBM HTree,
+		 * this requires reading all the keys.
+		 * @return the number of keys.
+		 * @throws Exception if the table cannot be read.
+		 */
+		public int size() throws Exception;
+		/**
+		 * Get a cursor over all the entries of the table.
+		 * @return the cursor, positioned before the first entry.
+		 * @throws Exception if the table cannot be read.
+		 */
+		public Cursor keys() throws Exception;
+		/**
+		 * Get a cursor over the entries of a sorted table whose keys
+		 * are equal to or greater than a key.
+		 * @param key the first key, or null to start at the beginning
+		 * @return the cursor, positioned before the first entry.
+		 * @throws Exception if the table cannot be read.
+		 * @throws UnsupportedOperationException if the table is not sorted.
+		 */
+		public Cursor browse(Object key) throws Exception;
+	}
+
+	/**
+	 * A position in a table. A cursor is only valid while the Index lock
+	 * under which it was obtained is held; to continue after releasing the
+	 * lock, start a new cursor at the last key (for a sorted table).
+	 * The cursors of a hash table can be resumed: keys added in between
+	 * may or may not be returned, and the value of a key removed in
+	 * between is null.
+	 */
+	public interface Cursor {
+		/**
+		 * Move to the next entry.
+		 * @return false if there are no more entries.
+		 * @throws Exception if the table cannot be read.
+		 */
+		public boolean next() throws Exception;
+		/**
+		 * Get the key of the current entry.
+		 * @return the key.
+		 */
+		public Object getKey();
+		/**
+		 * Get the value of the current entry.
+		 * @return the value.
+		 * @throws Exception if the table cannot be read.
+		 */
+		public Object getValue() throws Exception;
+	}
+
+	/**
+	 * Get a hash table, creating it if it does not exist.
+	 * @param name the name of the table
+	 * @return the table.
+	 * @throws Exception if the table cannot be obtained.
+	 */
+	public abstract Table getHashTable(String name) throws Exception;
+
+	/**
+	 * Get a sorted table, creating it if it does not exist.
+	 * @param name the name of the table
+	 * @return the table.
+	 * @throws Exception if the table cannot be obtained.
+	 */
+	public abstract Table getSortedTable(String name) throws Exception;
+
+	/**
+	 * Make the changes to all the tables durable.
+	 * @throws Exception if the changes cannot be committed.
+	 */
+	public abstract void commit() throws Exception;
+
+	/**
+	 * Commit and close the store.
+	 */
+	public abstract void close();
+
+	/**
+	 * Get the type of the store.
+	 * @return JDBM or LOG.
+	 */
+	public abstract String getType();
+
+	/**
+	 * Get the type of store named by a property value.
+	 * @param name the value of the indexStore property
+	 * @return LOG if the name is "log" (ignoring case); otherwise JDBM.
+	 */
+	public static String getType(String name) {
+		return ((name != null) && name.trim().equalsIgnoreCase(LOG)) ? LOG : JDBM;
+	}
+
+	/**
+	 * Open a store, creating it if it does not exist.
+	 * @param type the type of the store
+	 * @param path the path of the store, without extension
+	 * @return the store.
+	 * @throws Exception if the store cannot be opened.
+	 */
+	public static IndexStore open(String type, String path) throws Exception {
+		if (type.equals(LOG)) return new LogIndexStore(path);
+		return new JdbmIndexStore(path);
+	}
+
+	/**
+	 * Determine whether a store exists.
+	 * @param type the type of the store
+	 * @param path the path of the store, without extension
+	 * @return true if the store exists.
+	 */
+	public static boolean exists(String type, String path) {
+		if (type.equals(LOG)) return LogIndexStore.getDir(path).exists();
+		return IndexConverter.getDB(path).exists();
+	}
+
+	/**
+	 * Get the number of bytes used by a store on the disk.
+	 * @param type the type of the store
+	 * @param path the path of the store, without extension
+	 * @return the size of the store's files.
+	 */
+	public static long getSize(String type, String path) {
+		if (type.equals(LOG)) {
+			long size = 0;
+			File[] files = LogIndexStore.getDir(path).listFiles();
+			if (files != null) for (File file : files) size += file.length();
+			return size;
+		}
+		return IndexConverter.getDB(path).length() + IndexConverter.getLG(path).length();
+	}
+
+	/**
+	 * Delete a store. The store must not be open.
+	 * @param type the type of the store
+	 * @param path the path of the store, without extension
+	 */
+	public static void delete(String type, String path) {
+		if (type.equals(LOG)) FileUtil.deleteAll(LogIndexStore.getDir(path));
+		else IndexConverter.delete(path);
+	}
+
+	/**
+	 * Rename a store. The store must not be open.
+	 * @param type the type of the store
+	 * @param fromPath the current path of the store, without extension
+	 * @param toPath the new path of the store, without extension
+	 * @return true if the store was renamed.
+	 */
+	public static boolean rename(String type, String fromPath, String toPath) {
+		if (type.equals(LOG)) return LogIndexStore.getDir(fromPath).renameTo(LogIndexStore.getDir(toPath));
+		return IndexConverter.rename(fromPath, toPath);
+	}
+}
@@ -0,0 +1,163 @@
+/*---------------------------------------------------------------
+*  Copyright 2020 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.anonymizer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import jdbm.RecordManager;
+import jdbm.btree.BTree;
+import jdbm.helper.FastIterator;
+import jdbm.helper.Tuple;
+import jdbm.helper.TupleBrowser;
+import jdbm.htree.HTree;
+import org.rsna.util.JdbmUtil;
+
+/**
+ * An IndexStore in a JDBM database. Hash tables are HTrees and
+ * sorted tables are BTrees, all in one RecordManager.
+ */
+public class JdbmIndexStore extends IndexStore {
+
+	RecordManager recman;
+
+	/**
+	 * Open a JDBM database, creating it if it does not exist.
+	 * @param path the path of the database, without the .db extension
+	 * @throws Exception if the database cannot be opened.
+	 */
+	public JdbmIndexStore(String path) throws Exception {
+		recman = JdbmUtil.getRecordManager(path);
+		if (recman == null) throw new Exception("Unable to open "+path);
+	}
+
+	public Table getHashTable(String name) throws Exception {
+		HTree tree = JdbmUtil.getHTree(recman, name);
+		if (tree == null) throw new Exception("Unable to open the "+name+" HTree");
+		return new HashTable(tree);
+	}
+
+	public Table getSortedTable(String name) throws Exception {
+		BTree tree = JdbmUtil.getBTree(recman, name);
+		if (tree == null) throw new Exception("Unable to open the "+name+" BTree");
+		return new SortedTable(tree);
+	}
+
+	public void commit() throws Exception {
+		recman.commit();
+	}
+
+	public void close() {
+		JdbmUtil.close(recman);
+	}
+
+	public String getType() {
+		return JDBM;
+	}
+
+	/**
+	 * A table in an HTree.
+	 */
+	public static class HashTable implements Table {
+		HTree tree;
+		/**
+		 * Class constructor.
+		 * @param tree the HTree
+		 */
+		public HashTable(HTree tree) {
+			this.tree = tree;
+		}
+		public Object get(Object key) throws Exception {
+			return tree.get(key);
+		}
+		public void put(Object key, Object value) throws Exception {
+			tree.put(key, value);
+		}
+		public void remove(Object key) throws Exception {
+			tree.remove(key);
+		}
+		public int size() throws Exception {
+			FastIterator fit = tree.keys();
+			int n = 0;
+			while (fit.next() != null) n++;
+			return n;
+		}
+		//An HTree iterator is not valid after the tree has changed, since a
+		//put can split a bucket and delete the record the iterator would read
+		//next. The keys are therefore read when the cursor is created, so the
+		//cursor can be resumed after the Index lock has been released. The
+		//values are read when they are requested.
+		public Cursor keys() throws Exception {
+			final ArrayList<Object> list = new ArrayList<Object>();
+			FastIterator fit = tree.keys();
+			Object k;
+			while ( (k=fit.next()) != null ) list.add(k);
+			final Iterator<Object> it = list.iterator();
+			return new Cursor() {
+				Object key = null;
+				public boolean next() throws Exception {
+					key = it.hasNext() ? it.next() : null;
+					return (key != null);
+				}
+				public Object getKey() {
+					return key;
+				}
+				public Object getValue() throws Exception {
+					return tree.get(key);
+				}
+			};
+		}
+		public Cursor browse(Object key) throws Exception {
+			throw new UnsupportedOperationException("An HTree cannot be browsed");
+		}
+	}
+
+	/**
+	 * A table in a BTree.
+	 */
+	public static class SortedTable implements Table {
+		BTree tree;
+		/**
+		 * Class constructor.
+		 * @param tree the BTree
+		 */
+		public SortedTable(BTree tree) {
+			this.tree = tree;
+		}
+		public Object get(Object key) throws Exception {
+			return tree.find(key);
+		}
+		public void put(Object key, Object value) throws Exception {
+			tree.insert(key, value, true);
+		}
+		public void remove(Object key) throws Exception {
+			//A BTree throws an exception when a missing key is removed
+			if (tree.find(key) != null) tree.remove(key);
+		}
+		public int size() throws Exception {
+			return tree.size();
+		}
+		public Cursor keys() throws Exception {
+			return browse(null);
+		}
+		public Cursor browse(Object key) throws Exception {
+			final TupleBrowser browser = (key == null) ? tree.browse() : tree.browse(key);
+			final Tuple tuple = new Tuple();
+			return new Cursor() {
+				public boolean next() throws Exception {
+					return browser.getNext(tuple);
+				}
+				public Object getKey() {
+					return tuple.getKey();
+				}
+				public Object getValue() throws Exception {
+					return tuple.getValue();
+				}
+			};
+		}
+	}
+}
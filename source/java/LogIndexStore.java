@@ -0,0 +1,524 @@
+/*---------------------------------------------------------------
+*  Copyright 2020 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.anonymizer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+import org.apache.log4j.Logger;
+import org.rsna.util.FileUtil;
+
+/**
+ * An IndexStore that keeps all its tables in memory and makes them durable
+ * with an append-only log. Hash tables are ConcurrentHashMaps and sorted
+ * tables are ConcurrentSkipListMaps, so lookups never go to the disk.
+ * Each change is appended to the current log file as a record with a CRC;
+ * a commit flushes the log and forces it to the disk.
+ * <p>
+ * When the log reaches checkpointSize bytes, a commit starts a new log
+ * file and a background thread writes all the tables to a checkpoint file.
+ * Writers are not paused while the checkpoint is written: any change made
+ * during the checkpoint is also in the new log, which is replayed over the
+ * checkpoint. When the checkpoint is complete, the older checkpoints and logs
+ * are deleted, so the disk space used is about the size of the tables plus
+ * checkpointSize. A checkpoint is also written when the store is closed,
+ * so the next start only has to read the checkpoint.
+ * <p>
+ * The store is the directory path.logstore, containing checkpoint.N and
+ * log.N files. A store is opened by loading the latest checkpoint and
+ * replaying the logs of the same and later generations. A record that was
+ * only partly written when the program stopped is discarded.
+ */
+public class LogIndexStore extends IndexStore {
+
+	static final Logger logger = Logger.getLogger(LogIndexStore.class);
+
+	static final int magic = 0x49584c53;
+	static final int bufferSize = 64 * 1024;
+	static final int maxRecordSize = 16 * 1024 * 1024;
+	static final String logPrefix = "log.";
+	static final String checkpointPrefix = "checkpoint.";
+
+	//Record operations, with a flag for the tables that are sorted
+	static final int PUT = 1;
+	static final int REMOVE = 2;
+	static final int SORTED = 0x10;
+
+	//Value types
+	static final int BYTES = 1;
+	static final int STRING = 2;
+
+	/**
+	 * The size of the log, in bytes, at which a checkpoint is started.
+	 * The Index sets it from the indexCheckpointSize property (in MB).
+	 */
+	static long checkpointSize = 64L * 1024 * 1024;
+
+	File dir;
+	ConcurrentHashMap<String,MemTable> tables = new ConcurrentHashMap<String,MemTable>();
+	long generation = 0;
+	FileOutputStream logStream = null;
+	DataOutputStream log = null;
+	long logSize = 0;
+	boolean dirty = false;
+	boolean closed = false;
+	RecordBuffer record = new RecordBuffer();
+	DataOutputStream recordOut = new DataOutputStream(record);
+	CRC32 crc = new CRC32();
+	Thread checkpointer = null;
+	volatile Exception checkpointError = null;
+
+	/**
+	 * Open a store, creating it if it does not exist.
+	 * @param path the path of the store, without the .logstore extension
+	 * @throws Exception if the store cannot be opened or its checkpoint is invalid.
+	 */
+	public LogIndexStore(String path) throws Exception {
+		dir = getDir(path);
+		dir.mkdirs();
+		if (!dir.isDirectory()) throw new IOException("Unable to create "+dir);
+		long startTime = System.currentTimeMillis();
+		long checkpoint = loadCheckpoint();
+		generation = checkpoint;
+		long records = 0;
+		for (long gen : listGenerations(logPrefix)) {
+			if (gen >= checkpoint) {
+				records += replay(getFile(logPrefix, gen));
+				generation = gen + 1;
+			}
+		}
+		dirty = (records > 0);
+		openLog();
+		long entries = 0;
+		for (MemTable table : tables.values()) entries += table.map.size();
+		logger.info("Opened "+dir+": "+entries+" entries, "+records+" log records replayed in "
+						+(System.currentTimeMillis() - startTime)+" ms");
+	}
+
+	/**
+	 * Get the directory of a store.
+	 * @param path the path of the store, without extension
+	 * @return the directory.
+	 */
+	public static File getDir(String path) {
+		return new File(path + ".logstore");
+	}
+
+	public Table getHashTable(String name) throws Exception {
+		return getTable(name, false);
+	}
+
+	public Table getSortedTable(String name) throws Exception {
+		return getTable(name, true);
+	}
+
+	public synchronized void commit() throws Exception {
+		if (closed) return;
+		log.flush();
+		logStream.getChannel().force(false);
+		if ((logSize >= checkpointSize) && (checkpointer == null)) startCheckpoint();
+	}
+
+	/**
+	 * Commit and close the store, writing a checkpoint if the
+	 * store has changed since the last checkpoint.
+	 */
+	public void close() {
+		Thread thread;
+		synchronized (this) { thread = checkpointer; }
+		if (thread != null) {
+			try { thread.join(); }
+			catch (InterruptedException ignore) { }
+		}
+		synchronized (this) {
+			if (closed) return;
+			closed = true;
+			try {
+				closeLog();
+				if (dirty) writeCheckpoint(generation + 1);
+				else if (logSize == 0) getFile(logPrefix, generation).delete();
+			}
+			catch (Exception ex) {
+				logger.warn("Unable to close "+dir, ex);
+			}
+		}
+	}
+
+	public String getType() {
+		return LOG;
+	}
+
+	/**
+	 * Start a checkpoint, unless one is already being written. The
+	 * checkpoint replaces the logs, so it compacts the store.
+	 * Callers must hold the Index write lock.
+	 * @return the thread writing the checkpoint.
+	 * @throws Exception if the log cannot be committed.
+	 */
+	public synchronized Thread checkpoint() throws Exception {
+		if (closed) throw new IOException(dir+" is closed");
+		log.flush();
+		logStream.getChannel().force(false);
+		if (checkpointer == null) startCheckpoint();
+		return checkpointer;
+	}
+
+	//Get a table, creating it if necessary. A table created by replaying
+	//a log is a hash table unless its records are marked as sorted.
+	private synchronized MemTable getTable(String name, boolean sorted) {
+		MemTable table = tables.get(name);
+		if (table == null) {
+			table = new MemTable(name, sorted);
+			tables.put(name, table);
+		}
+		else if (sorted && !table.sorted) table.sort();
+		return table;
+	}
+
+	//Load the latest checkpoint, returning its generation, or zero if there is none.
+	private long loadCheckpoint() throws Exception {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().endsWith(".tmp")) file.delete();
+			}
+		}
+		long[] gens = listGenerations(checkpointPrefix);
+		if (gens.length == 0) return 0;
+		long gen = gens[gens.length - 1];
+		File file = getFile(checkpointPrefix, gen);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), bufferSize));
+		try {
+			if ((in.readInt() != magic) || (in.readLong() != gen)) {
+				throw new IOException("Invalid checkpoint: "+file);
+			}
+			while (in.readBoolean()) {
+				String name = in.readUTF();
+				MemTable table = getTable(name, in.readBoolean());
+				while (in.readBoolean()) {
+					String key = in.readUTF();
+					table.map.put(key, readValue(in));
+				}
+			}
+			if (in.readInt() != magic) throw new IOException("Incomplete checkpoint: "+file);
+		}
+		catch (EOFException ex) { throw new IOException("Incomplete checkpoint: "+file); }
+		finally { FileUtil.close(in); }
+		return gen;
+	}
+
+	//Apply the records of a log file, returning the number of records.
+	//The log is truncated at the first record that is incomplete or
+	//does not match its CRC.
+	private long replay(File file) throws Exception {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), bufferSize));
+		long good = 0;
+		long records = 0;
+		try {
+			while (true) {
+				int length;
+				try { length = in.readInt(); }
+				catch (EOFException end) { break; }
+				int check = in.readInt();
+				if ((length < 0) || (length > maxRecordSize)) break;
+				byte[] bytes = new byte[length];
+				in.readFully(bytes);
+				crc.reset();
+				crc.update(bytes, 0, length);
+				if ((int)crc.getValue() != check) break;
+				apply(bytes);
+				good += 8 + length;
+				records++;
+			}
+		}
+		catch (EOFException partial) { }
+		finally { FileUtil.close(in); }
+		if (good < file.length()) {
+			logger.warn("Discarded "+(file.length() - good)+" bytes of an incomplete record at the end of "+file);
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try { raf.setLength(good); }
+			finally { raf.close(); }
+		}
+		return records;
+	}
+
+	private void apply(byte[] bytes) throws Exception {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		int op = in.readByte();
+		MemTable table = getTable(in.readUTF(), (op & SORTED) != 0);
+		String key = in.readUTF();
+		if ((op & ~SORTED) == PUT) table.map.put(key, readValue(in));
+		else table.map.remove(key);
+	}
+
+	//Append a record to the log. The record is assembled in memory first,
+	//so a value that cannot be written leaves nothing in the log.
+	private synchronized void append(MemTable table, int op, String key, Object value) throws Exception {
+		if (closed) throw new IOException(dir+" is closed");
+		record.reset();
+		recordOut.writeByte(table.sorted ? (op | SORTED) : op);
+		recordOut.writeUTF(table.name);
+		recordOut.writeUTF(key);
+		if (op == PUT) writeValue(recordOut, value);
+		int length = record.size();
+		crc.reset();
+		crc.update(record.getBuffer(), 0, length);
+		log.writeInt(length);
+		log.writeInt((int)crc.getValue());
+		log.write(record.getBuffer(), 0, length);
+		logSize += 8 + length;
+		dirty = true;
+	}
+
+	//Start a new log and write a checkpoint of the tables in the background.
+	//This method is called by commit, so the current log is already durable.
+	private void startCheckpoint() throws Exception {
+		closeLog();
+		generation++;
+		openLog();
+		dirty = false;
+		final long gen = generation;
+		checkpointer = new Thread("IndexCheckpoint") {
+			public void run() {
+				try {
+					writeCheckpoint(gen);
+					checkpointError = null;
+				}
+				catch (Exception ex) {
+					logger.warn("Unable to write a checkpoint of "+dir, ex);
+					checkpointError = ex;
+					synchronized (LogIndexStore.this) { dirty = true; }
+				}
+				finally {
+					synchronized (LogIndexStore.this) { checkpointer = null; }
+				}
+			}
+		};
+		checkpointer.setDaemon(true);
+		checkpointer.start();
+	}
+
+	//Write the tables to a checkpoint of a generation, and delete the checkpoints
+	//and logs of the earlier generations. The tables may change while they are
+	//written, but every change made after the log of the generation was started
+	//is in that log or a later one, and those logs are replayed over the checkpoint.
+	private void writeCheckpoint(long gen) throws Exception {
+		long startTime = System.currentTimeMillis();
+		File file = getFile(checkpointPrefix, gen);
+		File tmp = new File(dir, file.getName() + ".tmp");
+		FileOutputStream stream = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, bufferSize));
+		long entries = 0;
+		try {
+			out.writeInt(magic);
+			out.writeLong(gen);
+			for (MemTable table : tables.values()) {
+				out.writeBoolean(true);
+				out.writeUTF(table.name);
+				out.writeBoolean(table.sorted);
+				for (Map.Entry<String,Object> entry : table.map.entrySet()) {
+					out.writeBoolean(true);
+					out.writeUTF(entry.getKey());
+					writeValue(out, entry.getValue());
+					entries++;
+				}
+				out.writeBoolean(false);
+			}
+			out.writeBoolean(false);
+			out.writeInt(magic);
+			out.flush();
+			stream.getChannel().force(true);
+		}
+		catch (Exception ex) {
+			FileUtil.close(out);
+			tmp.delete();
+			throw ex;
+		}
+		FileUtil.close(out);
+		if (!tmp.renameTo(file)) throw new IOException("Unable to rename "+tmp);
+		syncDir();
+		for (long g : listGenerations(checkpointPrefix)) {
+			if (g < gen) getFile(checkpointPrefix, g).delete();
+		}
+		for (long g : listGenerations(logPrefix)) {
+			if (g < gen) getFile(logPrefix, g).delete();
+		}
+		logger.debug("Checkpoint "+gen+" of "+dir+": "+entries+" entries in "
+						+(System.currentTimeMillis() - startTime)+" ms");
+	}
+
+	private void openLog() throws Exception {
+		logStream = new FileOutputStream(getFile(logPrefix, generation));
+		log = new DataOutputStream(new BufferedOutputStream(logStream, bufferSize));
+		logSize = 0;
+		syncDir();
+	}
+
+	private void closeLog() throws Exception {
+		log.flush();
+		logStream.getChannel().force(false);
+		log.close();
+	}
+
+	//Make the creation and renaming of files in the directory durable. This
+	//is not supported on all platforms; where it is not, the file system is
+	//relied upon to order the directory changes after the data.
+	private void syncDir() {
+		FileChannel channel = null;
+		try {
+			channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+			channel.force(true);
+		}
+		catch (Exception notSupported) { }
+		finally {
+			try { if (channel != null) channel.close(); }
+			catch (Exception ignore) { }
+		}
+	}
+
+	private File getFile(String prefix, long gen) {
+		return new File(dir, String.format("%s%08d", prefix, gen));
+	}
+
+	//List the generations of the files with a prefix, in increasing order.
+	private long[] listGenerations(String prefix) {
+		LinkedList<Long> list = new LinkedList<Long>();
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.startsWith(prefix) && name.substring(prefix.length()).matches("\\d+")) {
+					list.add(Long.parseLong(name.substring(prefix.length())));
+				}
+			}
+		}
+		long[] gens = new long[list.size()];
+		int i = 0;
+		for (Long gen : list) gens[i++] = gen;
+		Arrays.sort(gens);
+		return gens;
+	}
+
+	static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value instanceof byte[]) {
+			byte[] bytes = (byte[])value;
+			out.writeByte(BYTES);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+		else if (value instanceof String) {
+			out.writeByte(STRING);
+			out.writeUTF((String)value);
+		}
+		else {
+			String type = (value == null) ? "null" : value.getClass().getName();
+			throw new IllegalArgumentException("Unsupported value in the index store: "+type);
+		}
+	}
+
+	static Object readValue(DataInputStream in) throws IOException {
+		int type = in.readByte();
+		if (type == BYTES) {
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			return bytes;
+		}
+		if (type == STRING) return in.readUTF();
+		throw new IOException("Unknown value type: "+type);
+	}
+
+	//A table in memory. Changes are logged before they are applied.
+	class MemTable implements Table {
+		String name;
+		boolean sorted;
+		ConcurrentMap<String,Object> map;
+		public MemTable(String name, boolean sorted) {
+			this.name = name;
+			this.sorted = sorted;
+			if (sorted) map = new ConcurrentSkipListMap<String,Object>();
+			else map = new ConcurrentHashMap<String,Object>();
+		}
+		void sort() {
+			map = new ConcurrentSkipListMap<String,Object>(map);
+			sorted = true;
+		}
+		public Object get(Object key) {
+			return map.get(key);
+		}
+		public void put(Object key, Object value) throws Exception {
+			append(this, PUT, (String)key, value);
+			map.put((String)key, value);
+		}
+		public void remove(Object key) throws Exception {
+			if (map.containsKey(key)) {
+				append(this, REMOVE, (String)key, null);
+				map.remove(key);
+			}
+		}
+		public int size() {
+			return map.size();
+		}
+		public Cursor keys() {
+			return new MapCursor(map.entrySet().iterator());
+		}
+		public Cursor browse(Object key) {
+			if (!sorted) throw new UnsupportedOperationException("The "+name+" table is not sorted");
+			ConcurrentNavigableMap<String,Object> sortedMap = (ConcurrentNavigableMap<String,Object>)map;
+			if (key != null) sortedMap = sortedMap.tailMap((String)key, true);
+			return new MapCursor(sortedMap.entrySet().iterator());
+		}
+	}
+
+	//The iterators of the concurrent maps do not fail when the maps change,
+	//so a cursor can be resumed after the Index lock has been released.
+	static class MapCursor implements Cursor {
+		Iterator<Map.Entry<String,Object>> it;
+		Map.Entry<String,Object> entry = null;
+		public MapCursor(Iterator<Map.Entry<String,Object>> it) {
+			this.it = it;
+		}
+		public boolean next() {
+			if (!it.hasNext()) return false;
+			entry = it.next();
+			return true;
+		}
+		public Object getKey() {
+			return entry.getKey();
+		}
+		public Object getValue() {
+			return entry.getValue();
+		}
+	}
+
+	//A ByteArrayOutputStream whose buffer can be read without copying it.
+	static class RecordBuffer extends ByteArrayOutputStream {
+		public byte[] getBuffer() {
+			return buf;
+		}
+	}
+}
@@ -10,6 +10,9 @@ package org.rsna.anonymizer;
 import java.io.Serializable;
 
 public class PatientIndexEntry implements Serializable, Comparable<PatientIndexEntry> {
+	//Fixed at the value computed for the original class, so existing indexes can be read.
+	private static final long serialVersionUID = 5178145921044520569L;
+
 	public String key;
 	public String name;
 	public String id;
@@ -24,6 +27,22 @@ public class PatientIndexEntry implements Serializable, Comparable<PatientIndexE
 		return key.compareTo(ie.key);
 	}
 	
+	public boolean equals(Object obj) {
+		if (obj instanceof PatientIndexEntry) {
+			PatientIndexEntry ie = (PatientIndexEntry)obj;
+			return equal(key, ie.key) && equal(name, ie.name) && equal(id, ie.id);
+		}
+		return false;
+	}
+	
+	public int hashCode() {
+		return (key == null) ? 0 : key.hashCode();
+	}
+	
+	static boolean equal(String a, String b) {
+		return (a == null) ? (b == null) : a.equals(b);
+	}
+	
 	public String toString() {
 		return name + "[" + id + "]";
 	}
@@ -0,0 +1,428 @@
+/*---------------------------------------------------------------
+*  Copyright 2020 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.anonymizer;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import org.apache.log4j.Logger;
+
+/**
+ * An in-memory index of the patients in the Index, supporting prefix
+ * and approximate searches on the anonymized and PHI PatientNames and
+ * PatientIDs. The search index is built in a background thread from
+ * the Index when it is first used. Patients added to the Index after
+ * it is built are held in a list that is searched sequentially until
+ * the list becomes long enough to trigger a rebuild.
+ * <p>
+ * Prefix searches use a sorted array of the records for each field,
+ * searched with a binary search. Approximate searches of the names
+ * use an index of the trigrams of each name.
+ */
+public class PatientSearchIndex {
+
+	static final Logger logger = Logger.getLogger(PatientSearchIndex.class);
+	static PatientSearchIndex instance = null;
+
+	static final int maxPending = 10000;
+
+	//Fields of a record
+	static final int ANONNAME = 0;
+	static final int ANONID = 1;
+	static final int PHINAME = 2;
+	static final int PHIID = 3;
+
+	//Ranking of the kinds of match
+	static final double EXACT = 3.0;
+	static final double PREFIX = 2.0;
+	static final double MINCONTAINMENT = 0.5;
+	static final int maxCandidates = 500;
+	static final int maxPostings = 2000000;
+
+	Snapshot snapshot = null;
+	LinkedList<PatientIndexEntry[]> pending = new LinkedList<PatientIndexEntry[]>();
+	int covered = 0;
+	Thread builder = null;
+
+	/**
+	 * Get the singleton instance of the search index.
+	 * @return the search index.
+	 */
+	public static synchronized PatientSearchIndex getInstance() {
+		if (instance == null) instance = new PatientSearchIndex();
+		return instance;
+	}
+
+	protected PatientSearchIndex() { }
+
+	/**
+	 * Determine whether the search index has been built.
+	 * @return true if the index is ready; false if it has not been built.
+	 */
+	public synchronized boolean isReady() {
+		return (snapshot != null);
+	}
+
+	/**
+	 * Start a rebuild of the search index in a background thread,
+	 * unless a rebuild is already in progress. Searches continue
+	 * to use the current index until the rebuild is complete.
+	 */
+	public synchronized void rebuild() {
+		if ((builder != null) && builder.isAlive()) return;
+		//The entries pending now are in the Index, so the new snapshot covers them.
+		final int n = pending.size();
+		covered = n;
+		builder = new Thread("PatientSearchIndexBuilder") {
+			public void run() {
+				long startTime = System.currentTimeMillis();
+				Snapshot s = new Snapshot(Index.getInstance());
+				setSnapshot(s, n);
+				logger.info("Search index built for "+s.size+" patients in "
+								+(System.currentTimeMillis()-startTime)+" ms");
+			}
+		};
+		builder.setDaemon(true);
+		builder.start();
+	}
+
+	//Install a new snapshot and drop the pending entries that were added
+	//before its builder started. Entries added since then are kept, since
+	//they may have been added after the builder read that part of the
+	//Index; duplicates are removed when results are collected.
+	synchronized void setSnapshot(Snapshot s, int n) {
+		snapshot = s;
+		for (int i=0; (i<n) && !pending.isEmpty(); i++) pending.removeFirst();
+		covered = 0;
+	}
+
+	/**
+	 * Add a patient to the search index. This method is called by the
+	 * Index when a patient is added or changed. If the search index has
+	 * not been built, the call is ignored, since the patient will be
+	 * found when the index is built.
+	 * @param inv the inverse patient index entry (anonymized key, PHI name and ID)
+	 * @param fwd the forward patient index entry (PHI key, anonymized name and ID)
+	 */
+	public synchronized void add(PatientIndexEntry inv, PatientIndexEntry fwd) {
+		if ((snapshot == null) && (builder == null)) return;
+		pending.add(new PatientIndexEntry[] { inv, fwd });
+		//Rebuild when enough entries have been added since the
+		//current snapshot, or the one being built, was started.
+		if (pending.size() - covered > maxPending) rebuild();
+	}
+
+	/**
+	 * Search for patients whose anonymized or PHI PatientName or PatientID
+	 * matches a string. Exact matches rank first, then prefix matches, then
+	 * names containing most of the trigrams of the string. Case is ignored.
+	 * If the search index has not been built, a build is started and only
+	 * an exact match on the anonymized PatientID is returned.
+	 * @param query the string to search for
+	 * @param max the maximum number of matches to return
+	 * @return the matching patients, best first, as pairs of entries
+	 * (inv[0], fwd[0], inv[1], fwd[1], etc.) as in Index.listPatientIndex().
+	 */
+	public PatientIndexEntry[] search(String query, int max) {
+		query = query.trim();
+		if (query.length() == 0) return new PatientIndexEntry[0];
+		Snapshot s;
+		PatientIndexEntry[][] recent;
+		synchronized (this) {
+			if (snapshot == null) rebuild();
+			s = snapshot;
+			recent = pending.toArray(new PatientIndexEntry[pending.size()][]);
+		}
+		HashMap<String,Match> matches = new HashMap<String,Match>();
+		if (s != null) s.search(query, max, matches);
+		else {
+			Index index = Index.getInstance();
+			PatientIndexEntry inv = index.getInvEntry(query);
+			if (inv != null) {
+				PatientIndexEntry fwd = index.getFwdEntry(inv.id);
+				if (fwd != null) addMatch(matches, new Match(inv, fwd, EXACT));
+			}
+		}
+		//Later entries replace earlier ones for the same patient
+		String q = query.toLowerCase();
+		String[] qgrams = getTrigrams(q);
+		for (PatientIndexEntry[] pair : recent) {
+			double score = score(q, qgrams, pair[1].name, pair[1].id, pair[0].name, pair[0].id);
+			if (score > 0) matches.put(pair[0].key.toLowerCase(), new Match(pair[0], pair[1], score));
+		}
+		Match[] ranked = matches.values().toArray(new Match[matches.size()]);
+		Arrays.sort(ranked);
+		int n = Math.min(max, ranked.length);
+		PatientIndexEntry[] result = new PatientIndexEntry[2*n];
+		for (int i=0; i<n; i++) {
+			result[2*i] = ranked[i].inv;
+			result[2*i+1] = ranked[i].fwd;
+		}
+		return result;
+	}
+
+	//Score a record by direct comparison, for records not in the snapshot.
+	static double score(String q, String[] qgrams, String... fields) {
+		double best = 0;
+		for (String field : fields) {
+			if (field == null) continue;
+			String f = field.toLowerCase();
+			if (f.equals(q)) best = Math.max(best, EXACT);
+			else if (f.startsWith(q)) best = Math.max(best, PREFIX + prefixBonus(q, f));
+		}
+		for (int k=0; k<fields.length; k+=2) {
+			if (fields[k] == null) continue;
+			String[] fgrams = getTrigrams(fields[k].toLowerCase());
+			HashSet<String> set = new HashSet<String>(Arrays.asList(fgrams));
+			int common = 0;
+			for (String g : qgrams) if (set.contains(g)) common++;
+			best = Math.max(best, fuzzyScore(common, qgrams.length, fgrams.length));
+		}
+		return best;
+	}
+
+	//A bonus that ranks shorter completions of a prefix first.
+	static double prefixBonus(String q, String term) {
+		return 0.5 * q.length() / term.length();
+	}
+
+	//Score an approximate match from the number of trigrams the query
+	//and the term have in common. Terms containing less than half the
+	//query's trigrams do not match.
+	static double fuzzyScore(int common, int qgrams, int tgrams) {
+		if (qgrams == 0) return 0;
+		double containment = (double)common / qgrams;
+		if (containment < MINCONTAINMENT) return 0;
+		double jaccard = (double)common / (qgrams + tgrams - common);
+		return (containment + jaccard) / 2;
+	}
+
+	//Get the distinct trigrams of a string, padded with a space
+	//at each end so the first and last characters carry weight.
+	static String[] getTrigrams(String s) {
+		s = " " + s + " ";
+		HashSet<String> set = new HashSet<String>();
+		for (int i=0; i+3<=s.length(); i++) set.add(s.substring(i, i+3));
+		return set.toArray(new String[set.size()]);
+	}
+
+	static void addMatch(HashMap<String,Match> matches, Match match) {
+		String key = match.inv.key.toLowerCase();
+		Match m = matches.get(key);
+		if ((m == null) || (m.score < match.score)) matches.put(key, match);
+	}
+
+	//A patient that matches a search, with its score.
+	static class Match implements Comparable<Match> {
+		PatientIndexEntry inv;
+		PatientIndexEntry fwd;
+		double score;
+		public Match(PatientIndexEntry inv, PatientIndexEntry fwd, double score) {
+			this.inv = inv;
+			this.fwd = fwd;
+			this.score = score;
+		}
+		public int compareTo(Match m) {
+			int c = Double.compare(m.score, score);
+			if (c != 0) return c;
+			return String.CASE_INSENSITIVE_ORDER.compare(fwd.name, m.fwd.name);
+		}
+	}
+
+	//An immutable index of the patients in the Index at the time it was built.
+	static class Snapshot {
+		int size;
+		PatientIndexEntry[] invs;
+		PatientIndexEntry[] fwds;
+		int[][] sorted = new int[4][];
+		HashMap<String,int[]> grams = new HashMap<String,int[]>();
+		short[] gramCounts;
+
+		public Snapshot(Index index) {
+			LinkedList<PatientIndexEntry> list = new LinkedList<PatientIndexEntry>();
+			Index.PatientCursor cursor = index.getPatientCursor();
+			PatientIndexEntry[] page;
+			while ( (page=cursor.next(1000)).length > 0 ) {
+				for (int i=0; i<page.length; i+=2) {
+					if ((page[i] != null) && (page[i+1] != null)) {
+						list.add(page[i]);
+						list.add(page[i+1]);
+					}
+				}
+			}
+			build(list.toArray(new PatientIndexEntry[list.size()]));
+		}
+
+		//Build the snapshot from pairs of entries; also used for testing.
+		Snapshot(PatientIndexEntry[] pairs) {
+			build(pairs);
+		}
+
+		private void build(PatientIndexEntry[] pairs) {
+			size = pairs.length / 2;
+			invs = new PatientIndexEntry[size];
+			fwds = new PatientIndexEntry[size];
+			for (int i=0; i<size; i++) {
+				invs[i] = pairs[2*i];
+				fwds[i] = pairs[2*i+1];
+			}
+			for (int f=0; f<4; f++) {
+				final int field = f;
+				Integer[] order = new Integer[size];
+				for (int i=0; i<size; i++) order[i] = i;
+				Arrays.sort(order, new Comparator<Integer>() {
+					public int compare(Integer a, Integer b) {
+						return compareField(get(a, field), get(b, field));
+					}
+				});
+				sorted[f] = new int[size];
+				for (int i=0; i<size; i++) sorted[f][i] = order[i];
+			}
+			//Index the trigrams of the names. A posting is 2*record for the
+			//anonymized name and 2*record+1 for the PHI name.
+			HashMap<String,IntList> lists = new HashMap<String,IntList>();
+			gramCounts = new short[2*size];
+			for (int i=0; i<size; i++) {
+				for (int k=0; k<2; k++) {
+					String name = get(i, (k == 0) ? ANONNAME : PHINAME);
+					String[] g = getTrigrams(name.toLowerCase());
+					gramCounts[2*i+k] = (short)Math.min(g.length, Short.MAX_VALUE);
+					for (String gram : g) {
+						IntList postings = lists.get(gram);
+						if (postings == null) {
+							postings = new IntList();
+							lists.put(gram, postings);
+						}
+						postings.add(2*i+k);
+					}
+				}
+			}
+			for (String gram : lists.keySet()) grams.put(gram, lists.get(gram).toArray());
+		}
+
+		String get(int record, int field) {
+			String s = null;
+			switch (field) {
+				case ANONNAME: s = fwds[record].name; break;
+				case ANONID: s = fwds[record].id; break;
+				case PHINAME: s = invs[record].name; break;
+				case PHIID: s = invs[record].id; break;
+			}
+			return (s == null) ? "" : s;
+		}
+
+		static int compareField(String a, String b) {
+			return String.CASE_INSENSITIVE_ORDER.compare(a, b);
+		}
+
+		//Add the matches for a query to a map of matches.
+		void search(String query, int max, HashMap<String,Match> matches) {
+			String q = query.toLowerCase();
+			int maxPrefixMatches = 1000;
+			for (int f=0; f<4; f++) {
+				int[] order = sorted[f];
+				//Find the first term not less than the query
+				int lo = 0;
+				int hi = size;
+				while (lo < hi) {
+					int mid = (lo + hi) >>> 1;
+					if (compareField(get(order[mid], f), query) < 0) lo = mid + 1;
+					else hi = mid;
+				}
+				for (int i=lo; (i<size) && (i-lo < maxPrefixMatches); i++) {
+					int r = order[i];
+					String term = get(r, f);
+					if (!term.regionMatches(true, 0, query, 0, query.length())) break;
+					double score = (term.length() == query.length()) ? EXACT : PREFIX + prefixBonus(q, term);
+					addMatch(matches, new Match(invs[r], fwds[r], score));
+				}
+			}
+			//Approximate matches are only needed if there are not enough prefix matches.
+			if (matches.size() >= max) return;
+
+			//Count the trigrams each name has in common with the query, starting
+			//with the rarest trigrams. Trigrams that occur in most of the names
+			//(for example, those of a common prefix of generated names) have long
+			//postings and do not distinguish the names, so counting stops when
+			//the number of postings read would exceed a limit.
+			String[] qgrams = getTrigrams(q);
+			int[][] lists = new int[qgrams.length][];
+			int nLists = 0;
+			for (String gram : qgrams) {
+				int[] postings = grams.get(gram);
+				if (postings != null) lists[nLists++] = postings;
+			}
+			Arrays.sort(lists, 0, nLists, new Comparator<int[]>() {
+				public int compare(int[] a, int[] b) {
+					return a.length - b.length;
+				}
+			});
+			int[] counts = new int[2*size];
+			IntList touched = new IntList();
+			int counted = 0;
+			long postingsRead = 0;
+			for (int k=0; k<nLists; k++) {
+				int[] postings = lists[k];
+				if ((counted > 0) && (postingsRead + postings.length > maxPostings)) break;
+				postingsRead += postings.length;
+				counted++;
+				for (int p : postings) {
+					if (counts[p]++ == 0) touched.add(p);
+				}
+			}
+			if (counted == 0) return;
+
+			//Select the names with the most trigrams in common, and score
+			//them by comparing all their trigrams with those of the query.
+			int minCommon = (int)Math.ceil(MINCONTAINMENT * counted);
+			IntList candidates = new IntList();
+			for (int i=0; i<touched.n; i++) {
+				int p = touched.values[i];
+				if (counts[p] >= minCommon) candidates.add(p);
+			}
+			int[] c = candidates.toArray();
+			if (c.length > maxCandidates) {
+				Integer[] order = new Integer[c.length];
+				for (int i=0; i<c.length; i++) order[i] = c[i];
+				final int[] finalCounts = counts;
+				Arrays.sort(order, new Comparator<Integer>() {
+					public int compare(Integer a, Integer b) {
+						return finalCounts[b] - finalCounts[a];
+					}
+				});
+				c = new int[maxCandidates];
+				for (int i=0; i<maxCandidates; i++) c[i] = order[i];
+			}
+			HashSet<String> qset = new HashSet<String>(Arrays.asList(qgrams));
+			for (int p : c) {
+				int r = p / 2;
+				String name = get(r, ((p % 2) == 0) ? ANONNAME : PHINAME).toLowerCase();
+				String[] tgrams = getTrigrams(name);
+				int common = 0;
+				for (String g : tgrams) if (qset.contains(g)) common++;
+				double score = fuzzyScore(common, qgrams.length, tgrams.length);
+				if (score > 0) addMatch(matches, new Match(invs[r], fwds[r], score));
+			}
+		}
+	}
+
+	//A growable list of ints.
+	static class IntList {
+		int[] values = new int[4];
+		int n = 0;
+		void add(int v) {
+			if (n == values.length) values = Arrays.copyOf(values, 2*n);
+			values[n++] = v;
+		}
+		int[] toArray() {
+			return Arrays.copyOf(values, n);
+		}
+	}
+}
@@ -13,15 +13,12 @@ import java.io.*;
 import java.util.*;
 import javax.swing.*;
 import javax.swing.border.*;
+import org.dcm4che.data.Dataset;
 import org.dcm4che.dict.Tags;
-import org.rsna.ctp.objects.DicomObject;
 import org.rsna.ctp.objects.FileObject;
 import org.rsna.ctp.stdstages.anonymizer.AnonymizerFunctions;
 import org.rsna.ctp.stdstages.anonymizer.AnonymizerStatus;
 import org.rsna.ctp.stdstages.anonymizer.IntegerTable;
-import org.rsna.ctp.stdstages.anonymizer.LookupTable;
-import org.rsna.ctp.stdstages.anonymizer.dicom.DAScript;
-import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMAnonymizer;
 import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMCorrector;
 import org.rsna.ctp.stdstages.anonymizer.xml.XMLAnonymizer;
 import org.rsna.ui.ApplicationProperties;
@@ -53,10 +50,6 @@ public class RightPanel extends JPanel
 	File currentSelection = null;
 	String[] currentPath = null;
 	boolean subdirectories = false;
-	boolean forceIVRLE = false;
-	boolean renameToSOPIUID = false;
-	String dicomScriptFile = null;
-	String lookupTableFile = null;
 	IntegerTable integerTable = null;
 	GeneralFileFilter filter = null;
 	Color background = Color.getHSBColor(0.58f, 0.17f, 0.95f);
@@ -72,8 +65,6 @@ public class RightPanel extends JPanel
 		Configuration config = Configuration.getInstance();
 		this.properties = config.getProps();
 		this.sourcePanel = sourcePanel;
-		this.dicomScriptFile = config.dicomScriptFile;
-		this.lookupTableFile = config.lookupTableFile;
  		this.integerTable = config.getIntegerTable();
 		this.background = config.background;
 		this.setLayout(new BorderLayout());
@@ -147,6 +138,7 @@ public class RightPanel extends JPanel
 			resultsPane.text.println(Color.black, "Importing from "+currentSelection);
 			fileCount = 0;
 			anonymize(currentSelection);
+			Index.getInstance().commit();
 			resultsPane.text.print(Color.black, "\nDone.\n");
 		}
 
@@ -164,12 +156,12 @@ public class RightPanel extends JPanel
 				fileCount++;
 				try {
 					long startTime = System.currentTimeMillis();
-					DicomObject dob;
-					if ( ((dob=getDicomObject(file)) != null)
-							&& ( dob.isImage() )
-							&& ( !filterSCs || !dob.isSecondaryCapture() || (acceptRFs && dob.isReformatted()) )
-							&& ( !filterSRs || !dob.isSR() )
-							&& ( filterResult=((filterScript.length() == 0) || dob.matches(filterScript)) ) ) {
+					DicomHeader header;
+					if ( ((header=getDicomHeader(file)) != null)
+							&& ( header.isImage() )
+							&& ( !filterSCs || !header.isSecondaryCapture() || (acceptRFs && header.isReformatted()) )
+							&& ( !filterSRs || !header.isSR() )
+							&& ( filterResult=((filterScript.length() == 0) || header.matches(filterScript)) ) ) {
 						File temp;
 						File tempDir;
 						File storageDir;
@@ -181,49 +173,46 @@ public class RightPanel extends JPanel
 							temp = File.createTempFile("TEMP-", ".dcm", tempDir);
 						}
 						catch (Exception ex) {
+							header.close();
 							resultsPane.newItem(fileCount, file.getAbsolutePath());
 							resultsPane.print(Color.red, "Unable to copy file.\n");
 							return;
 						}
-						String origPtName = dob.getPatientName();
-						String origPtID = dob.getPatientID();
-						String origStudyInstanceUID = dob.getStudyInstanceUID();
-						String origStudyDate = dob.getStudyDate();
-						String origAccessionNumber = dob.getAccessionNumber();
-
-						String result = "";
-						DAScript dicomScript = DAScript.getInstance( new File(dicomScriptFile) );
-						LookupTable lookupTable = LookupTable.getInstance(new File(lookupTableFile) );
-						dob.copyTo(temp);
-						result =
-							DICOMAnonymizer.anonymize(
-								temp, temp,
-								dicomScript.toProperties(), lookupTable.getProperties(), integerTable,
-								forceIVRLE, renameToSOPIUID).isOK() ? "" : "failed";;
+						//Anonymize the file into the temp file, continuing from
+						//the header read for the filter. The anonymizer supplies
+						//the identifiers of the original and anonymized objects,
+						//so neither file has to be read again.
+						AnonymizerSnapshot snapshot = AnonymizerSnapshot.getInstance();
+						DICOMStreamAnonymizer anonymizer =
+							new DICOMStreamAnonymizer(snapshot.compiledScript, snapshot.lkup, integerTable);
+						AnonymizerStatus status = anonymizer.anonymize(header, temp);
 
 						//Report the results
-						if (!result.equals("")) {
+						if (!status.isOK()) {
+							temp.delete();
 							resultsPane.newItem(fileCount, file.getAbsolutePath());
 							resultsPane.print(Color.red,"Failed\n");
 						}
 						else {
-							// Get the spoke name
-							Properties daprops = dicomScript.toProperties();
-							String spokeName = daprops.getProperty("param.SITEID");
+							Dataset phiDataset = anonymizer.getPHIDataset();
+							Dataset anonDataset = anonymizer.getAnonymizedDataset();
+							String origPtName = getString(phiDataset, Tags.PatientName);
+							String origPtID = getString(phiDataset, Tags.PatientID);
+							String origStudyInstanceUID = getString(phiDataset, Tags.StudyInstanceUID);
+							String origStudyDate = getString(phiDataset, Tags.StudyDate);
+							String origAccessionNumber = getString(phiDataset, Tags.AccessionNumber);
 
 							//Figure out where to put the temp file.
 							//It is in the tempDir directory; it needs to go
 							//in the appropriate series subdirectory of storageDir.
-							dob = getDicomObject(temp);
-							String modality = dob.getModality();
-							String anonPtName = dob.getPatientName();
-							String anonPtID = dob.getPatientID();
-							String anonSOPInstanceUID = dob.getSOPInstanceUID();
-							String anonStudyInstanceUID = dob.getStudyInstanceUID();
-							String anonStudyDate = dob.getStudyDate();
-							String anonSeriesNumber = dob.getSeriesNumber();
-							String anonInstanceNumber = dob.getInstanceNumber();
-							String anonAccessionNumber = dob.getAccessionNumber();
+							String modality = getString(anonDataset, Tags.Modality);
+							String anonPtName = getString(anonDataset, Tags.PatientName);
+							String anonPtID = getString(anonDataset, Tags.PatientID);
+							String anonStudyInstanceUID = getString(anonDataset, Tags.StudyInstanceUID);
+							String anonStudyDate = getString(anonDataset, Tags.StudyDate);
+							String anonSeriesNumber = getString(anonDataset, Tags.SeriesNumber);
+							String anonInstanceNumber = getString(anonDataset, Tags.InstanceNumber);
+							String anonAccessionNumber = getString(anonDataset, Tags.AccessionNumber);
 							String hash = "";
 							try { hash = "-" + AnonymizerFunctions.hash(anonStudyInstanceUID, 3); }
 							catch (Exception unable) { }
@@ -246,17 +235,26 @@ public class RightPanel extends JPanel
 							index.addStudy(origPtID, origStudyDate, origAccessionNumber, anonStudyDate, anonAccessionNumber);
 							index.addStudyInstanceUID(anonPtID, anonStudyDate, anonAccessionNumber, origStudyInstanceUID, anonStudyInstanceUID);
 
-							long endTime = System.currentTimeMillis();
-							statusPanel.setStatus(fileCount, file.getAbsolutePath(), endTime-startTime);
+							//Report the file when the index changes are durable
+							final int n = fileCount;
+							final String path = file.getAbsolutePath();
+							final long finalStartTime = startTime;
+							index.afterCommit(new Runnable() {
+								public void run() {
+									long endTime = System.currentTimeMillis();
+									statusPanel.setStatus(n, path, endTime-finalStartTime);
+								}
+							});
 						}
 					}
 					else {
+						if (header != null) header.close();
 						resultsPane.newItem(fileCount, file.getAbsolutePath());
-						if (dob == null) resultsPane.println(Color.red,"    File rejected (not a DICOM file)");
-						else if (filterSRs && dob.isSR()) resultsPane.println(Color.red,"    File rejected (Structured Report)");
-						else if (filterSCs && dob.isSecondaryCapture()) resultsPane.println(Color.red,"    File rejected (Secondary Capture)");
+						if (header == null) resultsPane.println(Color.red,"    File rejected (not a DICOM file)");
+						else if (filterSRs && header.isSR()) resultsPane.println(Color.red,"    File rejected (Structured Report)");
+						else if (filterSCs && header.isSecondaryCapture()) resultsPane.println(Color.red,"    File rejected (Secondary Capture)");
 						else if (!filterResult) resultsPane.println(Color.red,"    File rejected (filter)");
-						else if (!dob.isImage()) resultsPane.println(Color.red,"    File rejected (not an image)");
+						else if (!header.isImage()) resultsPane.println(Color.red,"    File rejected (not an image)");
 						else resultsPane.println(Color.red,"    File rejected (unknown reason)");
 					}
 				}
@@ -280,8 +278,13 @@ public class RightPanel extends JPanel
 		}
 	}
 	
-	private DicomObject getDicomObject(File file) {
-		try { return new DicomObject(file); }
+	private String getString(Dataset ds, int tag) {
+		String s = ds.getString(tag);
+		return (s == null) ? "" : s.trim();
+	}
+
+	private DicomHeader getDicomHeader(File file) {
+		try { return new DicomHeader(file); }
 		catch (Exception ex) { return null; }
 	}
 	
@@ -14,16 +14,12 @@ import java.util.*;
 import javax.swing.*;
 import javax.swing.border.*;
 import org.apache.log4j.*;
+import org.dcm4che.data.Dataset;
 import org.dcm4che.dict.Tags;
-import org.rsna.ctp.objects.DicomObject;
 import org.rsna.ctp.objects.FileObject;
-import org.rsna.ctp.pipeline.QueueManager;
 import org.rsna.ctp.stdstages.anonymizer.AnonymizerFunctions;
 import org.rsna.ctp.stdstages.anonymizer.AnonymizerStatus;
 import org.rsna.ctp.stdstages.anonymizer.IntegerTable;
-import org.rsna.ctp.stdstages.anonymizer.LookupTable;
-import org.rsna.ctp.stdstages.anonymizer.dicom.DAScript;
-import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMAnonymizer;
 import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMCorrector;
 import org.rsna.ctp.stdstages.dicom.SimpleDicomStorageSCP;
 import org.rsna.ctp.stdstages.dicom.AnonStorageSCP;
@@ -32,9 +28,11 @@ import org.rsna.ui.FileEvent;
 import org.rsna.ui.FileListener;
 import org.rsna.util.FileUtil;
 import org.rsna.util.IPUtil;
+import org.rsna.util.StringUtil;
 
 
-public class SCPPanel extends BasePanel implements ActionListener, KeyListener, FileListener {
+public class SCPPanel extends BasePanel
+					  implements ActionListener, KeyListener, FileListener, AnonStorageSCP.AnonymizedObjectListener {
 
 	static final Logger logger = Logger.getLogger(SCPPanel.class);
 
@@ -42,27 +40,28 @@ public class SCPPanel extends BasePanel implements ActionListener, KeyListener,
 	File scpDirectory;
 	File queueDirectory;
 	File activeDirectory;
-	QueueManager queueManager;
+	FileQueue queue;
 	boolean scpRunning = false;
 	JScrollPane jsp;
 	JButton clear;
 	JButton start;
 	JLabel queueSize;
 	JCheckBox autoStart;
+	JCheckBox anonymizeOnReceive;
 	PanelField port;
 	PanelField aet;
 	String aetString;
-	boolean forceIVRLE = false;
-	boolean renameToSOPIUID = false;
 
 	Font mono = new java.awt.Font( "Monospaced", java.awt.Font.BOLD, 12 );
 	IntegerTable integerTable = null;
-	SimpleDicomStorageSCP scp = null;
+	AnonStorageSCP scp = null;
 	
 	ResultsScrollPane resultsPane;
 	StatusPanel statusPanel;
 	int count = 0; //count of processed files
 	int received = 0; //count of files received from the SCP
+	int nAnonymizerThreads = 1;
+	final Object[] patientLocks = new Object[64];
 
 	static SCPPanel scpPanel = null;
 
@@ -77,10 +76,8 @@ public class SCPPanel extends BasePanel implements ActionListener, KeyListener,
 		scpDirectory = new File("SCP");
 		scpDirectory.mkdirs();
 		queueDirectory = new File(scpDirectory, "QUEUE");
-		queueDirectory.mkdirs();
 		activeDirectory = new File(scpDirectory, "ACTIVE");
-		activeDirectory.mkdirs();
-		queueManager = new QueueManager(queueDirectory, 3, 200);
+		queue = new FileQueue(queueDirectory, activeDirectory);
 		
 		integerTable = config.getIntegerTable();
 	
@@ -90,6 +87,11 @@ public class SCPPanel extends BasePanel implements ActionListener, KeyListener,
 		autoStart.setSelected(auto);
 		autoStart.setBackground(bgColor);
 		autoStart.addActionListener(this);
+		anonymizeOnReceive = new JCheckBox("Anonymize on receive");
+		boolean onReceive = config.getProps().getProperty("anonymizeOnReceive", "").equals("true");
+		anonymizeOnReceive.setSelected(onReceive);
+		anonymizeOnReceive.setBackground(bgColor);
+		anonymizeOnReceive.addActionListener(this);
 		clear = new JButton("Clear");
 		clear.addActionListener(this);
 		queueSize = new JLabel("Queue: ");
@@ -140,12 +142,25 @@ public class SCPPanel extends BasePanel implements ActionListener, KeyListener,
 		));
 		footer.setBackground(Configuration.getInstance().background);
 		footer.add(autoStart);
+		footer.add(Box.createHorizontalStrut(10));
+		footer.add(anonymizeOnReceive);
 		footer.add(Box.createHorizontalGlue());
 		footer.add(clear);
 		add(footer, BorderLayout.SOUTH);
 		
 		if (auto) startSCP();
-		new AnonymizerThread().start();
+
+		//Start the pool of anonymizer threads. The default is
+		//one thread per processor; the program.properties file
+		//can specify a different number in anonymizerThreads.
+		int nProcessors = Runtime.getRuntime().availableProcessors();
+		nAnonymizerThreads = StringUtil.getInt(config.getProps().getProperty("anonymizerThreads"), nProcessors);
+		if (nAnonymizerThreads < 1) nAnonymizerThreads = 1;
+		for (int i=0; i<patientLocks.length; i++) patientLocks[i] = new Object();
+		for (int i=0; i<nAnonymizerThreads; i++) {
+			new AnonymizerThread(i).start();
+		}
+		logger.info(nAnonymizerThreads + " anonymizer thread" + ((nAnonymizerThreads==1)?"":"s") + " started");
 		new QueueMonitorThread().start();
 	}
 	
@@ -181,6 +196,11 @@ public class SCPPanel extends BasePanel implements ActionListener, KeyListener,
 			boolean auto = autoStart.isSelected();
 			config.getProps().setProperty("autostart", (auto?"true":"false"));
 		}
+		else if (source.equals(anonymizeOnReceive)) {
+			boolean onReceive = anonymizeOnReceive.isSelected();
+			config.getProps().setProperty("anonymizeOnReceive", (onReceive?"true":"false"));
+			if (scp != null) setAnonymizer();
+		}
 	}
 	
 	public void keyTyped(KeyEvent event) { }
@@ -219,6 +239,7 @@ public class SCPPanel extends BasePanel implements ActionListener, KeyListener,
 			scp = new AnonStorageSCP(scpDirectory, scpPort);
 			scp.setCalledAET(aetString);
 			scp.addFileListener(this);
+			setAnonymizer();
 			scp.start();
 			String adrs = IPUtil.getIPAddress() + ":" + scpPort + " [AET:"+getAET()+"]";
 			resultsPane.clear();
@@ -238,6 +259,14 @@ public class SCPPanel extends BasePanel implements ActionListener, KeyListener,
 		}
 	}
 	
+	//Enable or disable anonymization of objects as they are received.
+	private void setAnonymizer() {
+		if (anonymizeOnReceive.isSelected()) {
+			scp.setAnonymizer(integerTable, this);
+		}
+		else scp.setAnonymizer(null, null);
+	}
+	
 	private void stopSCP() {
 		if (scp != null) scp.stop();
 		resultsPane.println("DICOM Storage SCP stopped");
@@ -246,21 +275,25 @@ public class SCPPanel extends BasePanel implements ActionListener, KeyListener,
 		scpRunning = false;
 	}
 	
-	public synchronized void fileEventOccurred(FileEvent event) {
+	public void fileEventOccurred(FileEvent event) {
 		if (event.isSTORE()) {
-			received++;
-			File file = event.getFile();
-			queueManager.enqueue(file);
-			file.delete();
+			incrementReceived();
+			//The SCP directory and the queue are on the same filesystem,
+			//so this is a rename, not a copy.
+			queue.enqueue(event.getFile());
 		}
 	}
 	
+	private synchronized void incrementReceived() {
+		received++;
+	}
+	
 	public synchronized int getReceivedFileCount() {
 		return received;
 	}
 	
-	public synchronized int getQueueSize() {
-		return queueManager.size();
+	public int getQueueSize() {
+		return queue.size();
 	}
 	
 	class QueueMonitorThread extends Thread {
@@ -270,7 +303,7 @@ public class SCPPanel extends BasePanel implements ActionListener, KeyListener,
 		public void run() {
 			try {
 				while (true) {
-					final int size = queueManager.size();
+					final int size = queue.size();
 					Runnable r = new Runnable() {
 						public void run() {
 							String s = String.format("Queue: %d", size);
@@ -285,139 +318,192 @@ public class SCPPanel extends BasePanel implements ActionListener, KeyListener,
 		}
 	}
 	
+	//Get the lock object for a PHI PatientID. All index updates
+	//for a patient are made while holding the patient's lock so that
+	//updates from different anonymizer threads never interleave.
+	private Object getPatientLock(String ptID) {
+		int h = (ptID != null) ? ptID.toLowerCase().hashCode() : 0;
+		return patientLocks[(h & 0x7fffffff) % patientLocks.length];
+	}
+	
 	class AnonymizerThread extends Thread {
-		public AnonymizerThread() {
-			super();
+		public AnonymizerThread(int n) {
+			super("AnonymizerThread-" + n);
 		}
 		public void run() {
 			File file;
-			while (true) {
-				while ( (file=queueManager.dequeue(activeDirectory)) != null ) {
-					anonymize(file);
-					file.delete();
-				}
-				try { sleep(2000); }
-				catch (Exception ignore) { }
+			while ( (file=queue.dequeue()) != null ) {
+				anonymize(file);
+				file.delete();
 			}
 		}
 	}
 	
 	// Anonymize the selected file(s).
 	private boolean anonymize(File file) {
-		FilterPanel fp = FilterPanel.getInstance();
-		String filterScript = fp.getText().trim();
-		boolean filterSRs = fp.getFilterSRs();
-		boolean filterSCs = fp.getFilterSCs();
-		boolean acceptRFs = fp.getAcceptRFs();
-		boolean saveRejected = fp.getSaveRejected();
-		boolean filterResult = true;
 		long startTime = System.currentTimeMillis();
-		DicomObject dob = null;
-		if ( ((dob=getDicomObject(file)) != null)
-				&& ( dob.isImage() )
-				&& ( !filterSCs || !dob.isSecondaryCapture() || (acceptRFs && dob.isReformatted()) )
-				&& ( !filterSRs || !dob.isSR() )
-				&& ( filterResult=((filterScript.length() == 0) || dob.matches(filterScript)) ) ) {
-					
-			Configuration config = Configuration.getInstance();
-			File storageDir = config.getStorageDir();
-			storageDir.mkdirs();
-
-			String origPtName = dob.getPatientName();
-			String origPtID = dob.getPatientID();
-			String origStudyInstanceUID = dob.getStudyInstanceUID();
-			String origStudyDate = dob.getStudyDate();
-			String origAccessionNumber = dob.getAccessionNumber();
+		DicomHeader header = getDicomHeader(file);
+		try {
+			if (!accept(file, header)) return false;
 
-			String result = "";
-			DAScript dicomScript = DAScript.getInstance( new File(config.dicomScriptFile) );
-			LookupTable lookupTable = LookupTable.getInstance(new File(config.lookupTableFile) );
-			result =
-				DICOMAnonymizer.anonymize(
-					file, file,
-					dicomScript.toProperties(), lookupTable.getProperties(), integerTable,
-					forceIVRLE, renameToSOPIUID).isOK() ? "" : "failed";;
+			//Anonymize the file in place, continuing from the header
+			//read for the filter. The anonymizer supplies the identifiers
+			//of the original and anonymized objects, so the file does
+			//not have to be read again.
+			AnonymizerSnapshot snapshot = AnonymizerSnapshot.getInstance();
+			DICOMStreamAnonymizer anonymizer =
+				new DICOMStreamAnonymizer(snapshot.compiledScript, snapshot.lkup, integerTable);
+			AnonymizerStatus status = anonymizer.anonymize(header, file);
 
 			//Report the results
-			if (!result.equals("")) {
+			if (!status.isOK()) {
 				resultsPane.println(Color.red,"Anonymization failed: "+file.getName());
 				logger.warn("Anonymization failed: "+file.getName());
 				return false;
 			}
 			else {
-				// Get the spoke name
-				Properties daprops = dicomScript.toProperties();
-				String spokeName = daprops.getProperty("param.SITEID");
+				return store(file, anonymizer.getPHIDataset(), anonymizer.getAnonymizedDataset(), startTime);
+			}
+		}
+		finally { if (header != null) header.close(); }
+	}
+	
+	/**
+	 * The AnonymizedObjectListener implementation. This method is called
+	 * by the SCP, on the thread of the association, for each object that was
+	 * anonymized as it was received. The filter is applied to the PHI dataset
+	 * before the anonymized object is stored. Anonymization on receive is
+	 * disabled while a filter script is configured, so only the filter's
+	 * checkboxes apply.
+	 */
+	public void anonymizedObjectReceived(AnonymizerStatus status,
+										 Dataset phiDataset,
+										 Dataset anonDataset,
+										 boolean isImage,
+										 String callingAET) {
+		long startTime = System.currentTimeMillis();
+		incrementReceived();
+		File file = status.getFile();
+		if (!status.isOK()) {
+			resultsPane.println(Color.red,"Anonymization failed: "+file.getName());
+			logger.warn("Anonymization failed: "+file.getName());
+			file.delete();
+			return;
+		}
+		DicomHeader header = new DicomHeader(phiDataset, isImage);
+		if (accept(file, header)) {
+			store(file, phiDataset, anonDataset, startTime);
+		}
+		file.delete();
+	}
+	
+	//Apply the filter to the header of an object. If the object is rejected,
+	//report it and, if the filter requires it, save a copy in the quarantine.
+	private boolean accept(File file, DicomHeader header) {
+		FilterPanel fp = FilterPanel.getInstance();
+		String filterScript = fp.getText().trim();
+		boolean filterSRs = fp.getFilterSRs();
+		boolean filterSCs = fp.getFilterSCs();
+		boolean acceptRFs = fp.getAcceptRFs();
+		boolean saveRejected = fp.getSaveRejected();
+		boolean filterResult = true;
+		if ( (header != null)
+				&& ( header.isImage() )
+				&& ( !filterSCs || !header.isSecondaryCapture() || (acceptRFs && header.isReformatted()) )
+				&& ( !filterSRs || !header.isSR() )
+				&& ( filterResult=((filterScript.length() == 0) || header.matches(filterScript)) ) ) {
+			return true;
+		}
+		if (header == null) {
+			resultsPane.println(Color.black, file.getName());
+			resultsPane.println(Color.red, "\n    File rejected (not a DICOM file)");
+		}
+		else {
+			resultsPane.println(Color.black, file.getName());
+			if (filterSRs && header.isSR()) resultsPane.println(Color.red,"    File rejected (Structured Report)");
+			else if (filterSCs && header.isSecondaryCapture()) resultsPane.println(Color.red,"    File rejected (Secondary Capture)");
+			else if (!filterResult) resultsPane.println(Color.red,"    File rejected (filter)");
+			else if (!header.isImage()) resultsPane.println(Color.red,"    File rejected (not an image)");
+			else resultsPane.println(Color.red,"    File rejected (unknown reason)");
+		}
+		if (saveRejected && (header != null)) {
+			FileUtil.copy(file, new File(Configuration.getInstance().getQuarantineDir(), file.getName()));
+		}
+		return false;
+	}
+	
+	//Move an anonymized object into the storage tree and update the index.
+	//The identifiers are taken from the datasets of the original and
+	//anonymized objects.
+	private boolean store(File file, Dataset phiDataset, Dataset anonDataset, long startTime) {
+		File storageDir = Configuration.getInstance().getStorageDir();
+		storageDir.mkdirs();
 
-				//Figure out where to put the temp file.
-				//It needs to go in the appropriate series subdirectory
-				dob = getDicomObject(file);
-				String modality = dob.getModality();
-				String anonPtName = dob.getPatientName();
-				String anonPtID = dob.getPatientID();
-				String anonSOPInstanceUID = dob.getSOPInstanceUID();
-				String anonStudyInstanceUID = dob.getStudyInstanceUID();
-				String anonStudyDate = dob.getStudyDate();
-				String anonStudyTime = dob.getStudyTime().trim();
-				int k = anonStudyTime.indexOf(".");
-				k = (k >= 0) ? k : anonStudyTime.length();
-				anonStudyTime = anonStudyTime.substring(0,k);
-				if (anonStudyTime.length() > 0) anonStudyTime = "T" + anonStudyTime;
-				String anonStudyDateTime = anonStudyDate + anonStudyTime;
-				String anonSeriesNumber = dob.getSeriesNumber();
-				String anonInstanceNumber = dob.getInstanceNumber();
-				String anonAccessionNumber = dob.getAccessionNumber();
-				String hash = "";
-				try { hash = "-" + AnonymizerFunctions.hash(anonStudyInstanceUID, 4); }
-				catch (Exception unable) { }
-				File imgdir = new File(storageDir, anonPtID + "/" 
-								+ "Study-"+modality+"-"+anonStudyDateTime+hash + "/" 
-								+ "Series-"+anonSeriesNumber);
-				imgdir.mkdirs();
-				File dest = new File(imgdir, "Image-"+anonInstanceNumber+".dcm");
+		String origPtName = getString(phiDataset, Tags.PatientName);
+		String origPtID = getString(phiDataset, Tags.PatientID);
+		String origStudyInstanceUID = getString(phiDataset, Tags.StudyInstanceUID);
+		String origStudyDate = getString(phiDataset, Tags.StudyDate);
+		String origAccessionNumber = getString(phiDataset, Tags.AccessionNumber);
 
-				//Move the file to the correct directory.
-				if (dest.exists()) dest.delete();
-				if (FileUtil.copy(file, dest)) {
-					//Get rid of the temp file and update the index
-					file.delete();
-					Index index = Index.getInstance();
-					index.addPatient(origPtName, origPtID, anonPtName, anonPtID);
-					index.addStudy(origPtID, origStudyDate, origAccessionNumber, anonStudyDate, anonAccessionNumber);
-					index.addStudyInstanceUID(anonPtID, anonStudyDate, anonAccessionNumber, origStudyInstanceUID, anonStudyInstanceUID);
+		//Figure out where to put the file.
+		//It needs to go in the appropriate series subdirectory
+		String modality = getString(anonDataset, Tags.Modality);
+		String anonPtName = getString(anonDataset, Tags.PatientName);
+		String anonPtID = getString(anonDataset, Tags.PatientID);
+		String anonStudyInstanceUID = getString(anonDataset, Tags.StudyInstanceUID);
+		String anonStudyDate = getString(anonDataset, Tags.StudyDate);
+		String anonStudyTime = getString(anonDataset, Tags.StudyTime);
+		int k = anonStudyTime.indexOf(".");
+		k = (k >= 0) ? k : anonStudyTime.length();
+		anonStudyTime = anonStudyTime.substring(0,k);
+		if (anonStudyTime.length() > 0) anonStudyTime = "T" + anonStudyTime;
+		String anonStudyDateTime = anonStudyDate + anonStudyTime;
+		String anonSeriesNumber = getString(anonDataset, Tags.SeriesNumber);
+		String anonInstanceNumber = getString(anonDataset, Tags.InstanceNumber);
+		String anonAccessionNumber = getString(anonDataset, Tags.AccessionNumber);
+		String hash = "";
+		try { hash = "-" + AnonymizerFunctions.hash(anonStudyInstanceUID, 4); }
+		catch (Exception unable) { }
+		File imgdir = new File(storageDir, anonPtID + "/" 
+						+ "Study-"+modality+"-"+anonStudyDateTime+hash + "/" 
+						+ "Series-"+anonSeriesNumber);
+		imgdir.mkdirs();
+		File dest = new File(imgdir, "Image-"+anonInstanceNumber+".dcm");
 
+		//Move the file to the correct directory.
+		if (FileQueue.move(file, dest)) {
+			//Update the index
+			Index index = Index.getInstance();
+			synchronized (getPatientLock(origPtID)) {
+				index.addPatient(origPtName, origPtID, anonPtName, anonPtID);
+				index.addStudy(origPtID, origStudyDate, origAccessionNumber, anonStudyDate, anonAccessionNumber);
+				index.addStudyInstanceUID(anonPtID, anonStudyDate, anonAccessionNumber, origStudyInstanceUID, anonStudyInstanceUID);
+			}
+
+			//Report the file when the index changes are durable
+			final String path = dest.getAbsolutePath();
+			final long finalStartTime = startTime;
+			index.afterCommit(new Runnable() {
+				public void run() {
 					long endTime = System.currentTimeMillis();
-					statusPanel.setStatus(incrementCount(), dest.getAbsolutePath(), endTime-startTime);
-					return true;
-				}
-				else {
-					logger.warn("Unable to copy\n     "+file+"\n to: "+dest);
-					return false;
+					statusPanel.setStatus(incrementCount(), path, endTime-finalStartTime);
 				}
-			}
+			});
+			return true;
 		}
 		else {
-			if (dob == null) {
-				resultsPane.println(Color.black, file.getName());
-				resultsPane.println(Color.red, "\n    File rejected (not a DICOM file)");
-			}
-			else {
-				resultsPane.println(Color.black, dob.getFile().getName());
-				if (filterSRs && dob.isSR()) resultsPane.println(Color.red,"    File rejected (Structured Report)");
-				else if (filterSCs && dob.isSecondaryCapture()) resultsPane.println(Color.red,"    File rejected (Secondary Capture)");
-				else if (!filterResult) resultsPane.println(Color.red,"    File rejected (filter)");
-				else if (!dob.isImage()) resultsPane.println(Color.red,"    File rejected (not an image)");
-				else resultsPane.println(Color.red,"    File rejected (unknown reason)");
-			}
-			if (saveRejected && (dob != null)) {
-				dob.copyTo(new File(Configuration.getInstance().getQuarantineDir(), dob.getFile().getName()));
-			}
+			logger.warn("Unable to move\n     "+file+"\n to: "+dest);
 			return false;
 		}
 	}
+	
+	private String getString(Dataset ds, int tag) {
+		String s = ds.getString(tag);
+		return (s == null) ? "" : s.trim();
+	}
 
-	private DicomObject getDicomObject(File file) {
-		try { return new DicomObject(file); }
+	private DicomHeader getDicomHeader(File file) {
+		try { return new DicomHeader(file); }
 		catch (Exception ex) { return null; }
 	}
 }
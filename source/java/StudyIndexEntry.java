@@ -11,6 +11,9 @@ import java.io.Serializable;
 import java.util.HashSet;
 
 public class StudyIndexEntry implements Serializable, Comparable<StudyIndexEntry> {
+	//Fixed at the value computed for the original class, so existing indexes can be read.
+	private static final long serialVersionUID = 2539193195326863109L;
+
 	public String key; // PHI PatientID
 	public HashSet<Study> studies;
 	
@@ -26,4 +29,16 @@ public class StudyIndexEntry implements Serializable, Comparable<StudyIndexEntry
 	public int compareTo(StudyIndexEntry ie) {
 		return key.compareTo(ie.key);
 	}
+	
+	public boolean equals(Object obj) {
+		if (obj instanceof StudyIndexEntry) {
+			StudyIndexEntry ie = (StudyIndexEntry)obj;
+			return PatientIndexEntry.equal(key, ie.key) && studies.equals(ie.studies);
+		}
+		return false;
+	}
+	
+	public int hashCode() {
+		return (key == null) ? 0 : key.hashCode();
+	}
 }
\ No newline at end of file
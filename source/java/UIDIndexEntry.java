@@ -10,6 +10,8 @@ package org.rsna.anonymizer;
 import java.io.Serializable;
 
 public class UIDIndexEntry implements Serializable {
+	//Fixed at the value computed for the original class, so existing indexes can be read.
+	private static final long serialVersionUID = -3907396491779880728L;
 	
 	public String origStudyInstanceUID;
 	public String anonStudyInstanceUID;
@@ -18,4 +20,17 @@ public class UIDIndexEntry implements Serializable {
 		this.origStudyInstanceUID = origStudyInstanceUID;
 		this.anonStudyInstanceUID = anonStudyInstanceUID;
 	}
+	
+	public boolean equals(Object obj) {
+		if (obj instanceof UIDIndexEntry) {
+			UIDIndexEntry ie = (UIDIndexEntry)obj;
+			return PatientIndexEntry.equal(origStudyInstanceUID, ie.origStudyInstanceUID)
+					&& PatientIndexEntry.equal(anonStudyInstanceUID, ie.anonStudyInstanceUID);
+		}
+		return false;
+	}
+	
+	public int hashCode() {
+		return (origStudyInstanceUID == null) ? 0 : origStudyInstanceUID.hashCode();
+	}
 }
\ No newline at end of file
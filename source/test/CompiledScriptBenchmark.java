@@ -0,0 +1,166 @@
+/*---------------------------------------------------------------
+*  Copyright 2020 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.anonymizer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.dcm4che.data.Dataset;
+import org.dcm4che.data.DcmEncodeParam;
+import org.dcm4che.data.DcmObjectFactory;
+import org.dcm4che.dict.Tags;
+import org.dcm4che.dict.UIDs;
+import org.rsna.ctp.stdstages.anonymizer.AnonymizerStatus;
+import org.rsna.ctp.stdstages.anonymizer.IntegerTable;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DAScript;
+import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMAnonymizer;
+import org.rsna.util.FileUtil;
+
+/**
+ * A benchmark comparing the anonymization of an object by the CTP
+ * DICOMAnonymizer, which interprets the script for every object, with
+ * the anonymization by a DICOMStreamAnonymizer using a CompiledScript.
+ * Both read the object from a file and write the anonymized object to
+ * another file, so the difference is the cost of the script.
+ * <pre>ant benchmark</pre>
+ * or
+ * <pre>java org.rsna.anonymizer.CompiledScriptBenchmark script [iterations]</pre>
+ */
+public class CompiledScriptBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		BasicConfigurator.configure();
+		Logger.getRootLogger().setLevel(Level.ERROR);
+		File scriptFile = new File((args.length > 0) ? args[0] : "source/files/dicom-anonymizer.script");
+		int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+
+		File dir = File.createTempFile("benchmark-", "");
+		dir.delete();
+		dir.mkdirs();
+		try {
+			Properties cmds = DAScript.getInstance(scriptFile).toProperties();
+			cmds.setProperty("param.SITEID", "1");
+			Properties lkup = new Properties();
+			File in = new File(dir, "in.dcm");
+			File out = new File(dir, "out.dcm");
+			writeObject(in);
+
+			long start = System.nanoTime();
+			CompiledScript script = new CompiledScript(cmds);
+			long compileTime = System.nanoTime() - start;
+			System.out.println("Script: " + cmds.size() + " properties; "
+								+ script.size() + " element actions, "
+								+ script.getCallCount() + " interpreted for each object");
+			System.out.println("Compilation: " + format(compileTime / 1000) + " us");
+
+			File intDir1 = new File(dir, "integers1");
+			File intDir2 = new File(dir, "integers2");
+			intDir1.mkdirs();
+			intDir2.mkdirs();
+			final IntegerTable intTable1 = new IntegerTable(intDir1);
+			final IntegerTable intTable2 = new IntegerTable(intDir2);
+
+			for (int pass = 0; pass < 2; pass++) {
+				boolean report = (pass == 1);
+				int n = report ? iterations : iterations / 4;
+				long interpreted = 0;
+				long compiled = 0;
+				for (int i = 0; i < n; i++) {
+					start = System.nanoTime();
+					check(DICOMAnonymizer.anonymize(in, out, cmds, lkup, intTable1, false, false));
+					interpreted += System.nanoTime() - start;
+
+					start = System.nanoTime();
+					check(new DICOMStreamAnonymizer(script, lkup, intTable2).anonymize(in, out));
+					compiled += System.nanoTime() - start;
+				}
+				if (report) {
+					System.out.println("Iterations: " + n);
+					System.out.println("DICOMAnonymizer (interpreted): " + format(interpreted / n / 1000) + " us/object");
+					System.out.println("DICOMStreamAnonymizer (compiled): " + format(compiled / n / 1000) + " us/object");
+					System.out.println("Ratio: " + String.format("%.2f", (double)interpreted / compiled));
+				}
+			}
+			intTable1.close();
+			intTable2.close();
+		}
+		finally { FileUtil.deleteAll(dir); }
+	}
+
+	//Write a CT image with the usual identifying elements.
+	private static void writeObject(File file) throws Exception {
+		DcmObjectFactory oFact = DcmObjectFactory.getInstance();
+		Dataset ds = oFact.newDataset();
+		ds.putCS(Tags.SpecificCharacterSet, "ISO_IR 100");
+		ds.putCS(Tags.ImageType, new String[] {"ORIGINAL", "PRIMARY", "AXIAL"});
+		ds.putDA(Tags.InstanceCreationDate, "20200101");
+		ds.putUI(Tags.SOPClassUID, UIDs.CTImageStorage);
+		ds.putUI(Tags.SOPInstanceUID, "1.2.840.113619.2.55.3.1.1.1");
+		ds.putDA(Tags.StudyDate, "20200101");
+		ds.putDA(Tags.SeriesDate, "20200101");
+		ds.putTM(Tags.StudyTime, "101010");
+		ds.putSH(Tags.AccessionNumber, "A123456");
+		ds.putCS(Tags.Modality, "CT");
+		ds.putLO(Tags.Manufacturer, "GE MEDICAL SYSTEMS");
+		ds.putLO(Tags.InstitutionName, "General Hospital");
+		ds.putST(Tags.InstitutionAddress, "1 Main Street");
+		ds.putPN(Tags.ReferringPhysicianName, "Welby^Marcus");
+		ds.putSH(Tags.StationName, "CT01");
+		ds.putLO(Tags.StudyDescription, "CT HEAD WO");
+		ds.putLO(Tags.SeriesDescription, "AXIAL 5MM");
+		ds.putPN(Tags.OperatorName, "Tech^Alice");
+		ds.putLO(Tags.ManufacturerModelName, "LightSpeed");
+		ds.putPN(Tags.PatientName, "Doe^John");
+		ds.putLO(Tags.PatientID, "123456");
+		ds.putDA(Tags.PatientBirthDate, "19700304");
+		ds.putCS(Tags.PatientSex, "M");
+		ds.putAS(Tags.PatientAge, "050Y");
+		ds.putDS(Tags.SliceThickness, "5");
+		ds.putDS(Tags.KVP, "120");
+		ds.putLO(Tags.DeviceSerialNumber, "SN1234");
+		ds.putLO(Tags.SoftwareVersion, "1.0");
+		ds.putLO(Tags.ProtocolName, "HEAD");
+		ds.putUI(Tags.StudyInstanceUID, "1.2.840.113619.2.55.3.1");
+		ds.putUI(Tags.SeriesInstanceUID, "1.2.840.113619.2.55.3.1.1");
+		ds.putSH(Tags.StudyID, "1");
+		ds.putIS(Tags.SeriesNumber, "2");
+		ds.putIS(Tags.InstanceNumber, "1");
+		ds.putDS(Tags.ImagePosition, new String[] {"0", "0", "0"});
+		ds.putDS(Tags.ImageOrientation, new String[] {"1", "0", "0", "0", "1", "0"});
+		ds.putUI(Tags.FrameOfReferenceUID, "1.2.840.113619.2.55.3.1.2");
+		ds.putLO(0x00090010, "GEMS_IDEN_01");
+		ds.putSH(0x00091002, "CT01");
+		ds.putUS(Tags.SamplesPerPixel, 1);
+		ds.putCS(Tags.PhotometricInterpretation, "MONOCHROME2");
+		ds.putUS(Tags.Rows, 64);
+		ds.putUS(Tags.Columns, 64);
+		ds.putUS(Tags.BitsAllocated, 16);
+		ds.putUS(Tags.BitsStored, 12);
+		ds.putUS(Tags.HighBit, 11);
+		ds.putUS(Tags.PixelRepresentation, 0);
+		ds.putOW(Tags.PixelData, ByteBuffer.wrap(new byte[64 * 64 * 2]));
+		ds.setFileMetaInfo(oFact.newFileMetaInfo(ds, UIDs.ExplicitVRLittleEndian));
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try { ds.writeFile(out, DcmEncodeParam.valueOf(UIDs.ExplicitVRLittleEndian)); }
+		finally { out.close(); }
+	}
+
+	private static void check(AnonymizerStatus status) throws Exception {
+		if (!status.isOK()) throw new Exception("Anonymization failed: " + status.getMessage());
+	}
+
+	private static String format(long value) {
+		return String.format("%,d", value);
+	}
+}